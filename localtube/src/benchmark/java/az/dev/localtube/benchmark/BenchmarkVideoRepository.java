@@ -0,0 +1,40 @@
+package az.dev.localtube.benchmark;
+
+import az.dev.localtube.domain.Video;
+import az.dev.localtube.domain.VideoStatus;
+import az.dev.localtube.repository.VideoRepository;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Video repository kept in memory - the benchmark measures ffmpeg, not Elasticsearch
+ */
+class BenchmarkVideoRepository extends VideoRepository {
+
+    private final Map<String, Video> videos = new ConcurrentHashMap<>();
+
+    BenchmarkVideoRepository() {
+        super(null, "benchmark");
+    }
+
+    @Override
+    public Video save(Video video) {
+        videos.put(video.getId(), video);
+        return video;
+    }
+
+    @Override
+    public Optional<Video> findById(String id) {
+        return Optional.ofNullable(videos.get(id));
+    }
+
+    @Override
+    public void updateStatus(String id, VideoStatus status) {
+        Video video = videos.get(id);
+        if (video != null) {
+            video.setStatus(status);
+        }
+    }
+}
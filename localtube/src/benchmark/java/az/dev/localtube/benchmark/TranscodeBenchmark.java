@@ -0,0 +1,383 @@
+package az.dev.localtube.benchmark;
+
+import az.dev.localtube.config.AsyncConfig;
+import az.dev.localtube.domain.Video;
+import az.dev.localtube.service.HlsSegmentCache;
+import az.dev.localtube.service.PerTitleLadder;
+import az.dev.localtube.service.TranscodeProgressService;
+import az.dev.localtube.service.TranscodingScheduler;
+import az.dev.localtube.service.TranscodingService;
+import az.dev.localtube.service.VideoService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.beans.factory.config.YamlPropertiesFactoryBean;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.PropertiesPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Transcoding benchmark - synthetic inputs through the real TranscodingService
+ * Sources are lavfi testsrc2 + sine, encoded bit-exact once per size and duration and
+ * cached, so every commit transcodes the same bytes. Settings come from application.yml
+ * and can be overridden with -Plocaltube.transcoding.*; remux is off unless asked for,
+ * or the H.264 sources would be stream-copied instead of encoded.
+ * Results go to benchmark.dir/results/<commit>-<time>.json for comparing across commits.
+ */
+public class TranscodeBenchmark {
+
+    private static final int FPS = 30;
+    private static final long CLOCK_TICKS = 100;   // USER_HZ, the unit of /proc/self/stat times
+    private static final String DEFAULT_CASES = "480p:10,480p:60,720p:10,720p:60,1080p:10,1080p:60,2160p:10,2160p:60";
+
+    private static final Map<String, int[]> SIZES = new LinkedHashMap<>();
+
+    static {
+        SIZES.put("480p", new int[]{854, 480});
+        SIZES.put("720p", new int[]{1280, 720});
+        SIZES.put("1080p", new int[]{1920, 1080});
+        SIZES.put("2160p", new int[]{3840, 2160});
+    }
+
+    private final StandardEnvironment env;
+    private final Path dir;
+    private final Path uploadDir;
+    private final Path hlsDir;
+
+    private TranscodeBenchmark(StandardEnvironment env) {
+        this.env = env;
+        this.dir = Paths.get(env.getProperty("benchmark.dir", "build/benchmark")).toAbsolutePath();
+        this.uploadDir = dir.resolve("uploads");
+        this.hlsDir = dir.resolve("hls");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new TranscodeBenchmark(environment()).run();
+    }
+
+    private void run() throws Exception {
+        Files.createDirectories(uploadDir);
+        Files.createDirectories(hlsDir);
+
+        ThreadPoolTaskExecutor renditionExecutor = (ThreadPoolTaskExecutor) new AsyncConfig()
+                .renditionExecutor(env.getProperty("async.core-pool-size", Integer.class, 2));
+        BenchmarkVideoRepository repository = new BenchmarkVideoRepository();
+        TranscodingService transcodingService = transcodingService(repository, renditionExecutor);
+
+        int repeat = env.getProperty("benchmark.repeat", Integer.class, 1);
+        List<Map<String, Object>> runs = new ArrayList<>();
+        try {
+            for (String spec : list("benchmark.cases", DEFAULT_CASES)) {
+                String[] parts = spec.split(":");
+                String label = parts[0];
+                int seconds = Integer.parseInt(parts[1]);
+                if (!SIZES.containsKey(label)) {
+                    throw new IllegalArgumentException("Unknown size " + label + ", expected one of " + SIZES.keySet());
+                }
+
+                Path source = source(label, seconds);
+                for (int i = 1; i <= repeat; i++) {
+                    runs.add(runCase(transcodingService, repository, source, label, seconds, i));
+                }
+            }
+        } finally {
+            renditionExecutor.shutdown();
+        }
+
+        writeResults(runs);
+    }
+
+    /**
+     * One transcode of a copy of the source (the pipeline deletes its input)
+     */
+    private Map<String, Object> runCase(TranscodingService transcodingService, BenchmarkVideoRepository repository,
+                                        Path source, String label, int seconds, int run) throws Exception {
+        String videoId = "bench_" + label + "_" + seconds + "s_" + run;
+        Path input = uploadDir.resolve(videoId + ".mp4");
+        Path outputDir = hlsDir.resolve(videoId);
+        deleteRecursive(outputDir);
+        Files.copy(source, input, StandardCopyOption.REPLACE_EXISTING);
+        repository.save(new Video(videoId, "Benchmark " + label + " " + seconds + "s", input.getFileName().toString()));
+
+        Double cpuBefore = childCpuSeconds();
+        long start = System.nanoTime();
+        List<String> qualities = transcodingService.transcodeToHLS(videoId, input, List.of(), quality -> {});
+        double wall = (System.nanoTime() - start) / 1e9;
+        Double cpuAfter = childCpuSeconds();
+
+        Map<String, Long> bytes = new TreeMap<>();
+        long totalBytes = 0;
+        try (Stream<Path> entries = Files.list(outputDir)) {
+            for (Path entry : entries.filter(Files::isDirectory).toList()) {
+                long size = directorySize(entry);
+                bytes.put(entry.getFileName().toString(), size);
+                totalBytes += size;
+            }
+        }
+        deleteRecursive(outputDir);
+
+        double minutes = seconds / 60.0;
+        Double cpu = cpuBefore != null && cpuAfter != null ? cpuAfter - cpuBefore : null;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("input", label);
+        result.put("durationSeconds", seconds);
+        result.put("run", run);
+        result.put("qualities", qualities);
+        result.put("wallSeconds", round(wall));
+        result.put("encodeFps", round(seconds * FPS / wall));
+        result.put("realtimeFactor", round(seconds / wall));
+        result.put("cpuSeconds", cpu != null ? round(cpu) : null);
+        result.put("cpuSecondsPerOutputMinute", cpu != null ? round(cpu / minutes) : null);
+        result.put("totalBytes", totalBytes);
+        result.put("bytesPerRendition", bytes);
+
+        System.out.printf("[Benchmark] %s %ds #%d: %.1fs wall, %.1f fps, %.2fx realtime, %s CPU-s/min, %d MB%n",
+                label, seconds, run, wall, seconds * FPS / wall, seconds / wall,
+                cpu != null ? String.format("%.1f", cpu / minutes) : "n/a", totalBytes / (1024 * 1024));
+        return result;
+    }
+
+    private void writeResults(List<Map<String, Object>> runs) throws IOException {
+        String commit = commit();
+        String time = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("commit", commit);
+        report.put("createdAt", LocalDateTime.now().toString());
+        report.put("ffmpeg", firstLine("ffmpeg", "-version"));
+        report.put("cpuCores", Runtime.getRuntime().availableProcessors());
+        report.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        report.put("settings", settings());
+        report.put("runs", runs);
+
+        Path file = dir.resolve("results").resolve(commit + "-" + time + ".json");
+        Files.createDirectories(file.getParent());
+        ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        objectMapper.writeValue(file.toFile(), report);
+        System.out.println("[Benchmark] Results written to " + file);
+    }
+
+    // Setup
+
+    private TranscodingService transcodingService(BenchmarkVideoRepository repository, ThreadPoolTaskExecutor executor) {
+        TranscodeProgressService progressService = new TranscodeProgressService();
+        HlsSegmentCache segmentCache = new HlsSegmentCache(false, DataSize.ofBytes(0), DataSize.ofBytes(0));
+        VideoService videoService = new VideoService(repository, progressService, segmentCache,
+                uploadDir.toString(), hlsDir.toString());
+        TranscodingScheduler scheduler = new TranscodingScheduler(
+                env.getProperty("localtube.transcoding.cpu-cores", Integer.class, 0),
+                env.getProperty("localtube.transcoding.max-concurrent", Integer.class, 2),
+                env.getProperty("localtube.transcoding.threads-per-process", Integer.class, 16));
+        PerTitleLadder perTitleLadder = new PerTitleLadder(
+                env.getProperty("localtube.transcoding.per-title.enabled", Boolean.class, true),
+                env.getProperty("localtube.transcoding.per-title.samples", Integer.class, 5),
+                env.getProperty("localtube.transcoding.per-title.sample-seconds", Integer.class, 4),
+                env.getProperty("localtube.transcoding.per-title.cap-headroom", Double.class, 1.5),
+                env.getProperty("localtube.transcoding.per-title.min-rung-step", Double.class, 1.25),
+                env.getProperty("localtube.transcoding.per-title.low-bandwidth", Long.class, 800_000L));
+
+        return new TranscodingService(videoService, scheduler, progressService, perTitleLadder, executor,
+                hlsDir.toString(),
+                env.getProperty("localtube.transcoding.segment-duration", Integer.class, 6),
+                list("localtube.transcoding.qualities", "480p,720p,1080p,2160p"),
+                env.getProperty("localtube.transcoding.split.min-duration", Integer.class, 1800),
+                env.getProperty("localtube.transcoding.split.part-duration", Integer.class, 600),
+                env.getProperty("localtube.transcoding.split.max-parts", Integer.class, 16),
+                env.getProperty("localtube.transcoding.progressive", Boolean.class, true),
+                env.getProperty("localtube.transcoding.segment-type", "mpegts"),
+                list("localtube.transcoding.extra-codecs", ""),
+                list("localtube.transcoding.extra-codec-qualities", "1080p,2160p"),
+                env.getProperty("localtube.transcoding.audio.separate", Boolean.class, true),
+                list("localtube.transcoding.audio.bitrates", "128k"),
+                env.getProperty("localtube.transcoding.remux.enabled", Boolean.class, true),
+                env.getProperty("localtube.transcoding.remux.max-bitrate-ratio", Double.class, 1.5),
+                env.getProperty("localtube.transcoding.thumbnails.enabled", Boolean.class, true),
+                env.getProperty("localtube.transcoding.thumbnails.interval", Integer.class, 5),
+                env.getProperty("localtube.transcoding.thumbnails.max-count", Integer.class, 1000));
+    }
+
+    /**
+     * System properties, then the benchmark's own defaults, then application.yml
+     */
+    private static StandardEnvironment environment() {
+        StandardEnvironment env = new StandardEnvironment();
+
+        ClassPathResource yml = new ClassPathResource("application.yml");
+        if (yml.exists()) {
+            YamlPropertiesFactoryBean yaml = new YamlPropertiesFactoryBean();
+            yaml.setResources(yml);
+            Properties properties = yaml.getObject();
+            if (properties != null) {
+                env.getPropertySources().addLast(new PropertiesPropertySource("application.yml", properties));
+            }
+        }
+
+        Map<String, Object> defaults = new LinkedHashMap<>();
+        defaults.put("localtube.transcoding.remux.enabled", "false");
+        env.getPropertySources().addAfter(StandardEnvironment.SYSTEM_ENVIRONMENT_PROPERTY_SOURCE_NAME,
+                new MapPropertySource("benchmark", defaults));
+        return env;
+    }
+
+    /**
+     * Comma-separated value, or a yml list (key[0], key[1], ...)
+     */
+    private List<String> list(String key, String fallback) {
+        String value = env.getProperty(key);
+        if (value == null) {
+            List<String> items = new ArrayList<>();
+            for (int i = 0; env.containsProperty(key + "[" + i + "]"); i++) {
+                items.add(env.getProperty(key + "[" + i + "]"));
+            }
+            if (!items.isEmpty()) {
+                return items;
+            }
+            value = fallback;
+        }
+        return Arrays.stream(value.split(",")).map(String::trim).filter(s -> !s.isEmpty()).toList();
+    }
+
+    /**
+     * Every transcoding setting as resolved for this run
+     */
+    private Map<String, String> settings() {
+        Map<String, String> settings = new TreeMap<>();
+        if (env.getPropertySources().get("application.yml") instanceof PropertiesPropertySource yml) {
+            for (String key : yml.getPropertyNames()) {
+                if (key.startsWith("localtube.transcoding.")) {
+                    settings.put(key, env.getProperty(key));
+                }
+            }
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("localtube.transcoding.")) {
+                settings.put(key, System.getProperty(key));
+            }
+        }
+        settings.put("localtube.transcoding.remux.enabled", env.getProperty("localtube.transcoding.remux.enabled"));
+        return settings;
+    }
+
+    // Inputs
+
+    /**
+     * Synthetic source of one size and duration, generated on first use
+     */
+    private Path source(String label, int seconds) throws IOException, InterruptedException {
+        int[] size = SIZES.get(label);
+        Path file = dir.resolve("sources").resolve(label + "-" + seconds + "s.mp4");
+        if (Files.exists(file)) {
+            return file;
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(label + "-" + seconds + "s.tmp.mp4");
+
+        System.out.println("[Benchmark] Generating " + file.getFileName());
+        ProcessBuilder pb = new ProcessBuilder(
+                "ffmpeg", "-v", "error", "-y",
+                "-f", "lavfi", "-i", "testsrc2=size=" + size[0] + "x" + size[1] + ":rate=" + FPS + ":duration=" + seconds,
+                "-f", "lavfi", "-i", "sine=frequency=440:beep_factor=4:sample_rate=48000:duration=" + seconds,
+                "-c:v", "libx264", "-preset", "veryfast", "-crf", "18", "-pix_fmt", "yuv420p", "-g", String.valueOf(FPS * 2),
+                "-c:a", "aac", "-b:a", "192k",
+                "-fflags", "+bitexact", "-flags:v", "+bitexact", "-flags:a", "+bitexact",
+                "-movflags", "+faststart",
+                tmp.toString()
+        );
+        pb.inheritIO();
+        if (pb.start().waitFor() != 0) {
+            Files.deleteIfExists(tmp);
+            throw new IOException("Cannot generate " + file.getFileName());
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    // Measurements
+
+    /**
+     * CPU time of all waited-for child processes (the ffmpegs) - Linux only, null elsewhere
+     */
+    private static Double childCpuSeconds() {
+        try {
+            String stat = Files.readString(Paths.get("/proc/self/stat"));
+            // Fields after "(comm)" start at field 3; cutime and cstime are fields 16 and 17
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return (Long.parseLong(fields[13]) + Long.parseLong(fields[14])) / (double) CLOCK_TICKS;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteRecursive(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static String commit() {
+        String commit = firstLine("git", "rev-parse", "--short", "HEAD");
+        if (commit == null) {
+            return "unknown";
+        }
+        String dirty = firstLine("git", "status", "--porcelain", "--untracked-files=no");
+        return dirty != null ? commit + "-dirty" : commit;
+    }
+
+    private static String firstLine(String... command) {
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String line;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                line = reader.readLine();
+                while (reader.readLine() != null) {
+                    // Drain so the process can exit
+                }
+            }
+            return process.waitFor() == 0 && line != null && !line.isBlank() ? line.trim() : null;
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
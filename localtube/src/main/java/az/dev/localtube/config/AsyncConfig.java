@@ -1,24 +1,104 @@
 package az.dev.localtube.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Configuration
 @EnableAsync
 public class AsyncConfig {
 
+    /**
+     * Transcoding jobs: max-concurrent run at once, the rest queue
+     * (CPU is shared out by TranscodingScheduler, not by pool size)
+     */
     @Bean(name = "videoProcessingExecutor")
-    public Executor taskExecutor() {
+    public Executor taskExecutor(@Value("${localtube.transcoding.max-concurrent:2}") int maxConcurrent,
+                                 @Value("${async.max-pool-size:5}") int maxPoolSize,
+                                 @Value("${async.queue-capacity:100}") int queueCapacity) {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(2);
-        executor.setMaxPoolSize(5);
-        executor.setQueueCapacity(100);
+        executor.setCorePoolSize(maxConcurrent);
+        executor.setMaxPoolSize(Math.max(maxConcurrent, maxPoolSize));
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("transcode-");
         executor.initialize();
         return executor;
     }
 
+    /**
+     * Rendition groups of a job running side by side; each thread just waits on ffmpeg.
+     * When the pool is full the job thread encodes the group itself.
+     */
+    @Bean(name = "renditionExecutor")
+    public Executor renditionExecutor(@Value("${async.core-pool-size:2}") int corePoolSize) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(Math.max(corePoolSize, Runtime.getRuntime().availableProcessors()));
+        executor.setQueueCapacity(0);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setThreadNamePrefix("rendition-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Pipelined ingest: one thread per job plus its ffmpeg runner and feeder, all long-lived
+     */
+    @Bean(name = "pipelinedIngestExecutor")
+    public Executor pipelinedIngestExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(0);
+        executor.setMaxPoolSize(32);
+        executor.setQueueCapacity(0);
+        executor.setThreadNamePrefix("pipelined-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * @Scheduled tasks - dispatch, sweeps and the reaper each get a thread rather than
+     * queueing behind one another (declared here since a second scheduler below turns
+     * off Boot's own, @Scheduled picks this one by name)
+     */
+    @Bean(name = "taskScheduler")
+    public TaskScheduler taskScheduler(@Value("${spring.task.scheduling.pool.size:4}") int poolSize) {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(poolSize);
+        scheduler.setThreadNamePrefix("scheduling-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    /**
+     * Lease renewal of running transcode jobs, apart from the @Scheduled pool -
+     * a long sweep there must not let a lease expire under a healthy worker
+     */
+    @Bean(name = "leaseRenewalScheduler")
+    public TaskScheduler leaseRenewalScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("lease-renewal-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    /**
+     * Reaper sweeps, which sleep between deletes to spare the disk
+     */
+    @Bean(name = "reaperScheduler")
+    public TaskScheduler reaperScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(1);
+        scheduler.setThreadNamePrefix("reaper-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
 }
\ No newline at end of file
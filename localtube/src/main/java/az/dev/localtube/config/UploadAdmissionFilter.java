@@ -0,0 +1,88 @@
+package az.dev.localtube.config;
+
+import az.dev.localtube.service.UploadAdmissionService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Admission control for chunk uploads
+ * Runs as a servlet filter so over-budget requests are turned away
+ * before the multipart body is parsed and spooled to disk.
+ */
+@Component
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+
+    private static final String CHUNK_PATH = "/api/upload/chunk";
+
+    private final UploadAdmissionService admissionService;
+    private final long defaultChunkSize;
+
+    public UploadAdmissionFilter(UploadAdmissionService admissionService,
+                                 @Value("${file.chunk-size}") long defaultChunkSize) {
+        this.admissionService = admissionService;
+        this.defaultChunkSize = defaultChunkSize;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String method = request.getMethod();
+        return !request.getRequestURI().startsWith(CHUNK_PATH)
+                || !("POST".equals(method) || "PUT".equals(method));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+
+        if (!admissionService.tryAcquireSlot()) {
+            reject(response, 1_000, "Too many uploads in progress");
+            return;
+        }
+
+        try {
+            long bytes = request.getContentLengthLong();
+            long retryAfterMs = admissionService.tryConsume(clientKey(request),
+                    bytes >= 0 ? bytes : defaultChunkSize);
+            if (retryAfterMs > 0) {
+                reject(response, retryAfterMs, "Upload rate limit exceeded");
+                return;
+            }
+
+            filterChain.doFilter(request, response);
+        } finally {
+            admissionService.releaseSlot();
+        }
+    }
+
+    /**
+     * Authenticated user if there is one, otherwise the client address
+     */
+    public static String clientKey(HttpServletRequest request) {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null && auth.isAuthenticated() && !"anonymousUser".equals(auth.getName())) {
+            return "user:" + auth.getName();
+        }
+        return "ip:" + request.getRemoteAddr();
+    }
+
+    private void reject(HttpServletResponse response, long retryAfterMs, String message) throws IOException {
+        long seconds = Math.max(1, (retryAfterMs + 999) / 1000);
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(seconds));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getWriter().write("{\"status\":\"error\",\"message\":\"" + message + "\"}");
+    }
+}
@@ -19,10 +19,7 @@ public class WebConfig implements WebMvcConfigurer {
                 .addResourceLocations("file:uploads/")
                 .setCachePeriod(3600);
 
-        // Serve HLS directory
-        registry.addResourceHandler("/hls/**")
-                .addResourceLocations("file:hls/")
-                .setCachePeriod(0); // Don't cache HLS files
+        // HLS is served by HlsController (caching headers, sendfile) - no resource handler here
     }
 
     // REMOVED: addCorsMappings() - causes conflicts with CorsFilter
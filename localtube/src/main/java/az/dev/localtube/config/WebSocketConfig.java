@@ -0,0 +1,27 @@
+package az.dev.localtube.config;
+
+import az.dev.localtube.controller.ProgressWebSocketHandler;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * WebSocket endpoints - plain text frames, no STOMP
+ */
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    private final ProgressWebSocketHandler progressHandler;
+
+    public WebSocketConfig(ProgressWebSocketHandler progressHandler) {
+        this.progressHandler = progressHandler;
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(progressHandler, "/ws/progress")
+                .setAllowedOriginPatterns("*");
+    }
+}
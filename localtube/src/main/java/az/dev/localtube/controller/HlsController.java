@@ -1,91 +1,207 @@
 package az.dev.localtube.controller;
 
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
+import az.dev.localtube.service.HlsSegmentCache;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 
+import java.io.IOException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 
 /**
- * HLS File Controller
+ * HLS File Controller - the one delivery path for playlists, segments and thumbnails
+ * Segments never change once written, so they carry a strong ETag and a year of
+ * immutable caching and a CDN or browser can absorb repeat views; playlists get a
+ * short TTL. Hot files come from HlsSegmentCache, the rest through Tomcat's sendfile
+ * where the connector has it.
  * CORS is handled by CorsFilter - do NOT add manual CORS headers here!
  */
 @RestController
 @RequestMapping("/hls")
 public class HlsController {
 
-    private static final String HLS_DIR = "hls/";
+    private static final String SEGMENT_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    // Tomcat request attributes for handing the body to the connector's sendfile
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final HlsSegmentCache segmentCache;
+    private final Path baseDir;
+    private final String playlistCacheControl;
+
+    public HlsController(HlsSegmentCache segmentCache,
+                         @Value("${localtube.storage.hls-dir}") String hlsDirPath,
+                         @Value("${localtube.hls.playlist-max-age:10s}") Duration playlistMaxAge) {
+        this.segmentCache = segmentCache;
+        this.baseDir = Paths.get(hlsDirPath).toAbsolutePath().normalize();
+        this.playlistCacheControl = "public, max-age=" + playlistMaxAge.toSeconds();
+    }
 
     @GetMapping("/**")
-    public ResponseEntity<Resource> serveHlsFile(jakarta.servlet.http.HttpServletRequest request) {
+    public void serveHlsFile(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String hlsPath = URLDecoder.decode(
+                request.getRequestURI().substring(request.getContextPath().length() + "/hls/".length()),
+                StandardCharsets.UTF_8);
+
+        Path filePath = baseDir.resolve(hlsPath).normalize();
+        if (!filePath.startsWith(baseDir)) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return;
+        }
+
+        // One stat call answers existence, type, size and modification time
+        BasicFileAttributes attributes;
         try {
-            // Extract and decode path
-            String requestUri = request.getRequestURI();
-            String hlsPath = requestUri.substring("/hls/".length());
-            hlsPath = URLDecoder.decode(hlsPath, StandardCharsets.UTF_8);
+            attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        if (!attributes.isRegularFile()) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return;
+        }
 
-            System.out.println("[HLS] Requested: " + hlsPath);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
 
-            // Build paths with normalization
-            Path filePath = Paths.get(HLS_DIR, hlsPath).toAbsolutePath().normalize();
-            Path baseDir = Paths.get(HLS_DIR).toAbsolutePath().normalize();
+        String filename = filePath.getFileName().toString().toLowerCase();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, isSegment(filename) ? SEGMENT_CACHE_CONTROL : playlistCacheControl);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
 
-            System.out.println("[HLS] File: " + filePath);
-            System.out.println("[HLS] Base: " + baseDir);
+        // Sets ETag and Last-Modified, answers If-None-Match / If-Modified-Since with 304
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return;
+        }
 
-            // Security check
-            if (!filePath.startsWith(baseDir)) {
-                System.err.println("[HLS] Security violation - outside base dir");
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        long start = 0;
+        long end = size;   // Exclusive
+        String range = request.getHeader(HttpHeaders.RANGE);
+        // A single byte range; several ranges are answered with the whole file
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0
+                && matchesIfRange(request.getHeader(HttpHeaders.IF_RANGE), etag)) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                return;
             }
+            start = bounds[0];
+            end = bounds[1];
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + size);
+        }
 
-            // Existence check
-            if (!Files.exists(filePath)) {
-                System.err.println("[HLS] File not found: " + filePath);
-                return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-            }
+        response.setContentType(determineContentType(filename, filePath));
+        response.setContentLengthLong(end - start);
+        if ("HEAD".equals(request.getMethod()) || end == start) {
+            return;
+        }
 
-            if (!Files.isRegularFile(filePath)) {
-                System.err.println("[HLS] Not a file: " + filePath);
-                return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        ByteBuffer cached = segmentCache.get(filePath, size, lastModified);
+        if (cached != null) {
+            cached.position((int) start).limit((int) end);
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            while (cached.hasRemaining()) {
+                out.write(cached);
             }
+            return;
+        }
 
-            System.out.println("[HLS] ✓ SUCCESS - Serving: " + filePath.getFileName());
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Kernel copies file to socket once the handler returns
+            request.setAttribute(SENDFILE_FILENAME, filePath.toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
 
-            // Determine content type
-            String contentType = determineContentType(filePath);
-            Resource resource = new FileSystemResource(filePath);
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, out);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+            }
+        }
+    }
 
-            // Return response WITHOUT manual CORS headers
-            // CorsFilter will add them automatically
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_TYPE, contentType)
-                    .header(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate")
-                    .header(HttpHeaders.PRAGMA, "no-cache")
-                    .header(HttpHeaders.EXPIRES, "0")
-                    .body(resource);
+    /**
+     * Media that is never rewritten once a playlist refers to it
+     */
+    private boolean isSegment(String filename) {
+        return filename.endsWith(".ts") || filename.endsWith(".m4s") || filename.endsWith(".mp4");
+    }
 
-        } catch (Exception e) {
-            System.err.println("[HLS ERROR] " + e.getMessage());
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
-        }
+    /**
+     * No If-Range, or one naming the current version - otherwise the whole file goes out
+     */
+    private boolean matchesIfRange(String ifRange, String etag) {
+        return ifRange == null || ifRange.equals(etag);
     }
 
-    private String determineContentType(Path filePath) {
-        String filename = filePath.getFileName().toString().toLowerCase();
+    /**
+     * Single "bytes=a-b", "bytes=a-" or "bytes=-n" range as [start, end); null if unsatisfiable
+     */
+    private long[] parseRange(String header, long size) {
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, size - suffix);
+                end = size;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? size : Math.min(size, Long.parseLong(spec.substring(dash + 1)) + 1);
+            }
+            return start < end ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
+    private String determineContentType(String filename, Path filePath) {
         if (filename.endsWith(".m3u8")) {
             return "application/vnd.apple.mpegurl";
         } else if (filename.endsWith(".ts")) {
             return "video/mp2t";
+        } else if (filename.endsWith(".m4s")) {
+            return "video/iso.segment";
+        } else if (filename.endsWith(".mp4")) {
+            return "video/mp4";
+        } else if (filename.endsWith(".vtt")) {
+            return "text/vtt";
+        } else if (filename.endsWith(".jpg")) {
+            return "image/jpeg";
         } else if (filename.endsWith(".key") || filename.endsWith(".bin")) {
             return "application/octet-stream";
         }
@@ -97,4 +213,4 @@ public class HlsController {
             return "application/octet-stream";
         }
     }
-}
\ No newline at end of file
+}
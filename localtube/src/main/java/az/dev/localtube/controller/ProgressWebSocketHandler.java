@@ -0,0 +1,34 @@
+package az.dev.localtube.controller;
+
+import az.dev.localtube.service.TranscodeProgressService;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * WebSocket /ws/progress - transcode progress and video status events
+ * Connect with ?videoId=... to follow a single video, without it to follow all.
+ */
+@Component
+public class ProgressWebSocketHandler extends TextWebSocketHandler {
+
+    private final TranscodeProgressService progressService;
+
+    public ProgressWebSocketHandler(TranscodeProgressService progressService) {
+        this.progressService = progressService;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        String videoId = session.getUri() == null ? null
+                : UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams().getFirst("videoId");
+        progressService.subscribe(session, videoId);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        progressService.unsubscribe(session);
+    }
+}
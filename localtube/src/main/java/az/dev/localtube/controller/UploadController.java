@@ -1,24 +1,38 @@
 package az.dev.localtube.controller;
 
+import az.dev.localtube.config.UploadAdmissionFilter;
+import az.dev.localtube.domain.UploadSession;
 import az.dev.localtube.domain.Video;
 import az.dev.localtube.domain.VideoStatus;
-import az.dev.localtube.service.TranscodingService;
+import az.dev.localtube.service.DiskSpaceLedger;
+import az.dev.localtube.service.HlsSegmentCache;
+import az.dev.localtube.service.PipelinedIngestService;
+import az.dev.localtube.service.TranscodeJobQueue;
+import az.dev.localtube.service.TranscodeProgressService;
+import az.dev.localtube.service.UploadSessionService;
 import az.dev.localtube.service.VideoService;
+import az.dev.localtube.util.HashingChannel;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -30,28 +44,39 @@ import java.util.stream.Collectors;
 public class UploadController {
 
     private final VideoService videoService;
-    private final TranscodingService transcodingService;
+    private final TranscodeJobQueue transcodeJobQueue;
+    private final UploadSessionService uploadSessionService;
+    private final DiskSpaceLedger diskSpaceLedger;
+    private final PipelinedIngestService pipelinedIngestService;
+    private final TranscodeProgressService progressService;
+    private final HlsSegmentCache segmentCache;
 
     private final Path uploadDir;
     private final long maxFileSize;
-    private final long minDiskFree;
-    private static final int STREAM_BUFFER = 8 * 1024;
 
-    // Disk space cache
-    private volatile long cachedFreeSpace = Long.MAX_VALUE;
-    private volatile long cacheTimestamp = 0;
-    private static final long CACHE_TTL_MS = 1_000;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    // Stride of sessionless uploads sent without chunkSize, learned from their non-final chunks
+    private final Map<String, Long> legacyStrides = new ConcurrentHashMap<>();
 
     public UploadController(VideoService videoService,
-                            TranscodingService transcodingService,
+                            TranscodeJobQueue transcodeJobQueue,
+                            UploadSessionService uploadSessionService,
+                            DiskSpaceLedger diskSpaceLedger,
+                            PipelinedIngestService pipelinedIngestService,
+                            TranscodeProgressService progressService,
+                            HlsSegmentCache segmentCache,
                             @Value("${localtube.storage.upload-dir}") String uploadDirPath,
-                            @Value("${localtube.storage.max-file-size}") long maxFileSize,
-                            @Value("${localtube.storage.min-disk-free}") long minDiskFree) throws IOException {
+                            @Value("${localtube.storage.max-file-size}") long maxFileSize) throws IOException {
         this.videoService = videoService;
-        this.transcodingService = transcodingService;
+        this.transcodeJobQueue = transcodeJobQueue;
+        this.uploadSessionService = uploadSessionService;
+        this.diskSpaceLedger = diskSpaceLedger;
+        this.pipelinedIngestService = pipelinedIngestService;
+        this.progressService = progressService;
+        this.segmentCache = segmentCache;
         this.uploadDir = Paths.get(uploadDirPath);
         this.maxFileSize = maxFileSize;
-        this.minDiskFree = minDiskFree;
 
         // Ensure upload directory exists
         Files.createDirectories(this.uploadDir);
@@ -88,7 +113,10 @@ public class UploadController {
             @RequestParam(required = false) String title,
             @RequestParam(required = false) String description,
             @RequestParam long totalSize,
-            @RequestParam int totalChunks) {
+            @RequestParam int totalChunks,
+            @RequestParam(required = false) Long chunkSize,
+            @RequestParam(defaultValue = "false") boolean pipelined,
+            HttpServletRequest request) {
 
         try {
             // Validate file size
@@ -97,25 +125,36 @@ public class UploadController {
                         "error", "File too large. Max " + (maxFileSize / (1024*1024*1024)) + " GB"));
             }
 
-            // Check disk space
-            cacheTimestamp = 0; // Force fresh check
-            long freeSpace = getFreeSpace();
-
-            if (freeSpace < totalSize + minDiskFree) {
+            // Book disk space for the upload and its HLS output
+            String videoId = videoService.videoIdFor(filename);
+            if (!diskSpaceLedger.reserve(videoId, totalSize)) {
+                long available = Math.max(0, diskSpaceLedger.available(uploadDir));
                 return ResponseEntity.status(507).body(Map.of(
-                        "error", "Not enough disk space. Free: " + (freeSpace / (1024*1024*1024)) + " GB"));
+                        "error", "Not enough disk space. Available: " + (available / (1024*1024*1024)) + " GB"));
             }
 
             // Create video entry in Elasticsearch
             String videoTitle = title != null ? title : filename;
             String videoDesc = description != null ? description : "";
 
-            Video video = videoService.createVideo(videoTitle, filename, videoDesc);
+            Video video;
+            UploadSession session;
+            try {
+                video = videoService.createVideo(videoTitle, filename, videoDesc,
+                        UploadAdmissionFilter.clientKey(request));
+
+                // Open (or resume) the upload session - preallocates the partial file
+                session = uploadSessionService.createOrResume(video.getId(),
+                        sanitizeFilename(filename), totalSize, totalChunks, chunkSize != null ? chunkSize : 0, pipelined);
+            } catch (IOException e) {
+                diskSpaceLedger.release(videoId);
+                throw e;
+            }
 
             return ResponseEntity.ok(Map.of(
-                    "status", "initialized",
+                    "status", session.getReceivedCount() > 0 ? "resumed" : "initialized",
                     "videoId", video.getId(),
-                    "uploadId", video.getId() + "_" + System.currentTimeMillis()
+                    "uploadId", session.getUploadId()
             ));
 
         } catch (IOException e) {
@@ -126,49 +165,145 @@ public class UploadController {
 
     /**
      * POST /api/upload/chunk - Upload chunk
+     * Chunks may arrive in any order and in parallel; each one is written at
+     * chunkIndex * chunkSize. chunkSize is optional for older clients.
      */
     @PostMapping("/chunk")
     public ResponseEntity<Map<String, Object>> uploadChunk(
             @RequestParam("file") MultipartFile chunk,
             @RequestParam int chunkIndex,
             @RequestParam int totalChunks,
-            @RequestParam String filename) {
+            @RequestParam String filename,
+            @RequestParam(required = false) Long chunkSize,
+            @RequestParam(required = false) String uploadId,
+            @RequestParam(required = false) String crc32c) {
 
         try {
             String safeFilename = sanitizeFilename(filename);
             Path targetFile = uploadDir.resolve(safeFilename);
+            Optional<UploadSession> session = findSession(uploadId, safeFilename);
+
+            if (uploadId != null && session.isEmpty()) {
+                return ResponseEntity.status(404).body(Map.of(
+                        "status", "error",
+                        "message", "Unknown upload session: " + uploadId));
+            }
 
-            // Check disk space (cached)
-            if (getFreeSpace() < minDiskFree) {
+            // Sessions had their space booked at /init; anything else needs headroom now
+            if (session.isEmpty() && !diskSpaceLedger.canWrite(chunk.getSize())) {
                 Files.deleteIfExists(targetFile);
                 return ResponseEntity.status(507).body(Map.of(
                         "status", "error",
                         "message", "Disk space critically low"));
             }
 
-            // Write chunk
-            StandardOpenOption[] options = (chunkIndex == 0)
-                    ? new StandardOpenOption[]{ StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING }
-                    : new StandardOpenOption[]{ StandardOpenOption.CREATE, StandardOpenOption.APPEND };
+            // Write chunk at its own offset - no shared append position between requests
+            double progress;
+            Long expectedCrc = crc32c != null ? HashingChannel.parseHex(crc32c) : null;
+            try (InputStream in = chunk.getInputStream()) {
+                if (session.isPresent()) {
+                    uploadSessionService.writeChunk(session.get(), chunkIndex,
+                            Channels.newChannel(in), chunk.getSize(), expectedCrc);
+                    diskSpaceLedger.recordWritten(session.get().getVideoId(), chunk.getSize());
+                    pipelinedIngestService.onChunkWritten(session.get());
+                    progress = (double) session.get().getReceivedCount() / totalChunks * 100;
+                } else {
+                    long offset = resolveChunkOffset(safeFilename, chunk.getSize(), chunkIndex, totalChunks, chunkSize);
+                    uploadSessionService.writeAt(targetFile, offset, Channels.newChannel(in), chunk.getSize(), false);
+                    progress = (double) (chunkIndex + 1) / totalChunks * 100;
+                }
+            }
 
-            try (OutputStream out = Files.newOutputStream(targetFile, options);
-                 InputStream in = chunk.getInputStream()) {
+            return ResponseEntity.ok(Map.of(
+                    "status", "chunk_received",
+                    "chunkIndex", chunkIndex,
+                    "progress", String.format("%.1f%%", progress)
+            ));
 
-                byte[] buffer = new byte[STREAM_BUFFER];
-                int n;
-                while ((n = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, n);
-                }
+        } catch (UploadSessionService.ChecksumMismatchException e) {
+            return ResponseEntity.unprocessableEntity().body(Map.of(
+                    "status", "checksum_mismatch",
+                    "chunkIndex", chunkIndex,
+                    "message", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of(
+                    "status", "error",
+                    "message", e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().body(Map.of(
+                    "status", "error",
+                    "message", e.getMessage()));
+        }
+    }
+
+    /**
+     * PUT /api/upload/chunk/{uploadId} - Upload chunk as raw body
+     * Content-Range: bytes start-end/total. The body is streamed straight into the
+     * partial file, skipping the multipart temp file that POST /chunk goes through.
+     */
+    @PutMapping(value = "/chunk/{uploadId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Map<String, Object>> uploadRawChunk(
+            @PathVariable String uploadId,
+            @RequestHeader(HttpHeaders.CONTENT_RANGE) String contentRange,
+            @RequestHeader(value = "X-Chunk-CRC32C", required = false) String crc32c,
+            HttpServletRequest request) {
+
+        Optional<UploadSession> sessionOpt = uploadSessionService.getSession(uploadId);
+        if (sessionOpt.isEmpty()) {
+            return ResponseEntity.status(404).body(Map.of(
+                    "status", "error",
+                    "message", "Unknown upload session: " + uploadId));
+        }
+        UploadSession session = sessionOpt.get();
+
+        Matcher range = CONTENT_RANGE.matcher(contentRange.trim());
+        if (!range.matches()) {
+            return ResponseEntity.badRequest().body(Map.of(
+                    "status", "error",
+                    "message", "Malformed Content-Range: " + contentRange));
+        }
+
+        try {
+            long start = Long.parseLong(range.group(1));
+            long end = Long.parseLong(range.group(2));
+            long length = end - start + 1;
+
+            if (!"*".equals(range.group(3)) && Long.parseLong(range.group(3)) != session.getTotalSize()) {
+                return ResponseEntity.badRequest().body(Map.of(
+                        "status", "error",
+                        "message", "Content-Range total does not match upload size"));
             }
+            if (request.getContentLengthLong() >= 0 && request.getContentLengthLong() != length) {
+                return ResponseEntity.badRequest().body(Map.of(
+                        "status", "error",
+                        "message", "Content-Length does not match Content-Range"));
+            }
+
+            int chunkIndex = rangeToChunkIndex(session, start, length);
 
-            double progress = (double) (chunkIndex + 1) / totalChunks * 100;
+            Long expectedCrc = crc32c != null ? HashingChannel.parseHex(crc32c) : null;
+            long crc = uploadSessionService.writeChunk(session, chunkIndex,
+                    Channels.newChannel(request.getInputStream()), length, expectedCrc);
+            diskSpaceLedger.recordWritten(session.getVideoId(), length);
+            pipelinedIngestService.onChunkWritten(session);
+
+            double progress = (double) session.getReceivedCount() / session.getTotalChunks() * 100;
 
             return ResponseEntity.ok(Map.of(
                     "status", "chunk_received",
                     "chunkIndex", chunkIndex,
+                    "crc32c", HashingChannel.toHex(crc),
                     "progress", String.format("%.1f%%", progress)
             ));
 
+        } catch (UploadSessionService.ChecksumMismatchException e) {
+            return ResponseEntity.unprocessableEntity().body(Map.of(
+                    "status", "checksum_mismatch",
+                    "message", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of(
+                    "status", "error",
+                    "message", e.getMessage()));
         } catch (IOException e) {
             return ResponseEntity.internalServerError().body(Map.of(
                     "status", "error",
@@ -176,17 +311,67 @@ public class UploadController {
         }
     }
 
+    /**
+     * GET /api/upload/sessions/{uploadId} - Upload progress and missing chunk ranges
+     */
+    @GetMapping("/sessions/{uploadId}")
+    public ResponseEntity<Map<String, Object>> getSession(@PathVariable String uploadId) {
+        return uploadSessionService.getSession(uploadId)
+                .map(session -> ResponseEntity.ok(sessionToMap(session)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * GET /api/upload/progress - Current transcode progress (live updates: ws /ws/progress)
+     */
+    @GetMapping("/progress")
+    public ResponseEntity<List<Map<String, Object>>> getProgress() {
+        return ResponseEntity.ok(progressService.snapshots());
+    }
+
+    /**
+     * GET /api/upload/hls-cache - Hot segment cache hits, misses, evictions and size
+     */
+    @GetMapping("/hls-cache")
+    public ResponseEntity<Map<String, Object>> getHlsCacheStats() {
+        return ResponseEntity.ok(segmentCache.stats());
+    }
+
+    /**
+     * DELETE /api/upload/sessions/{uploadId} - Cancel upload, free its disk booking
+     */
+    @DeleteMapping("/sessions/{uploadId}")
+    public ResponseEntity<Void> cancelUpload(@PathVariable String uploadId) {
+        Optional<UploadSession> session = uploadSessionService.getSession(uploadId);
+        if (session.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            pipelinedIngestService.abort(session.get().getVideoId());
+            transcodeJobQueue.cancel(session.get().getVideoId());
+            uploadSessionService.discard(session.get());
+            diskSpaceLedger.release(session.get().getVideoId());
+            videoService.deleteVideo(session.get().getVideoId());
+            return ResponseEntity.ok().build();
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
     /**
      * POST /api/upload/complete - Complete upload and start transcoding
      */
     @PostMapping("/complete")
     public ResponseEntity<Map<String, Object>> completeUpload(
             @RequestParam String filename,
-            @RequestParam int totalChunks) {
+            @RequestParam int totalChunks,
+            @RequestParam(required = false) String uploadId,
+            @RequestParam(required = false) String sha256) {
 
         try {
             String safeFilename = sanitizeFilename(filename);
             Path uploadedFile = uploadDir.resolve(safeFilename);
+            legacyStrides.remove(safeFilename);
 
             if (!Files.exists(uploadedFile)) {
                 return ResponseEntity.badRequest().body(Map.of(
@@ -194,14 +379,71 @@ public class UploadController {
                         "message", "File not found"));
             }
 
+            // Refuse to transcode while chunks are still missing
+            Optional<UploadSession> session = findSession(uploadId, safeFilename);
+            if (session.isPresent()) {
+                if (!session.get().isComplete()) {
+                    Map<String, Object> body = sessionToMap(session.get());
+                    body.put("status", "incomplete");
+                    body.put("message", "Missing chunks");
+                    return ResponseEntity.status(409).body(body);
+                }
+
+                // Digest was built while chunks landed - only the tail is left to fold in
+                String digest = uploadSessionService.finishDigest(session.get());
+                if (sha256 != null && !sha256.equalsIgnoreCase(digest)) {
+                    pipelinedIngestService.abort(session.get().getVideoId());
+                    uploadSessionService.discard(session.get());
+                    diskSpaceLedger.release(session.get().getVideoId());
+                    videoService.updateVideoStatus(session.get().getVideoId(), VideoStatus.FAILED);
+                    return ResponseEntity.unprocessableEntity().body(Map.of(
+                            "status", "checksum_mismatch",
+                            "message", "SHA-256 mismatch: expected " + sha256 + ", got " + digest));
+                }
+                videoService.updateContentHash(session.get().getVideoId(), digest);
+                uploadSessionService.finish(session.get());
+                diskSpaceLedger.uploadFinished(session.get().getVideoId());
+
+                // Same content already transcoded - share its renditions, skip the transcode
+                Optional<Video> existing = videoService.findReusableRenditions(digest, session.get().getVideoId());
+                if (existing.isPresent()) {
+                    pipelinedIngestService.abort(session.get().getVideoId());
+                    videoService.linkToRenditions(session.get().getVideoId(), existing.get());
+                    Files.deleteIfExists(uploadedFile);
+                    diskSpaceLedger.release(session.get().getVideoId());
+                    System.out.println("[Upload] " + session.get().getVideoId()
+                            + " is a duplicate of " + existing.get().getId() + ", reusing renditions");
+
+                    return ResponseEntity.ok(Map.of(
+                            "status", "ready",
+                            "videoId", session.get().getVideoId(),
+                            "duplicateOf", existing.get().getId(),
+                            "hlsUrl", existing.get().getMasterPlaylistUrl()
+                    ));
+                }
+
+                // Renditions are already being encoded from the growing file
+                if (pipelinedIngestService.accept(session.get().getVideoId())) {
+                    return ResponseEntity.accepted().body(Map.of(
+                            "status", "processing_started",
+                            "pipelined", true,
+                            "videoId", session.get().getVideoId(),
+                            "hlsUrl", "/hls/" + session.get().getVideoId() + "/master.m3u8"
+                    ));
+                }
+            }
+
             // Get video ID (same as sanitized filename without extension)
             String videoId = safeFilename;
             if (videoId.contains(".")) {
                 videoId = videoId.substring(0, videoId.lastIndexOf('.'));
             }
 
-            // Start transcoding asynchronously
-            transcodingService.transcodeToHLS(videoId, uploadedFile);
+            // Queue transcoding - its HLS booking is held until the job ends
+            if (session.isEmpty()) {
+                diskSpaceLedger.uploadFinished(videoId);   // A session's was finished after its checks
+            }
+            transcodeJobQueue.submit(videoId, uploadedFile);
 
             return ResponseEntity.accepted().body(Map.of(
                     "status", "processing_started",
@@ -279,6 +521,9 @@ public class UploadController {
     @DeleteMapping("/videos/{id}")
     public ResponseEntity<Void> deleteVideo(@PathVariable String id) {
         try {
+            // Stop any ffmpeg still working on it - the job cleans up its own output
+            pipelinedIngestService.abort(id);
+            transcodeJobQueue.cancel(id);
             videoService.deleteVideo(id);
             return ResponseEntity.ok().build();
         } catch (IOException e) {
@@ -312,17 +557,59 @@ public class UploadController {
                 .replaceAll("^[._-]+", "");
     }
 
-    private long getFreeSpace() {
-        long now = System.currentTimeMillis();
-        if (now - cacheTimestamp > CACHE_TTL_MS) {
-            try {
-                cachedFreeSpace = Files.getFileStore(uploadDir).getUsableSpace();
-                cacheTimestamp = now;
-            } catch (IOException e) {
-                System.err.println("[DiskCheck] Failed: " + e.getMessage());
+    /**
+     * Byte offset of a chunk. Without an explicit chunkSize, non-final chunks define
+     * the stride themselves; the shorter final chunk needs a stride seen before it,
+     * a guess from the file size would land it in the wrong place.
+     */
+    private long resolveChunkOffset(String safeFilename, long size, int chunkIndex, int totalChunks,
+                                    Long chunkSize) {
+        if (chunkSize != null && chunkSize > 0) {
+            return chunkIndex * chunkSize;
+        }
+        if (totalChunks <= 1) {
+            return 0;
+        }
+        if (chunkIndex < totalChunks - 1) {
+            legacyStrides.put(safeFilename, size);
+            return chunkIndex * size;
+        }
+        Long stride = legacyStrides.get(safeFilename);
+        if (stride == null) {
+            throw new IllegalArgumentException("chunkSize unknown - send it with the final chunk or send that chunk last");
+        }
+        return chunkIndex * stride;
+    }
+
+    /**
+     * Map a byte range onto a chunk index; ranges must cover exactly one chunk
+     */
+    private int rangeToChunkIndex(UploadSession session, long start, long length) {
+        if (length <= 0 || start + length > session.getTotalSize()) {
+            throw new IllegalArgumentException("Range outside upload: " + start + "+" + length);
+        }
+        long chunkSize = session.getChunkSize();
+        if (chunkSize <= 0) {
+            // Stride unknown yet - the first range (or a whole-file range) defines it
+            if (start == 0) {
+                return 0;
             }
+            if (start + length == session.getTotalSize() && session.getTotalChunks() == 1) {
+                return 0;
+            }
+            throw new IllegalArgumentException("chunkSize unknown - send it to /init or start with the first range");
+        }
+        if (start % chunkSize != 0) {
+            throw new IllegalArgumentException("Range start " + start + " is not aligned to chunkSize " + chunkSize);
         }
-        return cachedFreeSpace;
+        return (int) (start / chunkSize);
+    }
+
+    private Optional<UploadSession> findSession(String uploadId, String safeFilename) {
+        if (uploadId != null && !uploadId.isBlank()) {
+            return uploadSessionService.getSession(uploadId);
+        }
+        return uploadSessionService.findByFilename(safeFilename);
     }
 
     private Map<String, Object> videoToMap(Video video) {
@@ -333,7 +620,10 @@ public class UploadController {
         map.put("description", video.getDescription());
         map.put("filename", video.getFilename());
         map.put("status", video.getStatus().name().toLowerCase());
-        map.put("hlsUrl", video.getStatus() == VideoStatus.READY ? video.getMasterPlaylistUrl() : null);
+        boolean playable = video.getStatus() == VideoStatus.READY || video.getStatus() == VideoStatus.PLAYABLE;
+        map.put("hlsUrl", playable ? video.getMasterPlaylistUrl() : null);
+        map.put("posterUrl", video.getPosterUrl());
+        map.put("thumbnailsUrl", video.getThumbnailsUrl());
         map.put("qualities", video.getAvailableQualities());
         map.put("views", video.getViews());
         map.put("likes", video.getLikes());
@@ -342,6 +632,22 @@ public class UploadController {
         map.put("height", video.getHeight());
         map.put("uploadedAt", video.getUploadedAt());
         map.put("processedAt", video.getProcessedAt());
+        map.put("sha256", video.getContentSha256());
+        map.put("duplicateOf", video.getDuplicateOf());
+        return map;
+    }
+
+    private Map<String, Object> sessionToMap(UploadSession session) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("uploadId", session.getUploadId());
+        map.put("videoId", session.getVideoId());
+        map.put("totalSize", session.getTotalSize());
+        map.put("chunkSize", session.getChunkSize());
+        map.put("totalChunks", session.getTotalChunks());
+        map.put("receivedChunks", session.getReceivedCount());
+        map.put("missing", session.getMissingRanges());
+        map.put("complete", session.isComplete());
+        map.put("updatedAt", session.getUpdatedAt());
         return map;
     }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package az.dev.localtube.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transcode job - one video waiting for, or going through, HLS transcoding
+ * Every change is saved to the job store as a full snapshot of the job
+ */
+public class TranscodeJob {
+
+    private String videoId;
+    private String inputFile;
+    private String uploaderId;
+    private double cost;            // Estimated encode work: seconds of video x thread weight of the ladder
+    private TranscodeJobStatus status;
+    private int attempts;
+    private String lastError;
+
+    private String workerId;                 // Node that holds the lease while RUNNING
+    private LocalDateTime leaseExpiresAt;    // Other nodes may take the job over after this
+
+    private List<String> completedQualities = new ArrayList<>();   // Survive a restart
+
+    private LocalDateTime enqueuedAt;
+    private LocalDateTime nextAttemptAt;
+    private LocalDateTime updatedAt;
+
+    @JsonIgnore
+    private Long seqNo;                      // Version of the shared store copy this was read as
+    @JsonIgnore
+    private Long primaryTerm;
+
+    // Constructors
+    public TranscodeJob() {
+    }
+
+    public TranscodeJob(String videoId, String inputFile) {
+        this.videoId = videoId;
+        this.inputFile = inputFile;
+        this.status = TranscodeJobStatus.QUEUED;
+        this.enqueuedAt = LocalDateTime.now();
+        this.nextAttemptAt = this.enqueuedAt;
+        this.updatedAt = this.enqueuedAt;
+    }
+
+    // Getters and Setters
+    public String getVideoId() {
+        return videoId;
+    }
+
+    public void setVideoId(String videoId) {
+        this.videoId = videoId;
+    }
+
+    public String getUploaderId() {
+        return uploaderId;
+    }
+
+    public void setUploaderId(String uploaderId) {
+        this.uploaderId = uploaderId;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    public void setCost(double cost) {
+        this.cost = cost;
+    }
+
+    public String getInputFile() {
+        return inputFile;
+    }
+
+    public void setInputFile(String inputFile) {
+        this.inputFile = inputFile;
+    }
+
+    public TranscodeJobStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(TranscodeJobStatus status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public List<String> getCompletedQualities() {
+        return completedQualities;
+    }
+
+    public void setCompletedQualities(List<String> completedQualities) {
+        this.completedQualities = completedQualities;
+    }
+
+    public LocalDateTime getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public void setEnqueuedAt(LocalDateTime enqueuedAt) {
+        this.enqueuedAt = enqueuedAt;
+    }
+
+    public LocalDateTime getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    public void setWorkerId(String workerId) {
+        this.workerId = workerId;
+    }
+
+    public LocalDateTime getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+
+    public void setLeaseExpiresAt(LocalDateTime leaseExpiresAt) {
+        this.leaseExpiresAt = leaseExpiresAt;
+    }
+
+    public Long getSeqNo() {
+        return seqNo;
+    }
+
+    public void setSeqNo(Long seqNo) {
+        this.seqNo = seqNo;
+    }
+
+    public Long getPrimaryTerm() {
+        return primaryTerm;
+    }
+
+    public void setPrimaryTerm(Long primaryTerm) {
+        this.primaryTerm = primaryTerm;
+    }
+}
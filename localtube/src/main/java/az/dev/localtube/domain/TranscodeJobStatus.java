@@ -0,0 +1,9 @@
+package az.dev.localtube.domain;
+
+public enum TranscodeJobStatus {
+    QUEUED,         // Waiting for a worker (or for its retry time)
+    RUNNING,        // FFmpeg working on it
+    DONE,           // Renditions published
+    FAILED,         // Out of attempts
+    CANCELLED       // Video deleted while queued or running
+}
@@ -0,0 +1,215 @@
+package az.dev.localtube.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Upload session - tracks which chunks of a chunked upload have arrived
+ * Persisted as JSON next to the partial file, received chunks as a bitmap
+ */
+public class UploadSession {
+
+    private String uploadId;
+    private String videoId;
+    private String filename;        // Sanitized name of the partial file
+    private long totalSize;
+    private long chunkSize;         // 0 until known (older clients don't send it)
+    private int totalChunks;
+    private boolean pipelined;      // Transcode while chunks are still arriving
+
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+
+    private final BitSet receivedChunks = new BitSet();
+
+    // Constructors
+    public UploadSession() {
+        this.createdAt = LocalDateTime.now();
+        this.updatedAt = this.createdAt;
+    }
+
+    public UploadSession(String uploadId, String videoId, String filename,
+                         long totalSize, long chunkSize, int totalChunks) {
+        this();
+        this.uploadId = uploadId;
+        this.videoId = videoId;
+        this.filename = filename;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.totalChunks = totalChunks;
+    }
+
+    // Getters and Setters
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    public String getVideoId() {
+        return videoId;
+    }
+
+    public void setVideoId(String videoId) {
+        this.videoId = videoId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public void setTotalSize(long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    public synchronized long getChunkSize() {
+        return chunkSize;
+    }
+
+    public synchronized void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public void setTotalChunks(int totalChunks) {
+        this.totalChunks = totalChunks;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public synchronized LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public synchronized void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    /**
+     * Received chunks as a little-endian bitmap (serialized as base64)
+     */
+    public synchronized byte[] getReceivedBitmap() {
+        return receivedChunks.toByteArray();
+    }
+
+    public synchronized void setReceivedBitmap(byte[] bitmap) {
+        receivedChunks.clear();
+        if (bitmap != null) {
+            receivedChunks.or(BitSet.valueOf(bitmap));
+        }
+    }
+
+    // Helper methods
+
+    /**
+     * Mark chunk as received, returns false if it was already marked
+     */
+    public synchronized boolean markReceived(int chunkIndex) {
+        boolean already = receivedChunks.get(chunkIndex);
+        receivedChunks.set(chunkIndex);
+        updatedAt = LocalDateTime.now();
+        return !already;
+    }
+
+    /**
+     * Clear chunk, returns false if it was not marked
+     */
+    public synchronized boolean markMissing(int chunkIndex) {
+        boolean was = receivedChunks.get(chunkIndex);
+        receivedChunks.clear(chunkIndex);
+        updatedAt = LocalDateTime.now();
+        return was;
+    }
+
+    public synchronized boolean isReceived(int chunkIndex) {
+        return receivedChunks.get(chunkIndex);
+    }
+
+    @JsonIgnore
+    public synchronized int getReceivedCount() {
+        return receivedChunks.cardinality();
+    }
+
+    /**
+     * Number of chunks received without a gap from the start of the file
+     */
+    @JsonIgnore
+    public synchronized int getContiguousChunks() {
+        return Math.min(receivedChunks.nextClearBit(0), totalChunks);
+    }
+
+    /**
+     * Bytes from the start of the file that are on disk without a gap, -1 while chunkSize is unknown
+     */
+    @JsonIgnore
+    public synchronized long getContiguousBytes() {
+        if (chunkSize <= 0) {
+            return -1;
+        }
+        return Math.min(totalSize, getContiguousChunks() * chunkSize);
+    }
+
+    @JsonIgnore
+    public synchronized boolean isComplete() {
+        return receivedChunks.nextClearBit(0) >= totalChunks;
+    }
+
+    /**
+     * Missing chunk ranges as inclusive [from, to] pairs
+     */
+    @JsonIgnore
+    public synchronized List<int[]> getMissingRanges() {
+        List<int[]> ranges = new ArrayList<>();
+        int from = receivedChunks.nextClearBit(0);
+        while (from < totalChunks) {
+            int to = Math.min(receivedChunks.nextSetBit(from), totalChunks);
+            if (to < 0) {
+                to = totalChunks;
+            }
+            ranges.add(new int[]{ from, to - 1 });
+            from = receivedChunks.nextClearBit(to);
+        }
+        return ranges;
+    }
+
+    /**
+     * Expected byte length of a chunk, -1 while chunkSize is unknown
+     */
+    public synchronized long expectedChunkLength(int chunkIndex) {
+        if (chunkSize <= 0) {
+            return -1;
+        }
+        return Math.max(0, Math.min(chunkSize, totalSize - chunkIndex * chunkSize));
+    }
+}
@@ -17,11 +17,16 @@ public class Video {
     private String uploadPath;      // Original upload path
     private String hlsPath;         // HLS directory path
     private String masterPlaylistUrl; // /hls/{name}/master.m3u8
+    private String duplicateOf;     // Video whose renditions this one shares (same content hash)
+    private String uploaderId;      // "user:{name}" or "ip:{address}" - transcode fair share
+    private String posterUrl;       // /hls/{name}/thumbs/poster.jpg
+    private String thumbnailsUrl;   // WebVTT track pointing into the scrub-preview sprite sheets
     
     private VideoStatus status;
     private List<String> availableQualities;
     
     private Long fileSize;          // Original file size in bytes
+    private String contentSha256;   // SHA-256 of the uploaded source file (hex)
     private Integer durationSeconds;
     private Integer width;
     private Integer height;
@@ -31,6 +36,7 @@ public class Video {
     private List<Comment> comments;
     
     private LocalDateTime uploadedAt;
+    private LocalDateTime processingStartedAt;
     private LocalDateTime processedAt;
     
     // Constructors
@@ -107,6 +113,38 @@ public class Video {
         this.masterPlaylistUrl = masterPlaylistUrl;
     }
     
+    public String getDuplicateOf() {
+        return duplicateOf;
+    }
+    
+    public void setDuplicateOf(String duplicateOf) {
+        this.duplicateOf = duplicateOf;
+    }
+    
+    public String getUploaderId() {
+        return uploaderId;
+    }
+    
+    public void setUploaderId(String uploaderId) {
+        this.uploaderId = uploaderId;
+    }
+    
+    public String getPosterUrl() {
+        return posterUrl;
+    }
+    
+    public void setPosterUrl(String posterUrl) {
+        this.posterUrl = posterUrl;
+    }
+    
+    public String getThumbnailsUrl() {
+        return thumbnailsUrl;
+    }
+    
+    public void setThumbnailsUrl(String thumbnailsUrl) {
+        this.thumbnailsUrl = thumbnailsUrl;
+    }
+    
     public VideoStatus getStatus() {
         return status;
     }
@@ -131,6 +169,14 @@ public class Video {
         this.fileSize = fileSize;
     }
     
+    public String getContentSha256() {
+        return contentSha256;
+    }
+    
+    public void setContentSha256(String contentSha256) {
+        this.contentSha256 = contentSha256;
+    }
+    
     public Integer getDurationSeconds() {
         return durationSeconds;
     }
@@ -187,6 +233,14 @@ public class Video {
         this.uploadedAt = uploadedAt;
     }
     
+    public LocalDateTime getProcessingStartedAt() {
+        return processingStartedAt;
+    }
+    
+    public void setProcessingStartedAt(LocalDateTime processingStartedAt) {
+        this.processingStartedAt = processingStartedAt;
+    }
+    
     public LocalDateTime getProcessedAt() {
         return processedAt;
     }
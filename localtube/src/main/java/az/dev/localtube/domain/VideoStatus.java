@@ -3,6 +3,7 @@ package az.dev.localtube.domain;
 public enum VideoStatus {
     UPLOADING,      // Chunks being uploaded
     PROCESSING,     // FFmpeg transcoding
+    PLAYABLE,       // Some renditions published, the rest still transcoding
     READY,          // Available for streaming
     FAILED,         // Processing failed
     DELETED         // Marked for deletion
@@ -0,0 +1,171 @@
+package az.dev.localtube.repository;
+
+import az.dev.localtube.domain.TranscodeJob;
+import az.dev.localtube.domain.TranscodeJobStatus;
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.OpType;
+import co.elastic.clients.elasticsearch._types.Refresh;
+import co.elastic.clients.elasticsearch.core.*;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Job store shared by every node - one document per video in Elasticsearch
+ * Saves carry the seq_no/primary_term the job was read with, so of two nodes
+ * claiming or changing the same job only the first one wins.
+ */
+@Repository
+@ConditionalOnProperty(name = "localtube.transcoding.coordination.store", havingValue = "elasticsearch")
+public class ElasticsearchJobStore implements TranscodeJobStore {
+
+    private static final int MAX_LIVE_JOBS = 10_000;
+    private static final int CONFLICT = 409;
+
+    private final ElasticsearchClient client;
+    private final String indexName;
+    private final ObjectMapper objectMapper;
+
+    public ElasticsearchJobStore(ElasticsearchClient client,
+                                 @Value("${localtube.transcoding.coordination.index:transcode-jobs}") String indexName) throws IOException {
+        this.client = client;
+        this.indexName = indexName;
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.registerModule(new JavaTimeModule());
+        this.objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        this.objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        ensureIndex();
+    }
+
+    @Override
+    public List<TranscodeJob> load() throws IOException {
+        SearchResponse<ObjectNode> response = client.search(s -> s
+                        .index(indexName)
+                        .size(MAX_LIVE_JOBS)
+                        .seqNoPrimaryTerm(true)
+                        .query(q -> q
+                                .terms(t -> t
+                                        .field("status")
+                                        .terms(v -> v.value(List.of(
+                                                FieldValue.of(TranscodeJobStatus.QUEUED.name()),
+                                                FieldValue.of(TranscodeJobStatus.RUNNING.name()))))
+                                )
+                        ),
+                ObjectNode.class
+        );
+
+        List<TranscodeJob> jobs = new ArrayList<>();
+        for (Hit<ObjectNode> hit : response.hits().hits()) {
+            TranscodeJob job = objectMapper.convertValue(hit.source(), TranscodeJob.class);
+            job.setSeqNo(hit.seqNo());
+            job.setPrimaryTerm(hit.primaryTerm());
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    @Override
+    public Optional<TranscodeJob> get(String videoId) throws IOException {
+        GetResponse<ObjectNode> response = client.get(g -> g
+                        .index(indexName)
+                        .id(videoId),
+                ObjectNode.class
+        );
+        if (!response.found()) {
+            return Optional.empty();
+        }
+
+        TranscodeJob job = objectMapper.convertValue(response.source(), TranscodeJob.class);
+        job.setSeqNo(response.seqNo());
+        job.setPrimaryTerm(response.primaryTerm());
+        return Optional.of(job);
+    }
+
+    @Override
+    public boolean save(TranscodeJob job) throws IOException {
+        if (job.getSeqNo() == null) {
+            // New job - may replace a finished one of the same video, never a live one
+            Optional<TranscodeJob> previous = get(job.getVideoId());
+            if (previous.isPresent()) {
+                TranscodeJobStatus status = previous.get().getStatus();
+                if (status == TranscodeJobStatus.QUEUED || status == TranscodeJobStatus.RUNNING) {
+                    return false;
+                }
+                job.setSeqNo(previous.get().getSeqNo());
+                job.setPrimaryTerm(previous.get().getPrimaryTerm());
+            }
+        }
+
+        job.setUpdatedAt(LocalDateTime.now());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> document = objectMapper.convertValue(job, Map.class);
+
+        IndexRequest<Map<String, Object>> request = IndexRequest.of(i -> {
+            i.index(indexName).id(job.getVideoId()).document(document);
+            if (job.getSeqNo() == null) {
+                // Visible to the other nodes' next search right away
+                i.opType(OpType.Create).refresh(Refresh.WaitFor);
+            } else {
+                i.ifSeqNo(job.getSeqNo()).ifPrimaryTerm(job.getPrimaryTerm());
+            }
+            return i;
+        });
+
+        try {
+            IndexResponse response = client.index(request);
+            job.setSeqNo(response.seqNo());
+            job.setPrimaryTerm(response.primaryTerm());
+            return true;
+        } catch (ElasticsearchException e) {
+            if (e.status() == CONFLICT) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    /**
+     * Check if index exists, create if not
+     */
+    private void ensureIndex() throws IOException {
+        boolean exists = client.indices().exists(e -> e.index(indexName)).value();
+
+        if (!exists) {
+            client.indices().create(c -> c
+                    .index(indexName)
+                    .mappings(m -> m
+                            .properties("videoId", p -> p.keyword(k -> k))
+                            .properties("inputFile", p -> p.keyword(k -> k))
+                            .properties("uploaderId", p -> p.keyword(k -> k))
+                            .properties("status", p -> p.keyword(k -> k))
+                            .properties("workerId", p -> p.keyword(k -> k))
+                            .properties("completedQualities", p -> p.keyword(k -> k))
+                            .properties("leaseExpiresAt", p -> p.date(d -> d.format("strict_date_optional_time||epoch_millis")))
+                            .properties("nextAttemptAt", p -> p.date(d -> d.format("strict_date_optional_time||epoch_millis")))
+                    )
+            );
+            System.out.println("[ES] Created index: " + indexName);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package az.dev.localtube.repository;
+
+import az.dev.localtube.domain.TranscodeJob;
+import az.dev.localtube.domain.TranscodeJobStatus;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Job store of a single node - every state change is appended to a journal
+ * (one JSON snapshot per line, fsync'd), so queued and interrupted jobs survive restarts
+ * Nothing else writes the journal, so saves never conflict.
+ */
+@Repository
+@ConditionalOnProperty(name = "localtube.transcoding.coordination.store", havingValue = "local", matchIfMissing = true)
+public class JournalJobStore implements TranscodeJobStore {
+
+    private static final String JOURNAL_FILE = "transcode-jobs.journal";
+
+    private final ObjectMapper objectMapper;
+    private final Path journalPath;
+    private final int compactAfter;
+
+    private final Map<String, TranscodeJob> live = new LinkedHashMap<>();   // guarded by this
+    private int journalLines;                                               // guarded by this
+    private FileChannel journal;                                            // guarded by this
+
+    public JournalJobStore(@Value("${localtube.transcoding.journal-dir:jobs}") String journalDir,
+                           @Value("${localtube.transcoding.journal-compact-after:1000}") int compactAfter) throws IOException {
+        this.compactAfter = compactAfter;
+
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.registerModule(new JavaTimeModule());
+        this.objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        Path dir = Paths.get(journalDir);
+        Files.createDirectories(dir);
+        this.journalPath = dir.resolve(JOURNAL_FILE);
+
+        synchronized (this) {
+            replayJournal();
+            compact();
+        }
+    }
+
+    @Override
+    public synchronized List<TranscodeJob> load() {
+        return new ArrayList<>(live.values());
+    }
+
+    @Override
+    public synchronized Optional<TranscodeJob> get(String videoId) {
+        return Optional.ofNullable(live.get(videoId));
+    }
+
+    @Override
+    public synchronized boolean save(TranscodeJob job) throws IOException {
+        if (isTerminal(job.getStatus())) {
+            live.remove(job.getVideoId());
+        } else {
+            live.put(job.getVideoId(), job);
+        }
+        append(job);
+        return true;
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Rebuild the live jobs from the journal - last snapshot per video wins,
+     * jobs that were running when the process died go back to the queue
+     */
+    private void replayJournal() {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                TranscodeJob job;
+                try {
+                    job = objectMapper.readValue(line, TranscodeJob.class);
+                } catch (IOException e) {
+                    // Torn last line of a crash - everything before it is intact
+                    System.err.println("[JobJournal] Skipping unreadable journal line");
+                    continue;
+                }
+                live.remove(job.getVideoId());
+                if (!isTerminal(job.getStatus())) {
+                    live.put(job.getVideoId(), job);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[JobJournal] Journal replay failed: " + e.getMessage());
+        }
+
+        for (TranscodeJob job : live.values()) {
+            if (job.getStatus() == TranscodeJobStatus.RUNNING) {
+                job.setStatus(TranscodeJobStatus.QUEUED);
+                job.setNextAttemptAt(LocalDateTime.now());
+                job.setWorkerId(null);
+                job.setLeaseExpiresAt(null);
+            }
+            if (job.getUploaderId() == null) {
+                job.setUploaderId("unknown");   // Journaled before jobs had an uploader
+            }
+        }
+        if (!live.isEmpty()) {
+            System.out.println("[JobJournal] Recovered " + live.size() + " transcode job(s)");
+        }
+    }
+
+    private void append(TranscodeJob job) throws IOException {
+        job.setUpdatedAt(LocalDateTime.now());
+        byte[] line = (objectMapper.writeValueAsString(job) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        journal.force(false);
+
+        if (++journalLines > compactAfter) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the journal with just the live jobs (temp file + atomic rename)
+     */
+    private void compact() throws IOException {
+        Path tmp = journalPath.resolveSibling(JOURNAL_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (TranscodeJob job : live.values()) {
+                ByteBuffer buffer = ByteBuffer.wrap(
+                        (objectMapper.writeValueAsString(job) + "\n").getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(true);
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+        Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journalLines = live.size();
+    }
+
+    private static boolean isTerminal(TranscodeJobStatus status) {
+        return status == TranscodeJobStatus.DONE || status == TranscodeJobStatus.FAILED
+                || status == TranscodeJobStatus.CANCELLED;
+    }
+}
@@ -0,0 +1,36 @@
+package az.dev.localtube.repository;
+
+import az.dev.localtube.domain.TranscodeJob;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Where transcode jobs live between state changes
+ * The local journal serves a single node; a shared store lets several nodes
+ * claim jobs with leases, each save only succeeding against the version last read.
+ */
+public interface TranscodeJobStore {
+
+    /**
+     * Jobs that are still queued or running
+     */
+    List<TranscodeJob> load() throws IOException;
+
+    /**
+     * Current copy of one job - also a cancelled or finished one, as far as the store keeps those
+     */
+    Optional<TranscodeJob> get(String videoId) throws IOException;
+
+    /**
+     * Save a full snapshot; false if another node changed the job since it was read
+     * (or created it first). Terminal statuses drop the job from load().
+     */
+    boolean save(TranscodeJob job) throws IOException;
+
+    /**
+     * Other nodes see and change the same jobs
+     */
+    boolean isShared();
+}
@@ -4,7 +4,12 @@ import az.dev.localtube.domain.Comment;
 import az.dev.localtube.domain.Video;
 import az.dev.localtube.domain.VideoStatus;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.Refresh;
 import co.elastic.clients.elasticsearch._types.Result;
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+import co.elastic.clients.elasticsearch.indices.GetMappingResponse;
+import co.elastic.clients.elasticsearch.indices.get_mapping.IndexMappingRecord;
 import co.elastic.clients.elasticsearch.core.*;
 import co.elastic.clients.elasticsearch.core.search.Hit;
 import co.elastic.clients.json.JsonData;
@@ -31,6 +36,10 @@ public class VideoRepository {
     private final String indexName;
     private final ObjectMapper objectMapper;
 
+    // Exact-match fields for hlsPath and contentSha256 - resolved against the live mapping by ensureIndex
+    private volatile String hlsPathField;
+    private volatile String contentHashField;
+
     public VideoRepository(ElasticsearchClient client,
                            @Value("${localtube.elasticsearch.index}") String indexName) {
         this.client = client;
@@ -43,6 +52,18 @@ public class VideoRepository {
      * Save or update a video
      */
     public Video save(Video video) throws IOException {
+        return index(video, Refresh.False);
+    }
+
+    /**
+     * Save and return only once searches see the change - for documents that
+     * reference counts (countByHlsPath) must not miss
+     */
+    public Video saveSearchable(Video video) throws IOException {
+        return index(video, Refresh.WaitFor);
+    }
+
+    private Video index(Video video, Refresh refresh) throws IOException {
         if (video.getId() == null) {
             video.setId(generateId());
         }
@@ -55,6 +76,7 @@ public class VideoRepository {
                 .index(indexName)
                 .id(video.getId())
                 .document(document)
+                .refresh(refresh)
         );
 
         IndexResponse response = client.index(request);
@@ -115,8 +137,16 @@ public class VideoRepository {
      * Find videos by status
      */
     public List<Video> findByStatus(VideoStatus status) throws IOException {
+        return findByStatus(status, 10);
+    }
+
+    /**
+     * Find up to size videos by status
+     */
+    public List<Video> findByStatus(VideoStatus status, int size) throws IOException {
         SearchResponse<ObjectNode> response = client.search(s -> s
                         .index(indexName)
+                        .size(size)
                         .query(q -> q
                                 .term(t -> t
                                         .field("status")
@@ -135,6 +165,50 @@ public class VideoRepository {
         return videos;
     }
 
+    /**
+     * Find videos by SHA-256 of their source file
+     */
+    public List<Video> findByContentHash(String sha256) throws IOException {
+        String field = contentHashField();
+        SearchResponse<ObjectNode> response = client.search(s -> s
+                        .index(indexName)
+                        .query(q -> q
+                                .term(t -> t
+                                        .field(field)
+                                        .value(sha256)
+                                )
+                        ),
+                ObjectNode.class
+        );
+
+        List<Video> videos = new ArrayList<>();
+        for (Hit<ObjectNode> hit : response.hits().hits()) {
+            Video video = objectMapper.convertValue(hit.source(), Video.class);
+            videos.add(video);
+        }
+
+        return videos;
+    }
+
+    /**
+     * Count videos that reference an HLS directory (reference count of shared renditions)
+     */
+    public long countByHlsPath(String hlsPath) throws IOException {
+        // Videos linked to shared renditions are saved with saveSearchable, so no refresh here
+        String field = hlsPathField();
+        CountResponse response = client.count(c -> c
+                .index(indexName)
+                .query(q -> q
+                        .term(t -> t
+                                .field(field)
+                                .value(hlsPath)
+                        )
+                )
+        );
+
+        return response.count();
+    }
+
     /**
      * Search videos by title or description
      */
@@ -244,9 +318,10 @@ public class VideoRepository {
     }
 
     /**
-     * Check if index exists, create if not
+     * Check if index exists, create if not; an index that predates the keyword
+     * mappings gets a keyword view of the fields that are matched exactly
      */
-    public void ensureIndex() throws IOException {
+    public synchronized void ensureIndex() throws IOException {
         boolean exists = client.indices().exists(e -> e.index(indexName)).value();
 
         if (!exists) {
@@ -257,6 +332,8 @@ public class VideoRepository {
                             .properties("title", p -> p.text(t -> t.analyzer("standard")))
                             .properties("description", p -> p.text(t -> t.analyzer("standard")))
                             .properties("filename", p -> p.keyword(k -> k))
+                            .properties("hlsPath", p -> p.keyword(k -> k))
+                            .properties("duplicateOf", p -> p.keyword(k -> k))
                             .properties("status", p -> p.keyword(k -> k))
                             .properties("availableQualities", p -> p.keyword(k -> k))
                             .properties("uploadedAt", p -> p.date(d -> d.format("strict_date_optional_time||epoch_millis")))
@@ -267,10 +344,83 @@ public class VideoRepository {
                             .properties("height", p -> p.integer(i -> i))
                             .properties("durationSeconds", p -> p.integer(i -> i))
                             .properties("fileSize", p -> p.long_(l -> l))
+                            .properties("contentSha256", p -> p.keyword(k -> k))
                     )
             );
             System.out.println("[ES] Created index: " + indexName);
+            hlsPathField = "hlsPath";
+            contentHashField = "contentSha256";
+            return;
+        }
+
+        GetMappingResponse mapping = client.indices().getMapping(g -> g.index(indexName));
+        Map<String, Property> properties = mapping.result().values().stream()
+                .findFirst()
+                .map(IndexMappingRecord::mappings)
+                .map(m -> m.properties())
+                .orElse(Map.of());
+        hlsPathField = ensureKeywordField("hlsPath", properties.get("hlsPath"));
+        contentHashField = ensureKeywordField("contentSha256", properties.get("contentSha256"));
+    }
+
+    /**
+     * Field to run term queries against for a property mapped as mapped; null if
+     * the property first needs a keyword sub-field
+     */
+    static String keywordField(String field, Property mapped) {
+        if (mapped == null || mapped.isKeyword()) {
+            return field;
+        }
+        if (mapped.isText()) {
+            Property keyword = mapped.text().fields().get("keyword");
+            if (keyword != null && keyword.isKeyword()) {
+                return field + ".keyword";
+            }
+        }
+        return null;
+    }
+
+    private String ensureKeywordField(String field, Property mapped) throws IOException {
+        String resolved = keywordField(field, mapped);
+        if (mapped == null) {
+            // Not indexed yet - map it as a keyword before the first document does it as text
+            client.indices().putMapping(p -> p
+                    .index(indexName)
+                    .properties(field, q -> q.keyword(k -> k))
+            );
+        } else if (resolved == null) {
+            if (!mapped.isText()) {
+                throw new IOException("Cannot match " + field + " exactly, it is mapped as " + mapped._kind());
+            }
+            // Add a keyword sub-field and re-index the existing documents in place so it gets filled
+            client.indices().putMapping(p -> p
+                    .index(indexName)
+                    .properties(field, q -> q.text(t -> t.fields("keyword", f -> f.keyword(k -> k))))
+            );
+            client.updateByQuery(u -> u
+                    .index(indexName)
+                    .query(q -> q.exists(e -> e.field(field)))
+                    .conflicts(Conflicts.Proceed)
+                    .refresh(true)
+            );
+            resolved = field + ".keyword";
+            System.out.println("[ES] Added " + resolved + " to index " + indexName);
+        }
+        return resolved;
+    }
+
+    private String hlsPathField() throws IOException {
+        if (hlsPathField == null) {
+            ensureIndex();
+        }
+        return hlsPathField;
+    }
+
+    private String contentHashField() throws IOException {
+        if (contentHashField == null) {
+            ensureIndex();
         }
+        return contentHashField;
     }
 
     /**
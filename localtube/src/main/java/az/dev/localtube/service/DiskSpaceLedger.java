@@ -0,0 +1,212 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.UploadSession;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Disk space ledger - books upload bytes plus estimated HLS output per video
+ * Admission checks free space minus what is already promised to other uploads,
+ * so concurrent uploads cannot all pass the check and then run out of disk.
+ */
+@Service
+public class DiskSpaceLedger {
+
+    private final Path uploadDir;
+    private final Path hlsDir;
+    private final long minDiskFree;
+    private final double hlsSizeFactor;
+    private final long idleTtlMs;
+
+    private final Map<String, Booking> bookings = new HashMap<>();   // guarded by this
+
+    public DiskSpaceLedger(UploadSessionService uploadSessionService,
+                           @Value("${localtube.storage.upload-dir}") String uploadDirPath,
+                           @Value("${localtube.storage.hls-dir}") String hlsDirPath,
+                           @Value("${localtube.storage.min-disk-free}") long minDiskFree,
+                           @Value("${localtube.storage.hls-size-factor:1.5}") double hlsSizeFactor,
+                           @Value("${localtube.storage.reservation-idle-ttl:6h}") Duration idleTtl) throws IOException {
+        this.uploadDir = Paths.get(uploadDirPath);
+        this.hlsDir = Paths.get(hlsDirPath);
+        this.minDiskFree = minDiskFree;
+        this.hlsSizeFactor = hlsSizeFactor;
+        this.idleTtlMs = idleTtl.toMillis();
+
+        Files.createDirectories(this.uploadDir);
+        Files.createDirectories(this.hlsDir);
+
+        // Uploads restored after a restart keep their share of the disk
+        for (UploadSession session : uploadSessionService.getSessions()) {
+            Booking booking = newBooking(session.getTotalSize());
+            booking.uploadWritten = Math.min(session.getTotalSize(),
+                    session.getReceivedCount() * Math.max(0, session.getChunkSize()));
+            bookings.put(session.getVideoId(), booking);
+        }
+    }
+
+    /**
+     * Book space for an upload and its HLS output, false if the disk can't take it
+     */
+    public synchronized boolean reserve(String videoId, long uploadBytes) throws IOException {
+        Booking previous = bookings.remove(videoId);
+        Booking booking = newBooking(uploadBytes);
+
+        if (!fits(booking)) {
+            if (previous != null) {
+                bookings.put(videoId, previous);
+            }
+            return false;
+        }
+
+        bookings.put(videoId, booking);
+        System.out.println("[DiskLedger] Reserved " + toMb(booking.uploadBytes) + " MB upload + "
+                + toMb(booking.hlsBytes) + " MB HLS for " + videoId);
+        return true;
+    }
+
+    /**
+     * Book the HLS output of a transcode resumed after a restart - its upload is
+     * on disk already and was admitted before, so this never refuses
+     */
+    public synchronized void reserveTranscode(String videoId, long uploadBytes) {
+        if (bookings.containsKey(videoId)) {
+            return;
+        }
+        Booking booking = newBooking(uploadBytes);
+        booking.uploadWritten = uploadBytes;
+        booking.transcoding = true;
+        bookings.put(videoId, booking);
+        System.out.println("[DiskLedger] Reserved " + toMb(booking.hlsBytes) + " MB HLS for resumed " + videoId);
+    }
+
+    /**
+     * Bytes landed on disk - they now show up in usable space instead of the booking
+     */
+    public synchronized void recordWritten(String videoId, long bytes) {
+        Booking booking = bookings.get(videoId);
+        if (booking != null) {
+            booking.uploadWritten = Math.min(booking.uploadBytes, booking.uploadWritten + bytes);
+            booking.touchedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Upload complete - only the HLS part stays booked until transcoding ends
+     */
+    public synchronized void uploadFinished(String videoId) {
+        Booking booking = bookings.get(videoId);
+        if (booking != null) {
+            booking.uploadWritten = booking.uploadBytes;
+            booking.transcoding = true;
+            booking.touchedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Drop booking (transcode finished or failed, upload cancelled or expired)
+     */
+    public synchronized void release(String videoId) {
+        if (bookings.remove(videoId) != null) {
+            System.out.println("[DiskLedger] Released booking for " + videoId);
+        }
+    }
+
+    /**
+     * Room for an unbooked write of this many bytes (uploads without a session)
+     */
+    public synchronized boolean canWrite(long bytes) throws IOException {
+        return available(uploadDir) >= bytes;
+    }
+
+    /**
+     * Usable bytes on the upload filesystem not promised to anyone
+     */
+    public synchronized long available(Path dir) throws IOException {
+        FileStore store = Files.getFileStore(dir);
+        return store.getUsableSpace() - outstanding(store) - minDiskFree;
+    }
+
+    /**
+     * Release bookings of uploads that stopped sending chunks
+     */
+    @Scheduled(fixedDelayString = "${localtube.storage.reservation-sweep-ms:60000}")
+    public synchronized void expireIdle() {
+        long cutoff = System.currentTimeMillis() - idleTtlMs;
+        bookings.entrySet().removeIf(e -> {
+            boolean idle = !e.getValue().transcoding && e.getValue().touchedAt < cutoff;
+            if (idle) {
+                System.out.println("[DiskLedger] Booking for " + e.getKey() + " expired");
+            }
+            return idle;
+        });
+    }
+
+    // Helper methods
+
+    private Booking newBooking(long uploadBytes) {
+        Booking booking = new Booking();
+        booking.uploadBytes = uploadBytes;
+        booking.hlsBytes = (long) (uploadBytes * hlsSizeFactor);
+        booking.touchedAt = System.currentTimeMillis();
+        return booking;
+    }
+
+    /**
+     * Check the new booking against every filesystem it lands on
+     * (uploads and HLS output may or may not share one)
+     */
+    private boolean fits(Booking booking) throws IOException {
+        FileStore uploadStore = Files.getFileStore(uploadDir);
+        FileStore hlsStore = Files.getFileStore(hlsDir);
+
+        if (uploadStore.equals(hlsStore)) {
+            long free = uploadStore.getUsableSpace() - outstanding(uploadStore) - minDiskFree;
+            return free >= booking.uploadBytes + booking.hlsBytes;
+        }
+        long uploadFree = uploadStore.getUsableSpace() - outstanding(uploadStore) - minDiskFree;
+        long hlsFree = hlsStore.getUsableSpace() - outstanding(hlsStore) - minDiskFree;
+        return uploadFree >= booking.uploadBytes && hlsFree >= booking.hlsBytes;
+    }
+
+    /**
+     * Booked bytes on a filesystem that have not been written yet
+     */
+    private long outstanding(FileStore store) throws IOException {
+        boolean uploads = Files.getFileStore(uploadDir).equals(store);
+        boolean hls = Files.getFileStore(hlsDir).equals(store);
+
+        long total = 0;
+        for (Booking booking : bookings.values()) {
+            if (uploads) {
+                total += booking.uploadBytes - booking.uploadWritten;
+            }
+            if (hls) {
+                total += booking.hlsBytes;
+            }
+        }
+        return total;
+    }
+
+    private static long toMb(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+
+    // Inner classes
+    private static class Booking {
+        long uploadBytes;
+        long uploadWritten;
+        long hlsBytes;
+        boolean transcoding;
+        long touchedAt;
+    }
+}
@@ -0,0 +1,306 @@
+package az.dev.localtube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HLS segment cache - the hottest playlists and segments held off-heap in direct buffers
+ * Eviction is LRU, admission TinyLFU: a count-min sketch estimates how often every file
+ * was asked for lately, and a file only displaces cached ones that are asked for less.
+ * A crawl through the whole library (every file once) therefore cannot flush it.
+ * Entries are checked against the file's size and mtime on every hit, so a rewritten
+ * playlist or a re-transcoded video is never served stale.
+ * A file is loaded by one request at a time, with its room booked before the read, so
+ * cached plus loading buffers never exceed max-size; max-size itself is held to half of
+ * the JVM's direct memory limit. Requests that miss while a load runs read from disk.
+ */
+@Service
+public class HlsSegmentCache {
+
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final FrequencySketch sketch;
+
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);   // guarded by this
+    private final Set<Path> loading = new HashSet<>();                                          // guarded by this
+    private long usedBytes;                  // Cached plus booked for loads in flight, guarded by this
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public HlsSegmentCache(@Value("${localtube.hls.cache.enabled:true}") boolean enabled,
+                           @Value("${localtube.hls.cache.max-size:256MB}") DataSize maxSize,
+                           @Value("${localtube.hls.cache.max-entry-size:16MB}") DataSize maxEntrySize) {
+        long directLimit = maxDirectMemory();
+        long maxBytes = maxSize.toBytes();
+        if (maxBytes > directLimit / 2) {
+            // Tomcat and NIO need direct buffers too - running out throws OutOfMemoryError
+            System.err.println("[HlsCache] max-size " + maxBytes / (1024 * 1024) + " MB is over half of the "
+                    + directLimit / (1024 * 1024) + " MB direct memory limit, using " + directLimit / 2 / (1024 * 1024) + " MB");
+            maxBytes = directLimit / 2;
+        }
+        this.enabled = enabled && maxBytes > 0;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntrySize.toBytes(), Integer.MAX_VALUE);
+        // About one counter row slot per 64KB of cache, sampled over ten times that many requests
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, maxBytes / (64 * 1024))));
+    }
+
+    /**
+     * Contents of file from the cache, loading it if it is worth a place there;
+     * null means serve it from disk
+     */
+    public ByteBuffer get(Path file, long size, long lastModified) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+
+        synchronized (this) {
+            sketch.increment(file);
+            Entry entry = entries.get(file);
+            if (entry != null) {
+                if (entry.size == size && entry.lastModified == lastModified) {
+                    hits.increment();
+                    return entry.data.duplicate();
+                }
+                remove(file);   // Rewritten since it was cached
+            }
+            misses.increment();
+            if (loading.contains(file)) {
+                return null;    // Another request is loading it - read from disk meanwhile
+            }
+            if (size <= 0 || size > maxEntryBytes) {
+                rejections.increment();
+                return null;
+            }
+            if (!makeRoom(file, size)) {
+                return null;
+            }
+            loading.add(file);
+            usedBytes += size;  // Booked before the buffer is allocated
+        }
+
+        // Read outside the lock - other requests go on meanwhile
+        ByteBuffer data = null;
+        try {
+            data = read(file, size);
+        } finally {
+            synchronized (this) {
+                if (loading.remove(file) && data != null) {
+                    Entry replaced = entries.put(file, new Entry(data, size, lastModified));
+                    if (replaced != null) {
+                        usedBytes -= replaced.size;
+                    }
+                } else {
+                    usedBytes -= size;   // Torn read, failed read or invalidated meanwhile
+                }
+            }
+        }
+        return data != null ? data.duplicate() : null;
+    }
+
+    /**
+     * Drop everything cached below dir (a deleted or re-transcoded video)
+     */
+    public synchronized void invalidate(Path dir) {
+        Path prefix = dir.toAbsolutePath().normalize();
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Entry> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                usedBytes -= e.getValue().size;
+                it.remove();
+            }
+        }
+        // Loads in flight below dir are dropped when they finish
+        loading.removeIf(file -> file.startsWith(prefix));
+    }
+
+    public synchronized Map<String, Object> stats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("entries", entries.size());
+        stats.put("usedBytes", usedBytes);
+        stats.put("loading", loading.size());
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", hitCount + missCount > 0 ? Math.round(1000.0 * hitCount / (hitCount + missCount)) / 1000.0 : null);
+        stats.put("evictions", evictions.sum());
+        stats.put("rejections", rejections.sum());
+        return stats;
+    }
+
+    /**
+     * Fits into free space, or is asked for more often than every entry it would push out
+     */
+    private boolean admissible(Path file, long size) {
+        long needed = usedBytes + size - maxBytes;
+        if (needed <= 0) {
+            return true;
+        }
+        int frequency = sketch.frequency(file);
+        for (Map.Entry<Path, Entry> e : entries.entrySet()) {   // Least recently used first
+            if (sketch.frequency(e.getKey()) >= frequency) {
+                return false;
+            }
+            needed -= e.getValue().size;
+            if (needed <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean makeRoom(Path file, long size) {
+        if (!admissible(file, size)) {
+            rejections.increment();
+            return false;
+        }
+        List<Path> victims = new ArrayList<>();
+        long needed = usedBytes + size - maxBytes;
+        for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+            if (needed <= 0) {
+                break;
+            }
+            victims.add(e.getKey());
+            needed -= e.getValue().size;
+        }
+        for (Path victim : victims) {
+            remove(victim);
+            evictions.increment();
+        }
+        return true;
+    }
+
+    private void remove(Path file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            usedBytes -= entry.size;
+        }
+    }
+
+    /**
+     * -XX:MaxDirectMemorySize, which defaults to the maximum heap size
+     */
+    private static long maxDirectMemory() {
+        try {
+            HotSpotDiagnosticMXBean vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long configured = Long.parseLong(vm.getVMOption("MaxDirectMemorySize").getValue());
+            if (configured > 0) {
+                return configured;
+            }
+        } catch (RuntimeException e) {
+            // Not a HotSpot VM - assume the default
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    private ByteBuffer read(Path file, long size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // Keep reading
+            }
+        }
+        if (data.hasRemaining()) {
+            return null;   // Shrank while being read - do not cache a torn copy
+        }
+        data.flip();
+        return data.asReadOnlyBuffer();
+    }
+
+    // Inner classes
+    private static class Entry {
+        final ByteBuffer data;
+        final long size;
+        final long lastModified;
+
+        Entry(ByteBuffer data, long size, long lastModified) {
+            this.data = data;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters; all counters are halved every sampleSize
+     * increments so yesterday's hits fade and newly popular videos can get in
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+        final byte[][] counters;
+        final int mask;
+        final int sampleSize;
+        int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+            this.counters = new byte[DEPTH][size];
+            this.mask = size - 1;
+            this.sampleSize = size * 10;
+        }
+
+        int frequency(Object key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        void increment(Object key) {
+            int hash = key.hashCode();
+            int min = frequency(key);
+            if (min < MAX_COUNT) {
+                // Conservative update - only the counters at the minimum grow
+                for (int i = 0; i < DEPTH; i++) {
+                    int index = index(hash, i);
+                    if (counters[i][index] == min) {
+                        counters[i][index]++;
+                    }
+                }
+            }
+            if (++additions >= sampleSize) {
+                for (byte[] row : counters) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.service.TranscodingService.QualityProfile;
+import az.dev.localtube.service.TranscodingService.VideoCodec;
+import az.dev.localtube.service.TranscodingService.VideoInfo;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Per-title ladder - sizes the rendition ladder to the content
+ * A few short windows of the source are encoded at 540p with the production CRF;
+ * their bitrate says how hard the title is to compress. From that each rung gets
+ * a rate cap. A rung is dropped when the one above it is already cheap enough for any
+ * viewer, or would cost about as much as it.
+ * The sample encodes are run by the caller (TranscodingService) like any rendition:
+ * under a core grant, tracked for cancellation and reporting progress.
+ */
+@Service
+public class PerTitleLadder {
+
+    private static final int PROBE_WIDTH = 960;
+    private static final int PROBE_HEIGHT = 540;
+    private static final double PIXEL_EXPONENT = 0.75;   // Bitrate grows slower than pixel count
+    private static final long MIN_MAXRATE = 300_000;
+    static final int PROBE_THREADS = 4;                  // x264 at 540p stops scaling soon after
+
+    private final boolean enabled;
+    private final int samples;
+    private final int sampleSeconds;
+    private final double capHeadroom;
+    private final double minRungStep;
+    private final long lowBandwidth;
+
+    public PerTitleLadder(@Value("${localtube.transcoding.per-title.enabled:true}") boolean enabled,
+                          @Value("${localtube.transcoding.per-title.samples:5}") int samples,
+                          @Value("${localtube.transcoding.per-title.sample-seconds:4}") int sampleSeconds,
+                          @Value("${localtube.transcoding.per-title.cap-headroom:1.5}") double capHeadroom,
+                          @Value("${localtube.transcoding.per-title.min-rung-step:1.25}") double minRungStep,
+                          @Value("${localtube.transcoding.per-title.low-bandwidth:800000}") long lowBandwidth) {
+        this.enabled = enabled;
+        this.samples = samples;
+        this.sampleSeconds = sampleSeconds;
+        this.capHeadroom = capHeadroom;
+        this.minRungStep = minRungStep;
+        this.lowBandwidth = lowBandwidth;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Fit the static ladder to this input; the static ladder's bandwidths act as ceilings.
+     * Sample encodes use threads and are started through runner.
+     */
+    List<QualityProfile> adapt(Path input, VideoInfo info, List<QualityProfile> ladder, int threads,
+                               SampleRunner runner) {
+        if (!enabled || ladder.isEmpty()) {
+            return ladder;
+        }
+
+        long probeBitrate;
+        try {
+            probeBitrate = measureComplexity(input, info.durationSeconds, threads, runner);
+        } catch (Exception e) {
+            System.err.println("[PerTitle] Complexity probe failed, using static ladder: " + e.getMessage());
+            return ladder;
+        }
+        if (probeBitrate <= 0) {
+            return ladder;
+        }
+        System.out.println("[PerTitle] " + input.getFileName() + ": " + probeBitrate / 1000 + " kb/s at 540p");
+
+        // Each codec is its own ladder - the players pick one by CODECS, then switch within it
+        Map<VideoCodec, List<QualityProfile>> byCodec = new LinkedHashMap<>();
+        for (QualityProfile rung : ladder) {
+            byCodec.computeIfAbsent(rung.codec, c -> new ArrayList<>()).add(rung);
+        }
+        List<QualityProfile> adapted = new ArrayList<>();
+        for (List<QualityProfile> rungs : byCodec.values()) {
+            adapted.addAll(fit(rungs, probeBitrate));
+        }
+        return adapted;
+    }
+
+    /**
+     * Estimated bitrate and cap for every rung of one codec, then prune
+     */
+    private List<QualityProfile> fit(List<QualityProfile> ladder, long probeBitrate) {
+        List<QualityProfile> capped = new ArrayList<>();
+        for (QualityProfile rung : ladder) {
+            double pixelRatio = (double) rung.width * rung.height / (PROBE_WIDTH * PROBE_HEIGHT);
+            long estimate = (long) (probeBitrate * Math.pow(pixelRatio, PIXEL_EXPONENT) * rung.codec.efficiency);
+            long maxrate = Math.max(MIN_MAXRATE, Math.min(rung.bandwidth, (long) (estimate * capHeadroom)));
+            capped.add(new QualityProfile(rung.label, rung.width, rung.height,
+                    (int) Math.min(estimate, maxrate), (int) maxrate, rung.codec));
+        }
+
+        // The top rung always stays; a lower one must be worth switching down to
+        List<QualityProfile> kept = new ArrayList<>();
+        QualityProfile above = capped.get(capped.size() - 1);
+        kept.add(0, above);
+        for (int i = capped.size() - 2; i >= 0; i--) {
+            QualityProfile rung = capped.get(i);
+            if (above.bandwidth < lowBandwidth) {
+                System.out.println("[PerTitle] Dropping " + rung.label + ", " + above.label + " needs only "
+                        + above.bandwidth / 1000 + " kb/s");
+            } else if ((double) above.bandwidth / rung.bandwidth < minRungStep) {
+                System.out.println("[PerTitle] Dropping " + rung.label + ", barely cheaper than " + above.label);
+            } else {
+                kept.add(0, rung);
+                above = rung;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Average bitrate of the sample windows encoded at 540p
+     */
+    private long measureComplexity(Path input, int durationSeconds, int threads, SampleRunner runner)
+            throws IOException, InterruptedException {
+        int windows = durationSeconds > samples * sampleSeconds ? samples : 1;
+        double length = windows == 1 ? Math.max(1, Math.min(durationSeconds, samples * sampleSeconds)) : sampleSeconds;
+
+        long totalBytes = 0;
+        double totalSeconds = 0;
+        for (int i = 0; i < windows; i++) {
+            // Spread windows evenly, away from the very start (intros, black frames)
+            double start = windows == 1 ? 0 : (durationSeconds - length) * (i + 0.5) / windows;
+            totalBytes += encodeSample(input, start, length, threads, runner);
+            totalSeconds += length;
+        }
+        return totalSeconds > 0 ? (long) (totalBytes * 8 / totalSeconds) : 0;
+    }
+
+    private long encodeSample(Path input, double start, double length, int threads, SampleRunner runner)
+            throws IOException, InterruptedException {
+        Path output = Files.createTempFile("localtube-probe-", ".ts");
+        try {
+            List<String> cmd = List.of(
+                    "ffmpeg",
+                    "-v", "error",
+                    "-threads", String.valueOf(threads),
+                    "-ss", String.format(Locale.ROOT, "%.3f", start),
+                    "-t", String.format(Locale.ROOT, "%.3f", length),
+                    "-i", input.toAbsolutePath().toString(),
+                    "-an",
+                    "-vf", "scale=" + PROBE_WIDTH + ":" + PROBE_HEIGHT
+                            + ":force_original_aspect_ratio=decrease,pad=" + PROBE_WIDTH + ":" + PROBE_HEIGHT
+                            + ":(ow-iw)/2:(oh-ih)/2",
+                    "-c:v", "libx264",
+                    "-threads", String.valueOf(threads),
+                    "-preset", "veryfast",
+                    "-crf", "23",
+                    "-y",
+                    "-f", "mpegts",
+                    output.toString()
+            );
+            if (runner.run(cmd, length) != 0) {
+                throw new IOException("sample encode at " + (long) start + "s failed");
+            }
+            return Files.size(output);
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    // Inner classes
+
+    /**
+     * Runs one sample encode to its end and returns ffmpeg's exit code;
+     * spanSeconds is the stretch of media it covers
+     */
+    @FunctionalInterface
+    interface SampleRunner {
+        int run(List<String> command, double spanSeconds) throws IOException, InterruptedException;
+    }
+}
@@ -0,0 +1,531 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.UploadSession;
+import az.dev.localtube.domain.VideoStatus;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pipelined ingest - transcode an upload while its chunks are still arriving
+ * One ffmpeg decodes the contiguous prefix of the partial file from a pipe as it grows and
+ * encodes every rendition, so encoding overlaps the network transfer.
+ * Only streamable containers qualify (MPEG-TS, Matroska/WebM, FLV, fast-start MP4/MOV).
+ * The encode holds the cores TranscodingScheduler sees it use - little while it waits on the
+ * network - and reports progress like queued ones; once /complete accepts the upload its job
+ * is recorded in the job queue, so a restart resumes it the normal way. Thumbnails ride along
+ * in the decode; the separate audio group is encoded from the complete file after /complete.
+ * Pipelined uploads keep the static ladder, and extra codecs turn pipelining off
+ * (see TranscodingService.supportsPipelining).
+ */
+@Service
+public class PipelinedIngestService {
+
+    private static final int FEED_BUFFER = 1024 * 1024;
+    private static final long ACCOUNT_INTERVAL_MS = 5_000;
+    private static final long PROBE_BYTES = 8L * 1024 * 1024;
+    private static final Set<String> STREAMABLE = Set.of("ts", "m2ts", "mts", "mkv", "webm", "flv");
+    private static final Set<String> ISO_BMFF = Set.of("mp4", "m4v", "mov");
+
+    private final TranscodingService transcodingService;
+    private final TranscodingScheduler scheduler;
+    private final TranscodeProgressService progressService;
+    private final TranscodeJobQueue transcodeJobQueue;
+    private final VideoService videoService;
+    private final UploadSessionService uploadSessionService;
+    private final DiskSpaceLedger diskSpaceLedger;
+    private final Executor executor;
+    private final int maxJobs;
+    private final long idleTimeoutMs;
+    private final boolean supported;
+
+    private final ConcurrentHashMap<String, PipelineJob> jobs = new ConcurrentHashMap<>();
+
+    public PipelinedIngestService(TranscodingService transcodingService,
+                                  TranscodingScheduler scheduler,
+                                  TranscodeProgressService progressService,
+                                  TranscodeJobQueue transcodeJobQueue,
+                                  VideoService videoService,
+                                  UploadSessionService uploadSessionService,
+                                  DiskSpaceLedger diskSpaceLedger,
+                                  @Qualifier("pipelinedIngestExecutor") Executor executor,
+                                  @Value("${localtube.transcoding.pipelined.max-jobs:2}") int maxJobs,
+                                  @Value("${localtube.transcoding.pipelined.idle-timeout:30m}") Duration idleTimeout) {
+        this.transcodingService = transcodingService;
+        this.scheduler = scheduler;
+        this.progressService = progressService;
+        this.transcodeJobQueue = transcodeJobQueue;
+        this.videoService = videoService;
+        this.uploadSessionService = uploadSessionService;
+        this.diskSpaceLedger = diskSpaceLedger;
+        this.executor = executor;
+        this.maxJobs = maxJobs;
+        this.idleTimeoutMs = idleTimeout.toMillis();
+        this.supported = transcodingService.supportsPipelining();
+        if (!supported) {
+            System.out.println("[Pipelined] Off - extra codecs are enabled; pipelined uploads are transcoded"
+                    + " after /complete");
+        }
+    }
+
+    /**
+     * Called after every chunk write - starts the pipeline once the head of the file is in,
+     * afterwards just wakes the feeder
+     */
+    public void onChunkWritten(UploadSession session) {
+        if (!supported || !session.isPipelined() || session.getChunkSize() <= 0) {
+            return;
+        }
+
+        PipelineJob job = jobs.get(session.getVideoId());
+        if (job != null) {
+            job.signal();
+            return;
+        }
+
+        if (session.getContiguousChunks() == 0 || jobs.size() >= maxJobs) {
+            return;
+        }
+
+        PipelineJob created = new PipelineJob(session, uploadSessionService.partialFile(session));
+        if (jobs.putIfAbsent(session.getVideoId(), created) == null) {
+            try {
+                executor.execute(created::run);
+            } catch (RuntimeException e) {
+                jobs.remove(session.getVideoId(), created);
+                System.err.println("[Pipelined] Cannot start for " + session.getVideoId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Upload passed its /complete checks - record its job and let the pipeline publish.
+     * False if there is no pipeline for this video and it must be transcoded normally.
+     */
+    public boolean accept(String videoId) throws IOException {
+        PipelineJob job = jobs.get(videoId);
+        if (job == null || !transcodeJobQueue.adopt(videoId, job.file)) {
+            return false;
+        }
+        if (!job.accept()) {
+            // Stopped meanwhile - the recorded job is transcoded normally
+            transcodeJobQueue.release(videoId, false);
+        }
+        return true;
+    }
+
+    /**
+     * Stop the pipeline and drop its output (upload cancelled, corrupt or a duplicate)
+     */
+    public void abort(String videoId) {
+        PipelineJob job = jobs.remove(videoId);
+        if (job != null) {
+            job.abort();
+        }
+    }
+
+    public boolean isActive(String videoId) {
+        return jobs.containsKey(videoId);
+    }
+
+    /**
+     * Whether ffmpeg can start decoding this file from its first bytes
+     */
+    static boolean isStreamable(Path file, long available) throws IOException {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String ext = dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+
+        if (STREAMABLE.contains(ext)) {
+            return true;
+        }
+        if (ISO_BMFF.contains(ext)) {
+            return moovBeforeMdat(file, available);
+        }
+        return false;
+    }
+
+    /**
+     * Walk top-level MP4 boxes: streamable only if 'moov' comes before 'mdat' (fast start)
+     */
+    private static boolean moovBeforeMdat(Path file, long available) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long position = 0;
+            while (position + 8 <= available) {
+                header.clear();
+                channel.read(header, position);
+                header.flip();
+                if (header.remaining() < 8) {
+                    return false;
+                }
+                long size = header.getInt() & 0xFFFFFFFFL;
+                String type = new String(new byte[]{ header.get(), header.get(), header.get(), header.get() },
+                        StandardCharsets.US_ASCII);
+
+                if ("moov".equals(type)) {
+                    return true;
+                }
+                if ("mdat".equals(type)) {
+                    return false;
+                }
+                if (size == 1) {
+                    if (header.remaining() < 8) {
+                        return false;
+                    }
+                    size = header.getLong();
+                } else if (size == 0) {
+                    return false;
+                }
+                if (size < 8) {
+                    return false;
+                }
+                position += size;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cores an encode kept busy: CPU time over wall time, rounded up, at least one
+     * (the pipeline is still running) and never more than its ladder can use
+     */
+    static int coresToHold(long cpuNanos, long wallNanos, int wanted) {
+        int used = wallNanos > 0 ? (int) Math.ceil(cpuNanos / (double) wallNanos) : wanted;
+        return Math.max(1, Math.min(wanted, used));
+    }
+
+    // Inner classes
+
+    /**
+     * One upload being transcoded from its growing partial file
+     */
+    private class PipelineJob {
+        final UploadSession session;
+        final String videoId;
+        final Path file;
+        final CompletableFuture<Boolean> accepted = new CompletableFuture<>();
+        final Object dataSignal = new Object();
+        final List<Process> processes = new ArrayList<>();
+
+        volatile boolean aborted;
+        volatile long lastProgress = System.currentTimeMillis();
+        boolean declined;   // guarded by this
+
+        // Touched by the job thread only
+        int heldCores;
+        long lastCpuNanos = -1;
+        long lastSampleNanos;
+
+        PipelineJob(UploadSession session, Path file) {
+            this.session = session;
+            this.videoId = session.getVideoId();
+            this.file = file;
+        }
+
+        void signal() {
+            lastProgress = System.currentTimeMillis();
+            synchronized (dataSignal) {
+                dataSignal.notifyAll();
+            }
+        }
+
+        synchronized boolean accept() {
+            if (declined || aborted) {
+                return false;
+            }
+            accepted.complete(true);
+            return true;
+        }
+
+        void abort() {
+            aborted = true;
+            accepted.complete(false);
+            synchronized (processes) {
+                processes.forEach(Process::destroyForcibly);
+            }
+            signal();
+        }
+
+        void run() {
+            Path outputDir = transcodingService.outputDirFor(videoId);
+            boolean published = false;
+            try {
+                // Need the head of the file to pick the container and the ladder
+                long probeBytes = Math.min(session.getTotalSize(), Math.max(PROBE_BYTES, session.getChunkSize()));
+                if (!awaitBytes(probeBytes) || !isStreamable(file, probeBytes)) {
+                    decline("container not streamable or upload stalled");
+                    return;
+                }
+
+                TranscodingService.VideoInfo info = transcodingService.probePrefix(file, probeBytes);
+                // H.264 only - the slower codecs could not keep up with the upload
+                List<TranscodingService.QualityProfile> profiles = transcodingService.buildQualityProfiles(info).stream()
+                        .filter(p -> p.codec == TranscodingService.VideoCodec.H264)
+                        .toList();
+                Files.createDirectories(outputDir);
+                TranscodingService.ThumbnailPlan thumbnails = transcodingService.pipelineThumbnails(outputDir,
+                        info.durationSeconds);
+
+                // ffmpeg gets threads for the whole ladder, the budget is charged for what it uses
+                int wanted = profiles.stream().mapToInt(transcodingService::threadWeight).sum();
+                int threads = Math.min(wanted, scheduler.getTotalCores());
+                heldCores = scheduler.acquire(1);
+                progressService.jobStarted(videoId, info.durationSeconds);
+                boolean encoded;
+                try {
+                    System.out.println("[Pipelined] Starting " + profiles.size() + " rendition(s) in one decode on "
+                            + threads + " threads for " + videoId + " while upload is in progress");
+
+                    CompletableFuture<Integer> exit = CompletableFuture.supplyAsync(
+                            () -> encode(outputDir, profiles, info, thumbnails, threads), executor);
+                    Integer exitCode = null;
+                    while (exitCode == null) {
+                        try {
+                            exitCode = exit.get(ACCOUNT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException e) {
+                            account(wanted);
+                        }
+                    }
+                    encoded = exitCode == 0 && !aborted;
+                } finally {
+                    scheduler.release(heldCores);
+                    heldCores = 0;
+                    progressService.jobFinished(videoId);
+                }
+                if (!encoded) {
+                    for (TranscodingService.QualityProfile profile : profiles) {
+                        transcodingService.deleteDirectoryRecursive(outputDir.resolve(profile.label));
+                    }
+                }
+
+                // Publish only once /complete has verified the upload
+                boolean ok;
+                try {
+                    ok = accepted.get(idleTimeoutMs, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    ok = false;
+                }
+                if (!ok || aborted) {
+                    transcodingService.deleteDirectoryRecursive(outputDir);
+                    return;
+                }
+
+                if (!encoded || profiles.isEmpty()) {
+                    System.err.println("[Pipelined] No rendition finished for " + videoId + ", transcoding normally");
+                    return;
+                }
+
+                publish(outputDir, profiles, thumbnails);
+                published = true;
+
+            } catch (Exception e) {
+                System.err.println("[Pipelined ERROR] " + videoId + ": " + e.getMessage());
+                boolean queued = accepted.getNow(false);
+                abort();
+                transcodingService.deleteDirectoryRecursive(outputDir);
+                if (!queued) {
+                    try {
+                        videoService.updateVideoStatus(videoId, VideoStatus.FAILED);
+                    } catch (IOException ignored) {}
+                    diskSpaceLedger.release(videoId);
+                }
+            } finally {
+                jobs.remove(videoId, this);
+                if (accepted.getNow(false)) {
+                    // The job recorded at /complete is done, or goes to a worker to be transcoded normally
+                    transcodeJobQueue.release(videoId, published);
+                }
+            }
+        }
+
+        /**
+         * Run the single-decode ffmpeg fed from the growing file; its exit code, -1 if it could not start
+         */
+        private int encode(Path outputDir, List<TranscodingService.QualityProfile> profiles,
+                           TranscodingService.VideoInfo info, TranscodingService.ThumbnailPlan thumbnails,
+                           int threads) {
+            try {
+                return transcodingService.transcodeFromPipe(videoId, outputDir, profiles, info, thumbnails, threads,
+                        process -> {
+                            synchronized (processes) {
+                                processes.add(process);
+                                if (aborted) {
+                                    process.destroyForcibly();
+                                }
+                            }
+                            executor.execute(() -> feed(process));
+                        });
+            } catch (IOException e) {
+                System.err.println("[Pipelined] Encode of " + videoId + " failed: " + e.getMessage());
+                return -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+
+        /**
+         * Bring the held cores in line with the CPU ffmpeg used since the last look - while it
+         * waits on the network that is a core or two, and the rest stays free for queued jobs.
+         * Where the platform does not report CPU time, one core until the last chunk is in.
+         */
+        private void account(int wanted) {
+            Process process;
+            synchronized (processes) {
+                process = processes.isEmpty() ? null : processes.get(0);
+            }
+            if (process == null) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            long cpu;
+            try {
+                cpu = process.toHandle().info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+            } catch (UnsupportedOperationException e) {
+                cpu = -1;
+            }
+            int target;
+            if (cpu >= 0) {
+                if (lastCpuNanos < 0) {
+                    lastCpuNanos = cpu;
+                    lastSampleNanos = now;
+                    return;
+                }
+                target = coresToHold(cpu - lastCpuNanos, now - lastSampleNanos, wanted);
+                lastCpuNanos = cpu;
+                lastSampleNanos = now;
+            } else {
+                target = session.getContiguousBytes() >= session.getTotalSize() ? wanted : 1;
+            }
+
+            if (target > heldCores) {
+                heldCores += scheduler.tryAcquire(target - heldCores);
+            } else if (target < heldCores) {
+                scheduler.release(heldCores - target);
+                heldCores = target;
+            }
+        }
+
+        /**
+         * Pipe the contiguous prefix into ffmpeg, waiting for more as chunks land
+         */
+        private void feed(Process process) {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                 OutputStream stdin = process.getOutputStream()) {
+                WritableByteChannel out = Channels.newChannel(stdin);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(FEED_BUFFER);
+                long position = 0;
+
+                while (!aborted && position < session.getTotalSize()) {
+                    long available = session.getContiguousBytes();
+                    if (position >= available) {
+                        if (!waitForData()) {
+                            return;
+                        }
+                        continue;
+                    }
+
+                    buffer.clear();
+                    if (available - position < buffer.capacity()) {
+                        buffer.limit((int) (available - position));
+                    }
+                    int n = in.read(buffer, position);
+                    if (n <= 0) {
+                        continue;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    position += n;
+                }
+            } catch (IOException e) {
+                // ffmpeg exited early (broken pipe) - its exit code tells the rest
+            }
+        }
+
+        private boolean awaitBytes(long bytes) {
+            while (!aborted && session.getContiguousBytes() < bytes) {
+                if (!waitForData()) {
+                    return false;
+                }
+            }
+            return !aborted;
+        }
+
+        /**
+         * Wait for the next chunk; false once the upload has been idle too long
+         */
+        private boolean waitForData() {
+            if (System.currentTimeMillis() - lastProgress > idleTimeoutMs) {
+                System.err.println("[Pipelined] Upload " + videoId + " stalled, stopping pipeline");
+                abort();
+                return false;
+            }
+            synchronized (dataSignal) {
+                try {
+                    dataSignal.wait(1_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abort();
+                    return false;
+                }
+            }
+            return !aborted;
+        }
+
+        private void decline(String reason) {
+            synchronized (this) {
+                declined = true;
+            }
+            jobs.remove(videoId, this);
+            System.out.println("[Pipelined] Not pipelining " + videoId + ": " + reason);
+        }
+
+        private void publish(Path outputDir, List<TranscodingService.QualityProfile> completed,
+                             TranscodingService.ThumbnailPlan thumbnails) throws Exception {
+            videoService.updateVideoStatus(videoId, VideoStatus.PROCESSING);
+
+            // The complete file has its real duration now
+            TranscodingService.VideoInfo info = transcodingService.getVideoInfo(file);
+            videoService.updateVideoMetadata(videoId, info.width, info.height,
+                    info.durationSeconds, Files.size(file));
+
+            for (TranscodingService.QualityProfile profile : completed) {
+                videoService.addQualityToVideo(videoId, profile.label);
+            }
+            // Audio group, thumbnails the pipe could not render and the master playlist
+            transcodingService.finishPipelined(videoId, file, outputDir, completed, thumbnails, info.durationSeconds);
+
+            Files.deleteIfExists(file);
+            videoService.updateVideoStatus(videoId, VideoStatus.READY);
+            progressService.statusChanged(videoId, VideoStatus.READY);
+            diskSpaceLedger.release(videoId);
+
+            System.out.println("[Pipelined] SUCCESS: " + videoId);
+        }
+    }
+}
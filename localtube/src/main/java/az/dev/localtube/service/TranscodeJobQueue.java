@@ -0,0 +1,801 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.TranscodeJob;
+import az.dev.localtube.domain.TranscodeJobStatus;
+import az.dev.localtube.domain.Video;
+import az.dev.localtube.domain.VideoStatus;
+import az.dev.localtube.repository.TranscodeJobStore;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+/**
+ * Transcode job queue - durable replacement for @Async transcoding
+ * Every state change is saved to the job store, so queued and interrupted jobs survive
+ * restarts and resume from the renditions that already finished. Failed attempts are
+ * retried with exponential backoff. With a shared store any number of nodes work the
+ * same queue: a node claims a job with a lease it keeps renewing while ffmpeg runs,
+ * and a job whose worker died is taken over once the lease runs out.
+ * Free workers go to the uploader with the fewest running jobs, and within that
+ * uploader to the cheapest job; a long job hogging a second worker is preempted
+ * (and later resumed) when another uploader's short job is waiting.
+ */
+@Service
+public class TranscodeJobQueue {
+
+    private static final int CANCEL_TRIES = 5;
+
+    private final TranscodingService transcodingService;
+    private final VideoService videoService;
+    private final DiskSpaceLedger diskSpaceLedger;
+    private final HlsSegmentCache segmentCache;
+    private final TranscodeJobStore store;
+    private final Executor executor;
+
+    private final String nodeId;
+    private final boolean workerEnabled;
+    private final Duration leaseDuration;
+    private final int maxConcurrent;
+    private final int maxAttempts;
+    private final Duration retryBackoff;
+    private final Duration agingPeriod;
+    private final boolean preempt;
+    private final double preemptRatio;
+
+    private final Map<String, TranscodeJob> jobs = new LinkedHashMap<>();        // guarded by this
+    private final Map<String, TranscodeJob> runningHere = new LinkedHashMap<>(); // guarded by this
+    private final Set<String> cancelling = new HashSet<>();                      // guarded by this
+    private final Set<String> preempting = new HashSet<>();                      // guarded by this
+    private final Set<String> lost = new HashSet<>();                            // guarded by this
+    private final Set<String> submittedHere = new HashSet<>();                   // guarded by this
+    private final Set<String> adopted = new HashSet<>();                         // guarded by this
+    private long writes;                                                         // guarded by this
+
+    public TranscodeJobQueue(TranscodingService transcodingService,
+                             VideoService videoService,
+                             DiskSpaceLedger diskSpaceLedger,
+                             HlsSegmentCache segmentCache,
+                             TranscodeJobStore store,
+                             @Qualifier("videoProcessingExecutor") Executor executor,
+                             @Qualifier("leaseRenewalScheduler") TaskScheduler leaseRenewalScheduler,
+                             @Value("${localtube.transcoding.coordination.node-id:}") String nodeId,
+                             @Value("${localtube.transcoding.coordination.worker:true}") boolean workerEnabled,
+                             @Value("${localtube.transcoding.coordination.lease-duration:2m}") Duration leaseDuration,
+                             @Value("${localtube.transcoding.coordination.lease-renew-interval-ms:20000}") long leaseRenewIntervalMs,
+                             @Value("${localtube.transcoding.max-concurrent:2}") int maxConcurrent,
+                             @Value("${localtube.transcoding.max-attempts:3}") int maxAttempts,
+                             @Value("${localtube.transcoding.retry-backoff:1m}") Duration retryBackoff,
+                             @Value("${localtube.transcoding.scheduling.aging-period:1h}") Duration agingPeriod,
+                             @Value("${localtube.transcoding.scheduling.preempt:true}") boolean preempt,
+                             @Value("${localtube.transcoding.scheduling.preempt-ratio:4}") double preemptRatio) {
+        this.transcodingService = transcodingService;
+        this.videoService = videoService;
+        this.diskSpaceLedger = diskSpaceLedger;
+        this.segmentCache = segmentCache;
+        this.store = store;
+        this.executor = executor;
+        this.nodeId = nodeId.isBlank() ? defaultNodeId() : nodeId;
+        this.workerEnabled = workerEnabled;
+        this.leaseDuration = leaseDuration;
+        this.maxConcurrent = maxConcurrent;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoff = retryBackoff;
+        this.agingPeriod = agingPeriod;
+        this.preempt = preempt;
+        this.preemptRatio = preemptRatio;
+
+        synchronized (this) {
+            try {
+                for (TranscodeJob job : store.load()) {
+                    jobs.put(job.getVideoId(), job);
+                    rebook(job);
+                }
+            } catch (IOException e) {
+                System.err.println("[JobQueue] Cannot load jobs: " + e.getMessage());
+            }
+        }
+        System.out.println("[JobQueue] Node " + this.nodeId + (workerEnabled ? ", transcoding" : ", not transcoding")
+                + (store.isShared() ? " with a shared job store" : ""));
+
+        if (store.isShared()) {
+            Duration renewInterval = Duration.ofMillis(leaseRenewIntervalMs);
+            leaseRenewalScheduler.scheduleWithFixedDelay(this::renewLeases, Instant.now().plus(renewInterval), renewInterval);
+        }
+    }
+
+    /**
+     * Bookings do not survive a restart - book the output again for a job whose input
+     * was uploaded here, to be released when the job ends like any other
+     */
+    private void rebook(TranscodeJob job) {
+        try {
+            Path input = Paths.get(job.getInputFile());
+            if (Files.exists(input)) {
+                diskSpaceLedger.reserveTranscode(job.getVideoId(), Files.size(input));
+                if (store.isShared()) {
+                    submittedHere.add(job.getVideoId());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[JobQueue] Cannot book space for " + job.getVideoId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queue a video for transcoding; a video already queued or running keeps its job
+     */
+    public void submit(String videoId, Path inputFile) throws IOException {
+        synchronized (this) {
+            TranscodeJob existing = jobs.get(videoId);
+            if (existing != null) {
+                System.out.println("[JobQueue] " + videoId + " already " + existing.getStatus());
+                return;
+            }
+        }
+
+        // ffprobe outside the lock
+        double cost = transcodingService.estimateCost(inputFile);
+        String uploaderId = videoService.getVideo(videoId).map(Video::getUploaderId).orElse(null);
+
+        synchronized (this) {
+            if (jobs.containsKey(videoId)) {
+                return;
+            }
+            TranscodeJob job = new TranscodeJob(videoId, inputFile.toString());
+            job.setCost(cost);
+            job.setUploaderId(uploaderId != null ? uploaderId : "unknown");
+            writes++;
+            if (!store.save(job)) {
+                System.out.println("[JobQueue] " + videoId + " already queued by another node");
+                return;
+            }
+            jobs.put(videoId, job);
+            if (store.isShared()) {
+                submittedHere.add(videoId);
+            }
+            System.out.println("[JobQueue] Queued " + videoId + " (" + jobs.size() + " pending)");
+        }
+
+        videoService.updateVideoStatus(videoId, VideoStatus.PROCESSING);
+        dispatch();
+    }
+
+    /**
+     * Record a job the pipelined ingest is already running on this node: it holds a worker
+     * slot and a lease like any running job, and if the node dies it is replayed or taken
+     * over and transcoded the normal way. False if the video already has a job.
+     */
+    public boolean adopt(String videoId, Path inputFile) throws IOException {
+        double cost = transcodingService.estimateCost(inputFile);
+        String uploaderId = videoService.getVideo(videoId).map(Video::getUploaderId).orElse(null);
+
+        synchronized (this) {
+            if (jobs.containsKey(videoId)) {
+                return false;
+            }
+            TranscodeJob job = new TranscodeJob(videoId, inputFile.toString());
+            job.setCost(cost);
+            job.setUploaderId(uploaderId != null ? uploaderId : "unknown");
+            job.setStatus(TranscodeJobStatus.RUNNING);
+            job.setAttempts(1);
+            job.setWorkerId(nodeId);
+            job.setLeaseExpiresAt(LocalDateTime.now().plus(leaseDuration));
+            writes++;
+            if (!store.save(job)) {
+                return false;
+            }
+            jobs.put(videoId, job);
+            runningHere.put(videoId, job);
+            adopted.add(videoId);
+            if (store.isShared()) {
+                submittedHere.add(videoId);
+            }
+            System.out.println("[JobQueue] Adopted pipelined " + videoId);
+        }
+
+        videoService.updateVideoStatus(videoId, VideoStatus.PROCESSING);
+        return true;
+    }
+
+    /**
+     * The pipelined ingest is done with an adopted job - it published the renditions,
+     * or gave up and the job is queued to be transcoded normally
+     */
+    public void release(String videoId, boolean published) {
+        TranscodeJob cancelled = null;
+        synchronized (this) {
+            if (!adopted.remove(videoId)) {
+                return;
+            }
+            TranscodeJob job = runningHere.remove(videoId);
+            preempting.remove(videoId);
+            if (cancelling.remove(videoId)) {
+                lost.remove(videoId);
+                job.setStatus(TranscodeJobStatus.CANCELLED);
+                persist(job);
+                jobs.remove(videoId, job);
+                cancelled = job;
+            } else if (lost.remove(videoId)) {
+                System.out.println("[JobQueue] Stopped pipelined " + videoId + ", no longer leased to this node");
+            } else if (published) {
+                job.setStatus(TranscodeJobStatus.DONE);
+                persist(job);
+                jobs.remove(videoId, job);
+            } else {
+                job.setStatus(TranscodeJobStatus.QUEUED);
+                job.setAttempts(0);
+                job.setNextAttemptAt(LocalDateTime.now());
+                job.setWorkerId(null);
+                job.setLeaseExpiresAt(null);
+                persist(job);
+                System.out.println("[JobQueue] Queued " + videoId + " after its pipeline gave up");
+            }
+        }
+        if (cancelled != null) {
+            cleanUp(cancelled);
+        }
+        dispatch();
+    }
+
+    /**
+     * Queued or running
+     */
+    public synchronized boolean isPending(String videoId) {
+        return jobs.containsKey(videoId);
+    }
+
+    public synchronized Optional<TranscodeJob> getJob(String videoId) {
+        return Optional.ofNullable(jobs.get(videoId));
+    }
+
+    public synchronized int getQueuedCount() {
+        return (int) jobs.values().stream().filter(j -> j.getStatus() == TranscodeJobStatus.QUEUED).count();
+    }
+
+    /**
+     * Drop a video's job - a queued one never starts, a running one has its ffmpeg killed
+     * and its output removed once the worker lets go. A job running on another node is
+     * marked cancelled in the store; that node stops it at its next lease renewal.
+     * Returns whether there was a job.
+     */
+    public boolean cancel(String videoId) {
+        TranscodeJob job;
+        synchronized (this) {
+            job = jobs.get(videoId);
+        }
+        if (job == null && !store.isShared()) {
+            return false;
+        }
+
+        for (int attempt = 0; attempt < CANCEL_TRIES; attempt++) {
+            if (job == null) {
+                job = loadLive(videoId);
+                if (job == null) {
+                    return false;
+                }
+            }
+
+            boolean here;
+            boolean runningElsewhere;
+            boolean saved = false;
+            synchronized (this) {
+                here = runningHere.containsKey(videoId);
+                runningElsewhere = !here && holdsLease(job, LocalDateTime.now());
+                if (here) {
+                    cancelling.add(videoId);
+                } else {
+                    job.setStatus(TranscodeJobStatus.CANCELLED);
+                    saved = persist(job);
+                    if (saved) {
+                        jobs.remove(videoId);
+                    }
+                }
+            }
+
+            if (here) {
+                System.out.println("[JobQueue] Cancelling " + videoId);
+                transcodingService.cancelTranscoding(videoId);
+                return true;
+            }
+            if (saved) {
+                System.out.println("[JobQueue] Cancelling " + videoId
+                        + (runningElsewhere ? " on " + job.getWorkerId() : ""));
+                if (!runningElsewhere) {
+                    cleanUp(job);
+                }
+                return true;
+            }
+            job = null;   // Changed by another node meanwhile - read it again
+        }
+        System.err.println("[JobQueue] Could not cancel " + videoId + ", job keeps changing");
+        return false;
+    }
+
+    /**
+     * Start due jobs while workers are free; also drives retries after their backoff
+     * The shared store is read before taking the lock, so finishing workers and lease
+     * renewals never wait on its round trip. A snapshot that raced a write of this
+     * node is dropped - the next tick reads a fresh one.
+     */
+    @Scheduled(fixedDelayString = "${localtube.transcoding.dispatch-interval-ms:1000}")
+    public void dispatch() {
+        List<TranscodeJob> live = null;
+        long writesBefore = 0;
+        if (store.isShared()) {
+            synchronized (this) {
+                writesBefore = writes;
+            }
+            live = loadShared();
+        }
+
+        synchronized (this) {
+            if (live != null && writes == writesBefore) {
+                refresh(live);
+            }
+            if (workerEnabled) {
+                startDue();
+            }
+        }
+    }
+
+    /**
+     * Called with the lock held
+     */
+    private void startDue() {
+        LocalDateTime now = LocalDateTime.now();
+        List<TranscodeJob> due = new ArrayList<>();
+        List<TranscodeJob> abandoned = new ArrayList<>();
+        Map<String, Integer> runningPerUploader = new HashMap<>();
+        for (TranscodeJob job : jobs.values()) {
+            if (job.getStatus() == TranscodeJobStatus.QUEUED && !job.getNextAttemptAt().isAfter(now)) {
+                due.add(job);
+            } else if (job.getStatus() == TranscodeJobStatus.RUNNING && !runningHere.containsKey(job.getVideoId())
+                    && !holdsLease(job, now)) {
+                // Its worker died or lost touch with the store
+                if (job.getAttempts() < maxAttempts) {
+                    due.add(job);
+                } else {
+                    abandoned.add(job);
+                }
+            } else if (job.getStatus() == TranscodeJobStatus.RUNNING) {
+                runningPerUploader.merge(job.getUploaderId(), 1, Integer::sum);
+            }
+        }
+        for (TranscodeJob job : abandoned) {
+            System.err.println("[JobQueue] Lease of " + job.getWorkerId() + " on " + job.getVideoId() + " expired");
+            attemptFailed(job, new IOException("worker " + job.getWorkerId() + " stopped renewing its lease"));
+        }
+        due.sort(Comparator.comparingDouble(job -> priority(job, now)));
+
+        while (!due.isEmpty() && runningHere.size() < maxConcurrent) {
+            // Cheapest job of the uploader with the fewest running jobs
+            TranscodeJob job = due.get(0);
+            for (TranscodeJob candidate : due) {
+                if (runningPerUploader.getOrDefault(candidate.getUploaderId(), 0)
+                        < runningPerUploader.getOrDefault(job.getUploaderId(), 0)) {
+                    job = candidate;
+                }
+            }
+            due.remove(job);
+            if (!claim(job)) {
+                continue;
+            }
+            if (!start(job)) {
+                return;
+            }
+            runningPerUploader.merge(job.getUploaderId(), 1, Integer::sum);
+        }
+
+        if (preempt && !due.isEmpty() && preempting.isEmpty()) {
+            preemptFor(due, runningPerUploader);
+        }
+    }
+
+    /**
+     * Shortest job first, with the estimate shrinking as a job waits so long ones still get their turn
+     */
+    private double priority(TranscodeJob job, LocalDateTime now) {
+        double waited = Duration.between(job.getEnqueuedAt(), now).toMillis() / (double) agingPeriod.toMillis();
+        return job.getCost() / (1 + Math.max(0, waited));
+    }
+
+    /**
+     * Take the job under this node's lease; false if another node claimed it first
+     */
+    private boolean claim(TranscodeJob job) {
+        String previousWorker = job.getStatus() == TranscodeJobStatus.RUNNING ? job.getWorkerId() : null;
+        job.setStatus(TranscodeJobStatus.RUNNING);
+        job.setAttempts(job.getAttempts() + 1);
+        job.setWorkerId(nodeId);
+        job.setLeaseExpiresAt(LocalDateTime.now().plus(leaseDuration));
+        if (!persist(job)) {
+            // Shows up as the winner's on the next refresh
+            jobs.remove(job.getVideoId(), job);
+            return false;
+        }
+        if (previousWorker != null) {
+            System.out.println("[JobQueue] Took over " + job.getVideoId() + " from " + previousWorker);
+        }
+        return true;
+    }
+
+    private boolean start(TranscodeJob job) {
+        runningHere.put(job.getVideoId(), job);
+
+        try {
+            executor.execute(() -> run(job));
+            return true;
+        } catch (TaskRejectedException e) {
+            // Pool is busy with something else - try again on the next tick
+            runningHere.remove(job.getVideoId());
+            job.setStatus(TranscodeJobStatus.QUEUED);
+            job.setAttempts(job.getAttempts() - 1);
+            job.setWorkerId(null);
+            job.setLeaseExpiresAt(null);
+            persist(job);
+            return false;
+        }
+    }
+
+    private static boolean holdsLease(TranscodeJob job, LocalDateTime now) {
+        return job.getStatus() == TranscodeJobStatus.RUNNING
+                && (job.getLeaseExpiresAt() == null || job.getLeaseExpiresAt().isAfter(now));
+    }
+
+    /**
+     * An uploader with nothing running waits behind someone holding several workers -
+     * stop that someone's most expensive job if it dwarfs the waiting one. It is
+     * requeued without losing an attempt and resumes from its finished renditions.
+     */
+    private void preemptFor(List<TranscodeJob> due, Map<String, Integer> runningPerUploader) {
+        TranscodeJob waiting = due.stream()
+                .filter(job -> !runningPerUploader.containsKey(job.getUploaderId()))
+                .findFirst().orElse(null);
+        if (waiting == null) {
+            return;
+        }
+        TranscodeJob victim = null;
+        for (TranscodeJob job : runningHere.values()) {
+            // A pipeline cannot be resumed, stopping it would only throw its work away
+            if (runningPerUploader.getOrDefault(job.getUploaderId(), 0) > 1
+                    && !cancelling.contains(job.getVideoId()) && !adopted.contains(job.getVideoId())
+                    && (victim == null || job.getCost() > victim.getCost())) {
+                victim = job;
+            }
+        }
+        if (victim == null || victim.getCost() < waiting.getCost() * preemptRatio) {
+            return;
+        }
+
+        System.out.println("[JobQueue] Preempting " + victim.getVideoId() + " of " + victim.getUploaderId()
+                + " for " + waiting.getVideoId() + " of " + waiting.getUploaderId());
+        preempting.add(victim.getVideoId());
+        transcodingService.cancelTranscoding(victim.getVideoId());
+    }
+
+    // Worker
+
+    private void run(TranscodeJob job) {
+        String videoId = job.getVideoId();
+        List<String> alreadyDone;
+        synchronized (this) {
+            alreadyDone = List.copyOf(job.getCompletedQualities());
+        }
+
+        try {
+            System.out.println("[JobQueue] Running " + videoId + ", attempt " + job.getAttempts() + "/" + maxAttempts);
+            segmentCache.invalidate(transcodingService.outputDirFor(videoId));   // Re-transcode rewrites what was cached
+            synchronized (this) {
+                // A stop requested before the attempt exists is not seen by cancelTranscoding
+                if (cancelling.contains(videoId) || preempting.contains(videoId) || lost.contains(videoId)) {
+                    throw new CancellationException("Transcode of " + videoId + " stopped before it started");
+                }
+                transcodingService.beginAttempt(videoId);
+            }
+            transcodingService.transcodeToHLS(videoId, Paths.get(job.getInputFile()), alreadyDone,
+                    label -> renditionDone(job, label));
+
+            boolean cancelled;
+            boolean saved;
+            synchronized (this) {
+                cancelled = cancelling.remove(videoId);
+                preempting.remove(videoId);
+                lost.remove(videoId);
+                job.setStatus(cancelled ? TranscodeJobStatus.CANCELLED : TranscodeJobStatus.DONE);
+                saved = persist(job);
+                jobs.remove(videoId, job);
+            }
+            if (!saved && !cancelled) {
+                cancelled = cancelledElsewhere(videoId);
+            }
+            if (cancelled) {
+                cleanUp(job);
+            } else {
+                diskSpaceLedger.release(videoId);
+            }
+
+        } catch (Exception e) {
+            if (!stoppedOnPurpose(job)) {
+                System.err.println("[JobQueue] Attempt " + job.getAttempts() + " for " + videoId
+                        + " failed: " + e.getMessage());
+                attemptFailed(job, e);
+            }
+        } finally {
+            synchronized (this) {
+                runningHere.remove(videoId);
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Wrap up a job that cancel(), preemption or a lost lease stopped; false if it simply failed
+     */
+    private boolean stoppedOnPurpose(TranscodeJob job) {
+        String videoId = job.getVideoId();
+        synchronized (this) {
+            if (cancelling.remove(videoId)) {
+                preempting.remove(videoId);
+                lost.remove(videoId);
+                job.setStatus(TranscodeJobStatus.CANCELLED);
+                persist(job);
+                jobs.remove(videoId, job);
+            } else if (lost.remove(videoId)) {
+                preempting.remove(videoId);
+                System.out.println("[JobQueue] Stopped " + videoId + ", no longer leased to this node");
+                return true;
+            } else if (preempting.remove(videoId)) {
+                job.setStatus(TranscodeJobStatus.QUEUED);
+                job.setAttempts(job.getAttempts() - 1);
+                job.setNextAttemptAt(LocalDateTime.now());
+                job.setWorkerId(null);
+                job.setLeaseExpiresAt(null);
+                persist(job);
+                System.out.println("[JobQueue] Requeued preempted " + videoId);
+                return true;
+            } else {
+                return false;
+            }
+        }
+        cleanUp(job);
+        return true;
+    }
+
+    /**
+     * Remove everything a cancelled job leaves behind
+     */
+    private void cleanUp(TranscodeJob job) {
+        try {
+            Files.deleteIfExists(Paths.get(job.getInputFile()));
+        } catch (IOException e) {
+            System.err.println("[JobQueue] Cannot delete input of " + job.getVideoId() + ": " + e.getMessage());
+        }
+        transcodingService.deleteDirectoryRecursive(transcodingService.outputDirFor(job.getVideoId()));
+        segmentCache.invalidate(transcodingService.outputDirFor(job.getVideoId()));
+        diskSpaceLedger.release(job.getVideoId());
+        System.out.println("[JobQueue] Cancelled " + job.getVideoId());
+    }
+
+    private synchronized void renditionDone(TranscodeJob job, String label) {
+        if (!job.getCompletedQualities().contains(label)) {
+            job.getCompletedQualities().add(label);
+            persist(job);
+        }
+    }
+
+    private void attemptFailed(TranscodeJob job, Exception e) {
+        String videoId = job.getVideoId();
+        Path input = Paths.get(job.getInputFile());
+
+        boolean saved;
+        synchronized (this) {
+            job.setLastError(e.getMessage());
+            if (job.getAttempts() < maxAttempts && Files.exists(input)) {
+                long backoffMs = retryBackoff.toMillis() << Math.min(job.getAttempts() - 1, 10);
+                job.setStatus(TranscodeJobStatus.QUEUED);
+                job.setNextAttemptAt(LocalDateTime.now().plus(Duration.ofMillis(backoffMs)));
+                job.setWorkerId(null);
+                job.setLeaseExpiresAt(null);
+                saved = persist(job);
+                if (saved) {
+                    System.out.println("[JobQueue] Retrying " + videoId + " in " + backoffMs / 1000 + "s");
+                    return;
+                }
+            } else {
+                job.setStatus(TranscodeJobStatus.FAILED);
+                saved = persist(job);
+                jobs.remove(videoId, job);
+            }
+        }
+        if (!saved) {
+            // Another node got to the job first - only a cancellation leaves cleaning up to us
+            if (cancelledElsewhere(videoId)) {
+                cleanUp(job);
+            }
+            return;
+        }
+
+        System.err.println("[JobQueue] Giving up on " + videoId);
+        try {
+            videoService.updateVideoStatus(videoId, VideoStatus.FAILED);
+            Files.deleteIfExists(input);
+        } catch (IOException ignored) {}
+        diskSpaceLedger.release(videoId);
+    }
+
+    // Leases
+
+    /**
+     * Extend the lease of every job running here; a renewal that conflicts means another
+     * node cancelled or took over the job (after this one lost touch for too long).
+     * Runs on its own scheduler thread, so a busy dispatch or sweep cannot delay it.
+     */
+    void renewLeases() {
+        if (!store.isShared()) {
+            return;
+        }
+        List<TranscodeJob> mine;
+        synchronized (this) {
+            mine = new ArrayList<>(runningHere.values());
+        }
+
+        for (TranscodeJob job : mine) {
+            synchronized (this) {
+                String videoId = job.getVideoId();
+                if (!runningHere.containsKey(videoId) || cancelling.contains(videoId) || lost.contains(videoId)) {
+                    continue;
+                }
+                job.setLeaseExpiresAt(LocalDateTime.now().plus(leaseDuration));
+                if (persist(job)) {
+                    continue;
+                }
+            }
+            leaseConflict(job);
+        }
+    }
+
+    private void leaseConflict(TranscodeJob job) {
+        String videoId = job.getVideoId();
+        Optional<TranscodeJob> current;
+        try {
+            current = store.get(videoId);
+        } catch (IOException e) {
+            // Keep encoding; if the store stays away the lease runs out and the final save tells
+            System.err.println("[JobQueue] Cannot check lease on " + videoId + ": " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (!runningHere.containsKey(videoId)) {
+                return;
+            }
+            TranscodeJob stored = current.orElse(null);
+            if (stored != null && stored.getStatus() == TranscodeJobStatus.CANCELLED) {
+                cancelling.add(videoId);
+            } else if (stored != null && stored.getStatus() == TranscodeJobStatus.RUNNING
+                    && nodeId.equals(stored.getWorkerId()) && stored.getAttempts() == job.getAttempts()) {
+                // Still ours, an earlier write just went through late - carry on from its version
+                job.setSeqNo(stored.getSeqNo());
+                job.setPrimaryTerm(stored.getPrimaryTerm());
+                return;
+            } else {
+                lost.add(videoId);
+            }
+        }
+        System.out.println("[JobQueue] Lease on " + videoId + " was revoked, stopping");
+        transcodingService.cancelTranscoding(videoId);
+    }
+
+    /**
+     * Every live job in the shared store, null if it cannot be read
+     */
+    private List<TranscodeJob> loadShared() {
+        try {
+            return store.load();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[JobQueue] Cannot refresh jobs: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Replace the view of other nodes' jobs with the store's; jobs running here
+     * keep their own copy, whose version tells whether anyone else touched them
+     */
+    private void refresh(List<TranscodeJob> live) {
+        jobs.clear();
+        for (TranscodeJob job : live) {
+            jobs.put(job.getVideoId(), runningHere.getOrDefault(job.getVideoId(), job));
+        }
+        for (TranscodeJob job : runningHere.values()) {
+            jobs.putIfAbsent(job.getVideoId(), job);
+        }
+
+        // Space booked for uploads received here is free once their job is over, wherever it ran
+        for (Iterator<String> it = submittedHere.iterator(); it.hasNext(); ) {
+            String videoId = it.next();
+            if (!jobs.containsKey(videoId)) {
+                diskSpaceLedger.release(videoId);
+                it.remove();
+            }
+        }
+    }
+
+    // Store
+
+    /**
+     * Save a job; false if another node changed it first. A write error of the local
+     * journal does not stop the job, one of the shared store does - it may not be ours.
+     * Called with the lock held; counts the write so dispatch can spot a stale snapshot.
+     */
+    private boolean persist(TranscodeJob job) {
+        writes++;
+        try {
+            return store.save(job);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[JobQueue] Job store write failed for " + job.getVideoId() + ": " + e.getMessage());
+            return !store.isShared();
+        }
+    }
+
+    /**
+     * The store's copy if the job is still queued or running
+     */
+    private TranscodeJob loadLive(String videoId) {
+        try {
+            return store.get(videoId)
+                    .filter(job -> job.getStatus() == TranscodeJobStatus.QUEUED
+                            || job.getStatus() == TranscodeJobStatus.RUNNING)
+                    .orElse(null);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[JobQueue] Cannot read job " + videoId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean cancelledElsewhere(String videoId) {
+        if (!store.isShared()) {
+            return false;
+        }
+        try {
+            return store.get(videoId).map(job -> job.getStatus() == TranscodeJobStatus.CANCELLED).orElse(false);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "node";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+}
@@ -0,0 +1,266 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.VideoStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Service;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transcode progress - parsed "-progress pipe:1" output of every ffmpeg process,
+ * aggregated per video and pushed to WebSocket subscribers along with status changes
+ * Slow subscribers lose messages rather than holding up the ffmpeg reader threads.
+ */
+@Service
+public class TranscodeProgressService {
+
+    private static final int SEND_TIME_LIMIT_MS = 5_000;
+    private static final int SEND_BUFFER_LIMIT = 64 * 1024;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentHashMap<String, JobProgress> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * A video's transcode started; processes without their own span cover durationSeconds
+     */
+    public void jobStarted(String videoId, double durationSeconds) {
+        jobs.put(videoId, new JobProgress(videoId, durationSeconds));
+    }
+
+    public void jobFinished(String videoId) {
+        jobs.remove(videoId);
+    }
+
+    /**
+     * An ffmpeg process of the job started; spanSeconds is the media time it covers (0 = whole video)
+     */
+    public void processStarted(String videoId, String processKey, double spanSeconds) {
+        JobProgress job = jobs.get(videoId);
+        if (job != null) {
+            job.start(processKey, spanSeconds > 0 ? spanSeconds : job.durationSeconds);
+        }
+    }
+
+    /**
+     * One key=value block of ffmpeg progress output (ends with progress=continue|end)
+     */
+    public void update(String videoId, String processKey, Map<String, String> values) {
+        JobProgress job = jobs.get(videoId);
+        if (job == null) {
+            return;
+        }
+        job.update(processKey, values);
+        broadcast(videoId, job.snapshot());
+    }
+
+    public void processFinished(String videoId, String processKey) {
+        JobProgress job = jobs.get(videoId);
+        if (job != null) {
+            job.finish(processKey);
+        }
+    }
+
+    /**
+     * Status change of any video (so dashboards need not poll the video list)
+     */
+    public void statusChanged(String videoId, VideoStatus status) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "status");
+        event.put("videoId", videoId);
+        event.put("status", status.name().toLowerCase());
+        broadcast(videoId, event);
+    }
+
+    public List<Map<String, Object>> snapshots() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (JobProgress job : jobs.values()) {
+            result.add(job.snapshot());
+        }
+        return result;
+    }
+
+    // Subscribers
+
+    /**
+     * Register a WebSocket session - all videos, or just videoId if given
+     */
+    public void subscribe(WebSocketSession session, String videoId) {
+        Subscriber subscriber = new Subscriber(new ConcurrentWebSocketSessionDecorator(session,
+                SEND_TIME_LIMIT_MS, SEND_BUFFER_LIMIT,
+                ConcurrentWebSocketSessionDecorator.OverflowStrategy.DROP), videoId);
+        subscribers.put(session.getId(), subscriber);
+
+        // Bring the new subscriber up to date
+        for (JobProgress job : jobs.values()) {
+            if (subscriber.wants(job.videoId)) {
+                send(subscriber, job.snapshot());
+            }
+        }
+    }
+
+    public void unsubscribe(WebSocketSession session) {
+        subscribers.remove(session.getId());
+    }
+
+    private void broadcast(String videoId, Map<String, Object> event) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.wants(videoId)) {
+                send(subscriber, event);
+            }
+        }
+    }
+
+    private void send(Subscriber subscriber, Map<String, Object> event) {
+        try {
+            subscriber.session.sendMessage(new TextMessage(objectMapper.writeValueAsString(event)));
+        } catch (IOException | IllegalStateException e) {
+            subscribers.remove(subscriber.session.getId());
+        }
+    }
+
+    // Inner classes
+    private static class Subscriber {
+        final WebSocketSession session;
+        final String videoId;   // null = every video
+
+        Subscriber(WebSocketSession session, String videoId) {
+            this.session = session;
+            this.videoId = videoId;
+        }
+
+        boolean wants(String id) {
+            return videoId == null || videoId.equals(id);
+        }
+    }
+
+    private static class JobProgress {
+        final String videoId;
+        final double durationSeconds;
+        final Map<String, ProcessProgress> processes = new LinkedHashMap<>();   // guarded by this
+
+        JobProgress(String videoId, double durationSeconds) {
+            this.videoId = videoId;
+            this.durationSeconds = durationSeconds;
+        }
+
+        synchronized void start(String processKey, double spanSeconds) {
+            processes.put(processKey, new ProcessProgress(spanSeconds));
+        }
+
+        synchronized void update(String processKey, Map<String, String> values) {
+            ProcessProgress process = processes.computeIfAbsent(processKey, k -> new ProcessProgress(durationSeconds));
+            process.frame = parseLong(values.get("frame"), process.frame);
+            process.fps = parseDouble(values.get("fps"), process.fps);
+            process.outTimeSeconds = parseLong(values.get("out_time_us"), (long) (process.outTimeSeconds * 1e6)) / 1e6;
+            String speed = values.get("speed");
+            if (speed != null && speed.endsWith("x")) {
+                process.speed = parseDouble(speed.substring(0, speed.length() - 1).trim(), process.speed);
+            }
+            if ("end".equals(values.get("progress"))) {
+                process.finished = true;
+            }
+        }
+
+        synchronized void finish(String processKey) {
+            ProcessProgress process = processes.get(processKey);
+            if (process != null) {
+                process.finished = true;
+            }
+        }
+
+        /**
+         * Span-weighted completion over all processes, ETA of the slowest one still running
+         */
+        synchronized Map<String, Object> snapshot() {
+            double span = 0;
+            double done = 0;
+            Double eta = 0.0;
+            List<Map<String, Object>> list = new ArrayList<>();
+
+            for (Map.Entry<String, ProcessProgress> e : processes.entrySet()) {
+                ProcessProgress p = e.getValue();
+                double covered = p.finished ? p.spanSeconds : Math.min(p.outTimeSeconds, p.spanSeconds);
+                span += p.spanSeconds;
+                done += covered;
+
+                Double processEta = p.finished ? Double.valueOf(0) : p.eta();
+                eta = eta == null || processEta == null ? null : Math.max(eta, processEta);
+
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("process", e.getKey());
+                entry.put("frame", p.frame);
+                entry.put("fps", p.fps);
+                entry.put("speed", p.speed);
+                entry.put("outTime", round(p.outTimeSeconds));
+                entry.put("percent", p.spanSeconds > 0 ? round(100 * covered / p.spanSeconds) : null);
+                entry.put("eta", processEta != null ? round(processEta) : null);
+                entry.put("finished", p.finished);
+                list.add(entry);
+            }
+
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("type", "progress");
+            snapshot.put("videoId", videoId);
+            snapshot.put("percent", span > 0 ? round(100 * done / span) : null);
+            snapshot.put("eta", eta != null ? round(eta) : null);
+            snapshot.put("processes", list);
+            return snapshot;
+        }
+
+        private static long parseLong(String value, long fallback) {
+            try {
+                return value == null ? fallback : Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return fallback;   // "N/A" before the first frame
+            }
+        }
+
+        private static double parseDouble(String value, double fallback) {
+            try {
+                return value == null ? fallback : Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10) / 10.0;
+        }
+    }
+
+    private static class ProcessProgress {
+        final double spanSeconds;
+        long frame;
+        double fps;
+        double speed;
+        double outTimeSeconds;
+        boolean finished;
+
+        ProcessProgress(double spanSeconds) {
+            this.spanSeconds = spanSeconds;
+        }
+
+        /**
+         * Wall-clock seconds left, unknown until ffmpeg reports a speed
+         */
+        Double eta() {
+            if (speed <= 0 || spanSeconds <= 0) {
+                return null;
+            }
+            return Math.max(0, spanSeconds - outTimeSeconds) / speed;
+        }
+    }
+}
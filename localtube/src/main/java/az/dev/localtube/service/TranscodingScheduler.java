@@ -0,0 +1,77 @@
+package az.dev.localtube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Transcoding scheduler - hands out a global budget of CPU cores to transcoding jobs
+ * Each job asks for as many encoder threads as its renditions can use and gets at
+ * least its fair share (cores / max-concurrent), more when other jobs leave cores idle.
+ */
+@Service
+public class TranscodingScheduler {
+
+    private final int totalCores;
+    private final int fairShare;
+    private final int threadsPerProcess;
+
+    private int freeCores;   // guarded by this
+
+    public TranscodingScheduler(@Value("${localtube.transcoding.cpu-cores:0}") int cpuCores,
+                                @Value("${localtube.transcoding.max-concurrent:2}") int maxConcurrent,
+                                @Value("${localtube.transcoding.threads-per-process:16}") int threadsPerProcess) {
+        this.totalCores = cpuCores > 0 ? cpuCores : Runtime.getRuntime().availableProcessors();
+        this.fairShare = Math.max(1, totalCores / Math.max(1, maxConcurrent));
+        this.threadsPerProcess = Math.max(1, threadsPerProcess);
+        this.freeCores = totalCores;
+
+        System.out.println("[Scheduler] " + totalCores + " cores, fair share " + fairShare + " per job");
+    }
+
+    /**
+     * Block until cores are free, then take up to wanted of them
+     * Waits for a fair share (or all of wanted if that is smaller) so a job
+     * never starts on a single leftover core while others are about to finish.
+     */
+    public synchronized int acquire(int wanted) throws InterruptedException {
+        int want = Math.max(1, Math.min(wanted, totalCores));
+        int minimum = Math.min(want, fairShare);
+        while (freeCores < minimum) {
+            wait();
+        }
+        int granted = Math.min(want, freeCores);
+        freeCores -= granted;
+        return granted;
+    }
+
+    /**
+     * Take up to wanted cores without waiting - whatever is free right now, maybe none
+     */
+    public synchronized int tryAcquire(int wanted) {
+        int granted = Math.max(0, Math.min(wanted, freeCores));
+        freeCores -= granted;
+        return granted;
+    }
+
+    public synchronized void release(int cores) {
+        freeCores = Math.min(totalCores, freeCores + cores);
+        notifyAll();
+    }
+
+    /**
+     * How many ffmpeg processes should share a grant - beyond threadsPerProcess
+     * one process stops scaling, so the renditions are split into parallel groups
+     */
+    public int groupsFor(int grantedCores, int renditions) {
+        int groups = (grantedCores + threadsPerProcess - 1) / threadsPerProcess;
+        return Math.max(1, Math.min(groups, renditions));
+    }
+
+    public synchronized int getFreeCores() {
+        return freeCores;
+    }
+
+    public int getTotalCores() {
+        return totalCores;
+    }
+}
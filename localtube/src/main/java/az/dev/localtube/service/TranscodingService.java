@@ -1,19 +1,38 @@
 package az.dev.localtube.service;
 
 import az.dev.localtube.domain.VideoStatus;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * Transcoding service - handles FFmpeg video processing
@@ -22,29 +41,133 @@ import java.util.concurrent.ConcurrentHashMap;
 @Service
 public class TranscodingService {
     
+    private static final int REMUX_GOP_SCAN_SECONDS = 120;
+    
+    // Encoding the cheapest rung alone first costs a second decode - only worth it
+    // when the rest of the ladder is this many times the work of that rung
+    private static final int PROGRESSIVE_MIN_GAIN = 4;
+    
+    // Segments and init files of one part of a split encode (p003_seg_012.ts)
+    private static final Pattern PART_FILE = Pattern.compile("p\\d{3}_.+");
+    private static final Pattern MAP_URI = Pattern.compile("URI=\"([^\"]+)\"");
+    
+    // ffprobe profile name -> profile_idc and constraint flags of the avc1 codec string
+    private static final Map<String, String> AVC_PROFILES = Map.of(
+            "High", "6400",
+            "Main", "4D40",
+            "Constrained Baseline", "42E0"
+    );
+    
     private final VideoService videoService;
+    private final TranscodingScheduler scheduler;
+    private final TranscodeProgressService progressService;
+    private final PerTitleLadder perTitleLadder;
+    private final Executor renditionExecutor;
     private final Path hlsDir;
     private final int segmentDuration;
     private final List<String> allowedQualities;
+    private final int splitMinDuration;
+    private final int splitPartDuration;
+    private final int splitMaxParts;
+    private final boolean progressive;
+    private final boolean fmp4;
+    private final List<VideoCodec> extraCodecs = new ArrayList<>();
+    private final List<String> extraCodecQualities;
+    private final boolean separateAudio;
+    private final List<AudioProfile> audioProfiles = new ArrayList<>();
+    private final boolean remuxEnabled;
+    private final double remuxMaxBitrateRatio;
     
-    private final ConcurrentHashMap<String, Process> activeProcesses = new ConcurrentHashMap<>();
+    private final boolean thumbnailsEnabled;
+    private final int thumbnailInterval;
+    private final int thumbnailMaxCount;
+    
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Keyed by the exact video id - ids may share prefixes ("clip", "clip_final")
+    private final ConcurrentHashMap<String, Set<Process>> activeProcesses = new ConcurrentHashMap<>();
+    // Cancel flag of the video's current attempt; a cancel with no attempt leaves nothing behind
+    private final ConcurrentHashMap<String, AtomicBoolean> attempts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ThumbnailPlan> pendingThumbnails = new ConcurrentHashMap<>();
     
     public TranscodingService(VideoService videoService,
+                              TranscodingScheduler scheduler,
+                              TranscodeProgressService progressService,
+                              PerTitleLadder perTitleLadder,
+                              @Qualifier("renditionExecutor") Executor renditionExecutor,
                               @Value("${localtube.storage.hls-dir}") String hlsDirPath,
                               @Value("${localtube.transcoding.segment-duration}") int segmentDuration,
-                              @Value("${localtube.transcoding.qualities}") List<String> qualities) {
+                              @Value("${localtube.transcoding.qualities}") List<String> qualities,
+                              @Value("${localtube.transcoding.split.min-duration:1800}") int splitMinDuration,
+                              @Value("${localtube.transcoding.split.part-duration:600}") int splitPartDuration,
+                              @Value("${localtube.transcoding.split.max-parts:16}") int splitMaxParts,
+                              @Value("${localtube.transcoding.progressive:true}") boolean progressive,
+                              @Value("${localtube.transcoding.segment-type:mpegts}") String segmentType,
+                              @Value("${localtube.transcoding.extra-codecs:}") List<String> extraCodecs,
+                              @Value("${localtube.transcoding.extra-codec-qualities:1080p,2160p}") List<String> extraCodecQualities,
+                              @Value("${localtube.transcoding.audio.separate:true}") boolean separateAudio,
+                              @Value("${localtube.transcoding.audio.bitrates:128k}") List<String> audioBitrates,
+                              @Value("${localtube.transcoding.remux.enabled:true}") boolean remuxEnabled,
+                              @Value("${localtube.transcoding.remux.max-bitrate-ratio:1.5}") double remuxMaxBitrateRatio,
+                              @Value("${localtube.transcoding.thumbnails.enabled:true}") boolean thumbnailsEnabled,
+                              @Value("${localtube.transcoding.thumbnails.interval:5}") int thumbnailInterval,
+                              @Value("${localtube.transcoding.thumbnails.max-count:1000}") int thumbnailMaxCount) {
         this.videoService = videoService;
+        this.scheduler = scheduler;
+        this.progressService = progressService;
+        this.perTitleLadder = perTitleLadder;
+        this.renditionExecutor = renditionExecutor;
         this.hlsDir = Paths.get(hlsDirPath);
         this.segmentDuration = segmentDuration;
         this.allowedQualities = qualities;
+        this.splitMinDuration = splitMinDuration;
+        this.splitPartDuration = splitPartDuration;
+        this.splitMaxParts = splitMaxParts;
+        this.progressive = progressive;
+        this.fmp4 = "fmp4".equalsIgnoreCase(segmentType.trim());
+        this.extraCodecQualities = extraCodecQualities;
+        
+        for (String name : extraCodecs) {
+            if (name.isBlank()) {
+                continue;
+            }
+            VideoCodec codec = VideoCodec.parse(name);
+            if (codec == VideoCodec.H264) {
+                continue;
+            }
+            if (!fmp4) {
+                // HEVC needs fMP4 segments on Apple players, AV1 everywhere
+                System.err.println("[Transcoding] Ignoring extra codec " + name + " - it needs segment-type fmp4");
+                continue;
+            }
+            this.extraCodecs.add(codec);
+        }
+        
+        this.separateAudio = separateAudio;
+        for (String bitrate : audioBitrates) {
+            if (!bitrate.isBlank()) {
+                int kbps = Integer.parseInt(bitrate.trim().toLowerCase(Locale.ROOT).replace("k", ""));
+                this.audioProfiles.add(new AudioProfile(kbps * 1000));
+            }
+        }
+        this.audioProfiles.sort(Comparator.comparingInt(a -> a.bitrate));
+        
+        this.remuxEnabled = remuxEnabled;
+        this.remuxMaxBitrateRatio = remuxMaxBitrateRatio;
+        this.thumbnailsEnabled = thumbnailsEnabled;
+        this.thumbnailInterval = thumbnailInterval;
+        this.thumbnailMaxCount = thumbnailMaxCount;
     }
     
     /**
-     * Transcode video to HLS (async)
+     * Transcode video to HLS - called by a TranscodeJobQueue worker
+     * Renditions in alreadyDone that finished on disk are kept, the rest are encoded.
+     * Throws if not a single rendition could be produced; the queue decides about retries.
      */
-    @Async("videoProcessingExecutor")
-    public void transcodeToHLS(String videoId, Path inputFile) {
+    public List<String> transcodeToHLS(String videoId, Path inputFile, List<String> alreadyDone,
+                                       Consumer<String> onRenditionDone) throws Exception {
+        AtomicBoolean attempt = attempts.computeIfAbsent(videoId, k -> new AtomicBoolean());
         try {
+            checkCancelled(videoId);
             System.out.println("[Transcoding] Starting for video: " + videoId);
             
             // Update status to processing
@@ -61,37 +184,142 @@ public class TranscodingService {
             // Update metadata
             videoService.updateVideoMetadata(videoId, info.width, info.height, 
                     info.durationSeconds, Files.size(inputFile));
+            progressService.jobStarted(videoId, info.durationSeconds);
             
-            // Build quality profiles
+            // Build quality profiles fitted to the content, skipping renditions an earlier attempt finished
             List<QualityProfile> profiles = buildQualityProfiles(info);
+            if (perTitleLadder.isEnabled() && !profiles.isEmpty()) {
+                // Sample encodes take cores from the budget and die with the video like renditions
+                int probeCores = scheduler.acquire(PerTitleLadder.PROBE_THREADS);
+                try {
+                    profiles = perTitleLadder.adapt(inputFile, info, profiles, probeCores,
+                            (cmd, span) -> runProcess(videoId, videoId + "_probe", cmd, span));
+                } finally {
+                    scheduler.release(probeCores);
+                }
+                checkCancelled(videoId);
+            }
+            List<QualityProfile> todo = new ArrayList<>();
+            for (QualityProfile profile : profiles) {
+                if (alreadyDone.contains(profile.label) && isRenditionComplete(outputDir.resolve(profile.label))) {
+                    System.out.println("[Transcoding] Reusing finished " + profile.label + " for " + videoId);
+                } else {
+                    // Finished parts of a split encode are kept, anything else starts over
+                    if (!hasPartPlaylists(outputDir.resolve(profile.label))) {
+                        deleteDirectoryRecursive(outputDir.resolve(profile.label));
+                    }
+                    todo.add(profile);
+                }
+            }
             
-            // Master playlist content
-            StringBuilder masterPlaylist = new StringBuilder();
-            masterPlaylist.append("#EXTM3U\n");
-            masterPlaylist.append("#EXT-X-VERSION:3\n");
+            // Audio goes first and once into its own renditions - every video variant refers to it
+            boolean hasAudio = info.videoCodec != null ? info.audioCodec != null : hasAudio(inputFile);
+            List<AudioProfile> audio = hasAudio && separateAudio ? transcodeAudio(videoId, inputFile, outputDir) : List.of();
+            boolean muxAudio = hasAudio && !separateAudio;
+            checkCancelled(videoId);
             
-            // Transcode each quality
+            // Every finished rendition goes into the master playlist straight away
+            ProgressivePublisher publisher = new ProgressivePublisher(videoId, outputDir, profiles, hasAudio, audio);
+            Consumer<String> onDone = label -> {
+                onRenditionDone.accept(label);
+                publisher.publish(label);
+            };
             for (QualityProfile profile : profiles) {
-                if (!transcodeQuality(videoId, inputFile, outputDir, profile)) {
-                    System.err.println("[Transcoding] Failed for quality: " + profile.label);
-                    continue;
+                if (!todo.contains(profile)) {
+                    publisher.publish(profile.label);
+                }
+            }
+            
+            // Poster and sprites ride along with the first full decode below
+            ThumbnailPlan thumbnails = null;
+            if (thumbnailsEnabled && !thumbnailsComplete(outputDir)) {
+                thumbnails = thumbnailPlan(outputDir, info.durationSeconds);
+                deleteDirectoryRecursive(thumbnails.dir);
+                Files.createDirectories(thumbnails.dir);
+                pendingThumbnails.put(videoId, thumbnails);
+            }
+            
+            // A source that already is one of the renditions is copied into HLS, not encoded
+            QualityProfile remuxTarget = remuxTarget(inputFile, info, todo);
+            if (remuxTarget != null) {
+                QualityProfile copied = remux(videoId, inputFile, outputDir, remuxTarget, info, muxAudio);
+                if (copied != null) {
+                    profiles.set(profiles.indexOf(remuxTarget), copied);
+                    todo.remove(remuxTarget);
+                    onDone.accept(copied.label);
                 }
+            }
+            
+            // Take cores from the global budget and encode the renditions with them
+            List<QualityProfile> encoded = new ArrayList<>();
+            if (!todo.isEmpty()) {
+                // Long videos are cut at keyframes and the parts encoded side by side
+                List<Double> cuts = info.durationSeconds >= splitMinDuration
+                        ? splitPoints(inputFile, info.durationSeconds) : List.of();
                 
-                // Add to master playlist
-                masterPlaylist.append("#EXT-X-STREAM-INF:BANDWIDTH=")
-                        .append(profile.bandwidth)
-                        .append(",RESOLUTION=")
-                        .append(profile.width).append("x").append(profile.height)
-                        .append("\n")
-                        .append(profile.label).append("/playlist.m3u8\n");
+                int wanted = todo.stream().mapToInt(this::threadWeight).sum() * (cuts.size() + 1);
+                int cores = scheduler.acquire(wanted);
+                try {
+                    System.out.println("[Transcoding] Using " + cores + "/" + wanted + " cores for " + videoId);
+                    if (!cuts.isEmpty()) {
+                        encoded = transcodeInParts(videoId, inputFile, outputDir, todo, muxAudio, cores, cuts, onDone);
+                        if (encoded.isEmpty()) {
+                            System.err.println("[Transcoding] Split encode failed for " + videoId + ", encoding in one piece");
+                        }
+                    }
+                    if (encoded.isEmpty() && progressivePassPays(todo, cores)) {
+                        // One process would finish every quality at the same moment -
+                        // encode the cheapest alone first so there is something to watch
+                        QualityProfile cheapest = todo.stream()
+                                .min(Comparator.comparingInt(this::threadWeight)).orElseThrow();
+                        List<QualityProfile> rest = new ArrayList<>(todo);
+                        rest.remove(cheapest);
+                        encoded = new ArrayList<>(transcodeGroup(videoId, inputFile, outputDir,
+                                List.of(cheapest), muxAudio, cores, onDone));
+                        encoded.addAll(transcodeInGroups(videoId, inputFile, outputDir, rest, muxAudio, cores, onDone));
+                    } else if (encoded.isEmpty()) {
+                        encoded = transcodeInGroups(videoId, inputFile, outputDir, todo, muxAudio, cores, onDone);
+                    }
+                } finally {
+                    scheduler.release(cores);
+                }
                 
-                // Add quality to video in Elasticsearch
+                // A quality with its playlist.m3u8 has no use for the parts any more
+                if (!cuts.isEmpty()) {
+                    for (QualityProfile profile : encoded) {
+                        deletePartArtifacts(outputDir.resolve(profile.label));
+                    }
+                }
+            }
+            
+            // Killed processes look like failed renditions - do not publish what is left
+            checkCancelled(videoId);
+            
+            List<QualityProfile> completed = new ArrayList<>();
+            for (QualityProfile profile : profiles) {
+                if (!todo.contains(profile) || encoded.contains(profile)) {
+                    completed.add(profile);
+                }
+            }
+            if (completed.isEmpty()) {
+                throw new IOException("No rendition could be encoded");
+            }
+            
+            // No decode took the thumbnails (split, remux, reuse) - a keyframe-only pass does
+            if (thumbnails != null) {
+                if (pendingThumbnails.remove(videoId) != null) {
+                    generateThumbnails(videoId, inputFile, thumbnails);
+                }
+                publishThumbnails(videoId, thumbnails, info.durationSeconds);
+            }
+            
+            // Add qualities to video in Elasticsearch
+            for (QualityProfile profile : completed) {
                 videoService.addQualityToVideo(videoId, profile.label);
             }
             
             // Write master playlist
-            Path masterFile = outputDir.resolve("master.m3u8");
-            Files.writeString(masterFile, masterPlaylist.toString());
+            writeMasterPlaylist(outputDir, completed, hasAudio, audio);
             
             // Delete original file
             Files.deleteIfExists(inputFile);
@@ -100,204 +328,1633 @@ public class TranscodingService {
             videoService.updateVideoStatus(videoId, VideoStatus.READY);
             
             System.out.println("[Transcoding] SUCCESS: " + videoId);
+            return completed.stream().map(p -> p.label).toList();
             
-        } catch (Exception e) {
-            System.err.println("[Transcoding ERROR] " + e.getMessage());
-            e.printStackTrace();
-            
-            try {
-                videoService.updateVideoStatus(videoId, VideoStatus.FAILED);
-                Files.deleteIfExists(inputFile);
-            } catch (IOException ignored) {}
+        } finally {
+            pendingThumbnails.remove(videoId);
+            progressService.jobFinished(videoId);
+            attempts.remove(videoId, attempt);
         }
     }
     
     /**
-     * Transcode single quality
+     * The rendition the source can be stream-copied into: same size, H.264 in 8-bit 4:2:0
+     * as every player decodes it, a bitrate the rung allows and keyframes at least
+     * every segment so the segments can be cut without encoding
+     */
+    QualityProfile remuxTarget(Path input, VideoInfo info, List<QualityProfile> todo) throws IOException, InterruptedException {
+        QualityProfile target = remuxCandidate(info, todo);
+        if (target == null) {
+            return null;
+        }
+        
+        // Only now scan packets - the first minutes tell how the recorder places keyframes
+        List<Double> keyframes = keyframeTimes(input, REMUX_GOP_SCAN_SECONDS);
+        if (!keyframesFitSegments(keyframes)) {
+            System.out.println("[Transcoding] No remux into " + target.label + ": keyframe interval "
+                    + String.format(Locale.ROOT, "%.1f", maxKeyframeInterval(keyframes)) + "s");
+            return null;
+        }
+        return target;
+    }
+    
+    /**
+     * The rung the stream itself qualifies for, before its keyframes are looked at
+     */
+    QualityProfile remuxCandidate(VideoInfo info, List<QualityProfile> todo) {
+        if (!remuxEnabled || !"h264".equals(info.videoCodec) || !"yuv420p".equals(info.pixFmt)
+                || !AVC_PROFILES.containsKey(String.valueOf(info.videoProfile)) || info.videoBitrate <= 0) {
+            return null;
+        }
+        QualityProfile target = todo.stream()
+                .filter(p -> p.codec == VideoCodec.H264 && p.width == info.width && p.height == info.height)
+                .findFirst().orElse(null);
+        if (target == null) {
+            return null;
+        }
+        long ceiling = (long) (Math.max(target.bandwidth, target.maxrate) * remuxMaxBitrateRatio);
+        if (info.videoBitrate > ceiling) {
+            System.out.println("[Transcoding] No remux into " + target.label + ": "
+                    + info.videoBitrate / 1000 + " kb/s is over " + ceiling / 1000 + " kb/s");
+            return null;
+        }
+        return target;
+    }
+    
+    /**
+     * Whether a copy can be cut into segments: a keyframe at least every segment duration
+     */
+    boolean keyframesFitSegments(List<Double> keyframes) {
+        return keyframes.size() >= 2 && maxKeyframeInterval(keyframes) <= segmentDuration;
+    }
+    
+    private static double maxKeyframeInterval(List<Double> keyframes) {
+        double maxGop = 0;
+        for (int i = 1; i < keyframes.size(); i++) {
+            maxGop = Math.max(maxGop, keyframes.get(i) - keyframes.get(i - 1));
+        }
+        return maxGop;
+    }
+    
+    /**
+     * Stream-copy the video into the rendition; the audio follows the job's audio layout.
+     * Returns the profile with the source's real CODECS, or null if the copy failed.
      */
-    private boolean transcodeQuality(String videoId, Path input, Path outputDir, QualityProfile profile) {
+    private QualityProfile remux(String videoId, Path input, Path outputDir, QualityProfile profile,
+                                 VideoInfo info, boolean withAudio) {
+        Path qualityDir = outputDir.resolve(profile.label);
         try {
-            Path qualityDir = outputDir.resolve(profile.label);
+            deleteDirectoryRecursive(qualityDir);
             Files.createDirectories(qualityDir);
             
-            System.out.println("[Transcoding] Processing " + profile.label + " for " + videoId);
+            System.out.println("[Transcoding] Remuxing " + profile.label + " for " + videoId);
             
-            // Build FFmpeg command - NO ENCRYPTION
-            ProcessBuilder pb = new ProcessBuilder(
+            List<String> cmd = new ArrayList<>(List.of(
                     "ffmpeg",
                     "-i", input.toAbsolutePath().toString(),
-                    "-vf", "scale=" + profile.width + ":" + profile.height + 
-                           ":force_original_aspect_ratio=decrease,pad=" + 
-                           profile.width + ":" + profile.height + ":(ow-iw)/2:(oh-ih)/2",
-                    "-c:v", "libx264",
-                    "-preset", "fast",              // Faster encoding
-                    "-crf", "23",                   // Good quality/size balance
-                    "-profile:v", "high",
-                    "-level", "4.0",
-                    "-pix_fmt", "yuv420p",
-                    "-c:a", "aac",
-                    "-b:a", "128k",
-                    "-ar", "48000",
-                    "-movflags", "+faststart",
+                    "-map", "0:v:0",
+                    "-c:v", "copy"
+            ));
+            if (withAudio) {
+                cmd.addAll(List.of("-map", "0:a:0"));
+                cmd.addAll("aac".equals(info.audioCodec)
+                        ? List.of("-c:a", "copy")
+                        : List.of("-c:a", "aac", "-b:a", "128k", "-ar", "48000"));
+            } else {
+                cmd.add("-an");
+            }
+            cmd.addAll(List.of(
                     "-hls_time", String.valueOf(segmentDuration),
                     "-hls_playlist_type", "vod",
-                    "-hls_flags", "independent_segments",
-                    "-hls_segment_filename", qualityDir.resolve("seg_%03d.ts").toString(),
-                    qualityDir.resolve("playlist.m3u8").toString()
-            );
-            
-            pb.redirectErrorStream(false);
-            pb.redirectError(ProcessBuilder.Redirect.DISCARD);
-            
-            Process process = pb.start();
-            activeProcesses.put(videoId + "_" + profile.label, process);
-            
-            // Monitor progress
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.contains("frame=") || line.contains("speed=")) {
-                        System.out.println("[FFmpeg " + profile.label + "] " + line);
-                    }
-                }
+                    "-hls_flags", "independent_segments"
+            ));
+            if (fmp4) {
+                cmd.addAll(List.of(
+                        "-hls_segment_type", "fmp4",
+                        "-hls_fmp4_init_filename", "init_" + profile.label + ".mp4"));
             }
+            cmd.addAll(List.of(
+                    "-hls_segment_filename", qualityDir.resolve("seg_%03d." + segmentExtension()).toString(),
+                    qualityDir.resolve("playlist.m3u8").toString()
+            ));
             
-            int exitCode = process.waitFor();
-            activeProcesses.remove(videoId + "_" + profile.label);
-            
+            int exitCode = runProcess(videoId, videoId + "_" + profile.label, cmd, 0);
             if (exitCode != 0) {
-                System.err.println("[Transcoding] FFmpeg failed with exit code: " + exitCode);
+                System.err.println("[Transcoding] Remux failed with exit code: " + exitCode + ", encoding instead");
                 deleteDirectoryRecursive(qualityDir);
-                return false;
+                return null;
             }
             
-            System.out.println("[Transcoding] SUCCESS: " + profile.label);
-            return true;
+            System.out.println("[Transcoding] SUCCESS: " + profile.label + " by remux");
+            String codecs = String.format(Locale.ROOT, "avc1.%s%02X", AVC_PROFILES.get(info.videoProfile), info.videoLevel);
+            return new QualityProfile(profile.label, profile.width, profile.height,
+                    (int) info.videoBitrate, 0, VideoCodec.H264, codecs);
             
         } catch (Exception e) {
-            System.err.println("[Transcoding] Error for " + profile.label + ": " + e.getMessage());
-            return false;
+            System.err.println("[Transcoding] Remux error for " + profile.label + ": " + e.getMessage());
+            deleteDirectoryRecursive(qualityDir);
+            return null;
         }
     }
     
     /**
-     * Get video information using ffprobe
+     * Encode the audio once per configured bitrate into audio-only renditions;
+     * finished ones from an earlier attempt are kept
      */
-    private VideoInfo getVideoInfo(Path input) throws IOException, InterruptedException {
-        ProcessBuilder pb = new ProcessBuilder(
-                "ffprobe",
-                "-v", "error",
-                "-select_streams", "v:0",
-                "-show_entries", "stream=width,height,duration",
-                "-of", "csv=p=0",
-                input.toAbsolutePath().toString()
-        );
+    private List<AudioProfile> transcodeAudio(String videoId, Path input, Path outputDir) throws Exception {
+        for (AudioProfile audio : audioProfiles) {
+            Path audioDir = outputDir.resolve(audio.label);
+            if (isRenditionComplete(audioDir)) {
+                System.out.println("[Transcoding] Reusing finished " + audio.label + " for " + videoId);
+                continue;
+            }
+            deleteDirectoryRecursive(audioDir);
+            Files.createDirectories(audioDir);
+            
+            System.out.println("[Transcoding] Processing " + audio.label + " for " + videoId);
+            int exitCode = runProcess(videoId, videoId + "_" + audio.label,
+                    audioCommand(input.toAbsolutePath().toString(), audioDir, audio), 0);
+            if (exitCode != 0) {
+                deleteDirectoryRecursive(audioDir);
+                throw new IOException("Audio encode " + audio.label + " failed with exit code: " + exitCode);
+            }
+        }
+        return audioProfiles;
+    }
+    
+    /**
+     * Split renditions into groups that run in parallel, one decode per group,
+     * and share the granted cores between them by rendition size
+     */
+    private List<QualityProfile> transcodeInGroups(String videoId, Path input, Path outputDir,
+                                                   List<QualityProfile> profiles, boolean hasAudio, int cores,
+                                                   Consumer<String> onRenditionDone) {
+        int groupCount = scheduler.groupsFor(cores, profiles.size());
         
-        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        // Largest first into the lightest group keeps group weights even
+        List<List<QualityProfile>> groups = new ArrayList<>();
+        int[] weights = new int[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(new ArrayList<>());
+        }
+        List<QualityProfile> bySize = new ArrayList<>(profiles);
+        bySize.sort(Comparator.comparingInt(this::threadWeight).reversed());
+        for (QualityProfile profile : bySize) {
+            int lightest = 0;
+            for (int i = 1; i < groupCount; i++) {
+                if (weights[i] < weights[lightest]) {
+                    lightest = i;
+                }
+            }
+            groups.get(lightest).add(profile);
+            weights[lightest] += threadWeight(profile);
+        }
         
-        Process process = pb.start();
-        String line;
+        int totalWeight = profiles.stream().mapToInt(this::threadWeight).sum();
+        List<CompletableFuture<List<QualityProfile>>> futures = new ArrayList<>();
+        for (int i = 0; i < groupCount; i++) {
+            List<QualityProfile> group = groups.get(i);
+            int threads = Math.max(1, cores * weights[i] / totalWeight);
+            if (groupCount == 1) {
+                futures.add(CompletableFuture.completedFuture(
+                        transcodeGroup(videoId, input, outputDir, group, hasAudio, threads, onRenditionDone)));
+            } else {
+                futures.add(CompletableFuture.supplyAsync(
+                        () -> transcodeGroup(videoId, input, outputDir, group, hasAudio, threads, onRenditionDone),
+                        renditionExecutor));
+            }
+        }
         
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            line = reader.readLine();
+        List<QualityProfile> done = new ArrayList<>();
+        for (CompletableFuture<List<QualityProfile>> future : futures) {
+            done.addAll(future.join());
         }
         
-        process.waitFor();
+        // Keep the ladder order of the profiles
+        List<QualityProfile> completed = new ArrayList<>();
+        for (QualityProfile profile : profiles) {
+            if (done.contains(profile)) {
+                completed.add(profile);
+            }
+        }
+        return completed;
+    }
+    
+    /**
+     * Whether to encode the cheapest rendition on its own before the rest. One process
+     * for the whole ladder closes every playlist at once; a pass of its own gets a variant
+     * out early, for one more decode of the input - paid only when the rest takes far longer.
+     */
+    boolean progressivePassPays(List<QualityProfile> todo, int cores) {
+        if (!progressive || todo.size() < 2 || scheduler.groupsFor(cores, todo.size()) != 1) {
+            return false;
+        }
+        int cheapest = todo.stream().mapToInt(this::threadWeight).min().orElseThrow();
+        int total = todo.stream().mapToInt(this::threadWeight).sum();
+        return total - cheapest >= PROGRESSIVE_MIN_GAIN * cheapest;
+    }
+    
+    /**
+     * Encode a long video as parts cut at keyframes, in parallel, then stitch each
+     * quality's part playlists into one. Returns nothing if any part failed.
+     * Parts that finished in an earlier attempt are not encoded again.
+     */
+    private List<QualityProfile> transcodeInParts(String videoId, Path input, Path outputDir,
+                                                  List<QualityProfile> profiles, boolean hasAudio, int cores,
+                                                  List<Double> cuts, Consumer<String> onRenditionDone) {
+        int parts = cuts.size() + 1;
+        int threadsPerPart = Math.max(1, cores / parts);
+        System.out.println("[Transcoding] Splitting " + videoId + " into " + parts + " parts");
         
-        if (line != null) {
-            String[] parts = line.split(",");
-            if (parts.length >= 2) {
-                int width = Integer.parseInt(parts[0].trim());
-                int height = Integer.parseInt(parts[1].trim());
-                int duration = parts.length >= 3 ? (int) Double.parseDouble(parts[2].trim()) : 0;
-                return new VideoInfo(width, height, duration);
+        try {
+            for (QualityProfile profile : profiles) {
+                Files.createDirectories(outputDir.resolve(profile.label));
             }
+        } catch (IOException e) {
+            System.err.println("[Transcoding] Cannot prepare part output: " + e.getMessage());
+            return List.of();
+        }
+        
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int k = 0; k < parts; k++) {
+            int part = k;
+            double start = k == 0 ? 0 : cuts.get(k - 1);
+            Double end = k < cuts.size() ? cuts.get(k) : null;
+            futures.add(CompletableFuture.supplyAsync(
+                    () -> transcodePart(videoId, input, outputDir, profiles, hasAudio, threadsPerPart, part, start, end),
+                    renditionExecutor));
         }
         
-        return new VideoInfo(1920, 1080, 0);
+        boolean allParts = true;
+        for (CompletableFuture<Boolean> future : futures) {
+            allParts &= future.join();
+        }
+        if (!allParts) {
+            return List.of();
+        }
+        
+        try {
+            for (QualityProfile profile : profiles) {
+                stitchPlaylists(outputDir.resolve(profile.label), parts);
+                onRenditionDone.accept(profile.label);
+            }
+        } catch (IOException e) {
+            System.err.println("[Transcoding] Stitching failed for " + videoId + ": " + e.getMessage());
+            return List.of();
+        }
+        return profiles;
     }
     
     /**
-     * Build quality profiles based on input resolution
-     * Limited to: 480p, 720p, 1080p, 2160p (4K)
+     * Encode one time range of the input into every quality
      */
-    private List<QualityProfile> buildQualityProfiles(VideoInfo info) {
-        List<QualityProfile> profiles = new ArrayList<>();
+    private boolean transcodePart(String videoId, Path input, Path outputDir, List<QualityProfile> profiles,
+                                  boolean hasAudio, int threads, int part, double start, Double end) {
+        String playlistName = partPlaylistName(part);
+        if (profiles.stream().allMatch(p -> isPlaylistComplete(outputDir.resolve(p.label).resolve(playlistName)))) {
+            System.out.println("[Transcoding] Reusing finished part " + part + " of " + videoId);
+            return true;
+        }
         
-        // Always include 480p (minimum quality)
-        if (allowedQualities.contains("480p")) {
-            profiles.add(new QualityProfile("480p", 854, 480, 1_500_000));
+        List<String> seek = new ArrayList<>(List.of("-ss", String.format(Locale.ROOT, "%.3f", start)));
+        if (end != null) {
+            seek.addAll(List.of("-t", String.format(Locale.ROOT, "%.3f", end - start)));
         }
         
-        // Add higher qualities based on input resolution
-        if (info.height >= 720 && allowedQualities.contains("720p")) {
-            profiles.add(new QualityProfile("720p", 1280, 720, 3_000_000));
+        String processKey = videoId + "_part" + part;
+        try {
+            List<String> cmd = singleDecodeCommand(seek, input.toAbsolutePath().toString(), outputDir, profiles,
+                    hasAudio, threads, playlistName, String.format("p%03d_", part));
+            double span = end != null ? end - start : 0;
+            int exitCode = runProcess(videoId, processKey, cmd, span);
+            if (exitCode != 0) {
+                System.err.println("[Transcoding] Part " + part + " of " + videoId + " failed with exit code: " + exitCode);
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            System.err.println("[Transcoding] Part " + part + " of " + videoId + " error: " + e.getMessage());
+            return false;
         }
+    }
+    
+    /**
+     * Join part playlists into playlist.m3u8 - a discontinuity before every part,
+     * since each part's timestamps start again at zero
+     */
+    void stitchPlaylists(Path qualityDir, int parts) throws IOException {
+        StringBuilder segments = new StringBuilder();
+        double targetDuration = segmentDuration;
+        boolean initSegments = false;
         
-        if (info.height >= 1080 && allowedQualities.contains("1080p")) {
-            profiles.add(new QualityProfile("1080p", 1920, 1080, 6_000_000));
+        for (int k = 0; k < parts; k++) {
+            if (k > 0) {
+                segments.append("#EXT-X-DISCONTINUITY\n");
+            }
+            for (String line : Files.readAllLines(qualityDir.resolve(partPlaylistName(k)))) {
+                if (line.startsWith("#EXTINF:")) {
+                    String value = line.substring("#EXTINF:".length());
+                    int comma = value.indexOf(',');
+                    targetDuration = Math.max(targetDuration,
+                            Double.parseDouble(comma >= 0 ? value.substring(0, comma) : value));
+                    segments.append(line).append("\n");
+                } else if (line.startsWith("#EXT-X-MAP:")) {
+                    // fMP4 parts each bring their own init segment
+                    initSegments = true;
+                    segments.append(line).append("\n");
+                } else if (!line.isBlank() && !line.startsWith("#")) {
+                    segments.append(line).append("\n");
+                }
+            }
         }
         
-        if (info.height >= 2160 && allowedQualities.contains("2160p")) {
-            profiles.add(new QualityProfile("2160p", 3840, 2160, 25_000_000));
+        StringBuilder playlist = new StringBuilder();
+        playlist.append("#EXTM3U\n");
+        playlist.append("#EXT-X-VERSION:").append(initSegments ? 7 : 3).append("\n");
+        playlist.append("#EXT-X-TARGETDURATION:").append((int) Math.ceil(targetDuration)).append("\n");
+        playlist.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        playlist.append("#EXT-X-PLAYLIST-TYPE:VOD\n");
+        playlist.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        playlist.append(segments);
+        playlist.append("#EXT-X-ENDLIST\n");
+        
+        Path tmp = qualityDir.resolve("playlist.m3u8.tmp");
+        Files.writeString(tmp, playlist.toString());
+        Files.move(tmp, qualityDir.resolve("playlist.m3u8"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        for (int k = 0; k < parts; k++) {
+            Files.deleteIfExists(qualityDir.resolve(partPlaylistName(k)));
+        }
+    }
+    
+    /**
+     * Remove what a split encode left next to a finished playlist.m3u8: the part playlists,
+     * and part segments and init files the playlist does not use (the quality fell back
+     * to one piece). Left behind they also keep the next attempt from starting it over.
+     */
+    void deletePartArtifacts(Path qualityDir) throws IOException {
+        Path playlist = qualityDir.resolve("playlist.m3u8");
+        if (!Files.exists(playlist)) {
+            return;
+        }
+        Set<String> used = new HashSet<>();
+        for (String line : Files.readAllLines(playlist)) {
+            if (line.startsWith("#EXT-X-MAP:")) {
+                Matcher uri = MAP_URI.matcher(line);
+                if (uri.find()) {
+                    used.add(uri.group(1));
+                }
+            } else if (!line.isBlank() && !line.startsWith("#")) {
+                used.add(line.trim());
+            }
         }
         
-        return profiles;
+        try (Stream<Path> files = Files.list(qualityDir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("part_") || (PART_FILE.matcher(name).matches() && !used.contains(name))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
     }
     
     /**
-     * Delete directory recursively
+     * Keyframe times to cut at - roughly every part-duration seconds, on a segment
+     * boundary where the source allows it, never more than max-parts parts
      */
-    private void deleteDirectoryRecursive(Path dir) {
-        try {
-            if (Files.exists(dir)) {
-                Files.walk(dir)
-                        .sorted((a, b) -> b.compareTo(a))
-                        .forEach(p -> {
-                            try {
-                                Files.deleteIfExists(p);
-                            } catch (IOException e) {
-                                System.err.println("[Transcoding] Cannot delete: " + p);
-                            }
-                        });
+    List<Double> splitPoints(Path input, int durationSeconds) throws IOException, InterruptedException {
+        int parts = Math.min(splitMaxParts, (int) Math.ceil(durationSeconds / (double) splitPartDuration));
+        if (parts < 2) {
+            return List.of();
+        }
+        
+        List<Double> keyframes = keyframeTimes(input);
+        List<Double> cuts = new ArrayList<>();
+        int next = 0;
+        for (int i = 1; i < parts; i++) {
+            double target = Math.round(durationSeconds * (double) i / parts / segmentDuration) * (double) segmentDuration;
+            while (next < keyframes.size() && keyframes.get(next) < target) {
+                next++;
+            }
+            if (next >= keyframes.size()) {
+                break;
+            }
+            double cut = keyframes.get(next);
+            if (cut > 0 && (cuts.isEmpty() || cut > cuts.get(cuts.size() - 1)) && cut < durationSeconds) {
+                cuts.add(cut);
             }
-        } catch (IOException e) {
-            System.err.println("[Transcoding] Delete failed: " + dir);
         }
+        return cuts;
     }
     
     /**
-     * Cancel transcoding for a video
+     * Presentation times of the video keyframes (packet scan, no decoding)
      */
-    public void cancelTranscoding(String videoId) {
-        activeProcesses.entrySet().stream()
-                .filter(e -> e.getKey().startsWith(videoId))
-                .forEach(e -> {
-                    e.getValue().destroyForcibly();
-                    activeProcesses.remove(e.getKey());
-                });
+    private List<Double> keyframeTimes(Path input) throws IOException, InterruptedException {
+        return keyframeTimes(input, 0);
     }
     
-    // Inner classes
-    private static class VideoInfo {
-        final int width, height, durationSeconds;
+    /**
+     * Same, for the first limitSeconds only (0 = whole file)
+     */
+    private List<Double> keyframeTimes(Path input, int limitSeconds) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>(List.of(
+                "ffprobe",
+                "-v", "error",
+                "-select_streams", "v:0",
+                "-show_entries", "packet=pts_time,flags",
+                "-of", "csv=p=0"
+        ));
+        if (limitSeconds > 0) {
+            cmd.addAll(List.of("-read_intervals", "%+" + limitSeconds));
+        }
+        cmd.add(input.toAbsolutePath().toString());
+        ProcessBuilder pb = new ProcessBuilder(cmd);
         
-        VideoInfo(int width, int height, int durationSeconds) {
-            this.width = width;
-            this.height = height;
-            this.durationSeconds = durationSeconds;
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        
+        Process process = pb.start();
+        List<Double> times = new ArrayList<>();
+        
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length >= 2 && parts[1].contains("K") && !parts[0].equals("N/A")) {
+                    times.add(Double.parseDouble(parts[0].trim()));
+                }
+            }
         }
+        
+        process.waitFor();
+        times.sort(null);
+        return times;
     }
     
-    private static class QualityProfile {
-        final String label;
-        final int width, height, bandwidth;
+    private boolean hasPartPlaylists(Path qualityDir) {
+        try (Stream<Path> files = Files.list(qualityDir)) {
+            return files.anyMatch(f -> f.getFileName().toString().startsWith("part_"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    private static String partPlaylistName(int part) {
+        return String.format("part_%03d.m3u8", part);
+    }
+    
+    /**
+     * Run an FFmpeg command to the end, feeding its machine-readable progress
+     * (-progress pipe:1, one key=value per line) to the progress service.
+     * spanSeconds is the stretch of media this process covers, 0 for the whole video.
+     */
+    private int runProcess(String videoId, String processKey, List<String> cmd, double spanSeconds)
+            throws IOException, InterruptedException {
+        return runProcess(videoId, processKey, cmd, spanSeconds, process -> {});
+    }
+    
+    /**
+     * Same, handing the started process to onStart first (to feed its stdin)
+     */
+    private int runProcess(String videoId, String processKey, List<String> cmd, double spanSeconds,
+                           Consumer<Process> onStart) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(cmd);
+        command.addAll(1, List.of("-progress", "pipe:1", "-nostats"));
         
-        QualityProfile(String label, int width, int height, int bandwidth) {
-            this.label = label;
-            this.width = width;
-            this.height = height;
-            this.bandwidth = bandwidth;
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(false);
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        
+        checkCancelled(videoId);
+        Process process = pb.start();
+        trackProcess(videoId, process);
+        if (isCancelled(videoId)) {
+            // Cancelled while it was starting - cancelTranscoding did not see it yet
+            process.destroyForcibly();
+        }
+        onStart.accept(process);
+        progressService.processStarted(videoId, processKey, spanSeconds);
+        try {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                Map<String, String> block = new HashMap<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int eq = line.indexOf('=');
+                    if (eq <= 0) {
+                        continue;
+                    }
+                    String key = line.substring(0, eq).trim();
+                    block.put(key, line.substring(eq + 1).trim());
+                    if (key.equals("progress")) {
+                        progressService.update(videoId, processKey, block);
+                        block = new HashMap<>();
+                    }
+                }
+            }
+            return process.waitFor();
+        } finally {
+            untrackProcess(videoId, process);
+            progressService.processFinished(videoId, processKey);
+        }
+    }
+    
+    /**
+     * Encode a group with one decode, falling back to one process per quality
+     */
+    private List<QualityProfile> transcodeGroup(String videoId, Path input, Path outputDir,
+                                                List<QualityProfile> group, boolean hasAudio, int threads,
+                                                Consumer<String> onRenditionDone) {
+        if (transcodeAllQualities(videoId, input, outputDir, group, hasAudio, threads)) {
+            group.forEach(profile -> onRenditionDone.accept(profile.label));
+            return group;
+        }
+        
+        // One bad rendition fails the combined run - fall back to one process per quality
+        int groupWeight = group.stream().mapToInt(this::threadWeight).sum();
+        List<QualityProfile> completed = new ArrayList<>();
+        for (QualityProfile profile : group) {
+            int profileThreads = Math.max(1, threads * threadWeight(profile) / groupWeight);
+            if (!transcodeQuality(videoId, input, outputDir, profile, hasAudio, profileThreads)) {
+                System.err.println("[Transcoding] Failed for quality: " + profile.label);
+                continue;
+            }
+            completed.add(profile);
+            onRenditionDone.accept(profile.label);
+        }
+        return completed;
+    }
+    
+    /**
+     * Transcode all qualities in one FFmpeg run - the input is decoded once and split
+     */
+    private boolean transcodeAllQualities(String videoId, Path input, Path outputDir,
+                                          List<QualityProfile> profiles, boolean hasAudio, int threads) {
+        if (profiles.isEmpty()) {
+            return false;
+        }
+        String processKey = videoId + "_" + String.join("+", profiles.stream().map(p -> p.label).toList());
+        ThumbnailPlan thumbnails = null;
+        try {
+            for (QualityProfile profile : profiles) {
+                Files.createDirectories(outputDir.resolve(profile.label));
+            }
+            
+            System.out.println("[Transcoding] Processing " + profiles.size() + " qualities in one pass for " + videoId);
+            
+            // The first whole-video decode of the job also renders the thumbnails
+            thumbnails = pendingThumbnails.remove(videoId);
+            int exitCode = runProcess(videoId, processKey,
+                    singleDecodeCommand(List.of(), input.toAbsolutePath().toString(), outputDir, profiles, hasAudio,
+                            threads, "playlist.m3u8", "", thumbnails), 0);
+            
+            if (exitCode != 0) {
+                System.err.println("[Transcoding] Single-pass FFmpeg failed with exit code: " + exitCode);
+                if (thumbnails != null) {
+                    pendingThumbnails.put(videoId, thumbnails);
+                }
+                for (QualityProfile profile : profiles) {
+                    deleteDirectoryRecursive(outputDir.resolve(profile.label));
+                }
+                return false;
+            }
+            
+            System.out.println("[Transcoding] SUCCESS: " + processKey + " in one pass");
+            return true;
+            
+        } catch (Exception e) {
+            System.err.println("[Transcoding] Single-pass error: " + e.getMessage());
+            if (thumbnails != null) {
+                pendingThumbnails.put(videoId, thumbnails);
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Transcode single quality
+     */
+    private boolean transcodeQuality(String videoId, Path input, Path outputDir, QualityProfile profile,
+                                     boolean withAudio, int threads) {
+        try {
+            Path qualityDir = outputDir.resolve(profile.label);
+            Files.createDirectories(qualityDir);
+            
+            System.out.println("[Transcoding] Processing " + profile.label + " for " + videoId);
+            
+            // Build FFmpeg command - NO ENCRYPTION
+            int exitCode = runProcess(videoId, videoId + "_" + profile.label,
+                    renditionCommand(input.toAbsolutePath().toString(), qualityDir, profile, threads, withAudio), 0);
+            
+            if (exitCode != 0) {
+                System.err.println("[Transcoding] FFmpeg failed with exit code: " + exitCode);
+                deleteDirectoryRecursive(qualityDir);
+                return false;
+            }
+            
+            System.out.println("[Transcoding] SUCCESS: " + profile.label);
+            return true;
+            
+        } catch (Exception e) {
+            System.err.println("[Transcoding] Error for " + profile.label + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Encode renditions from ffmpeg's stdin with one decode, which feeder fills once the process
+     * is up - the pipelined ingest's transcodeAllQualities, tracked, cancellable and reporting
+     * progress like every other encode. Audio is muxed in only when it has no renditions of its
+     * own; thumbnails (null = none) ride along. Returns ffmpeg's exit code.
+     */
+    int transcodeFromPipe(String videoId, Path outputDir, List<QualityProfile> profiles, VideoInfo info,
+                          ThumbnailPlan thumbnails, int threads, Consumer<Process> feeder)
+            throws IOException, InterruptedException {
+        for (QualityProfile profile : profiles) {
+            Files.createDirectories(outputDir.resolve(profile.label));
+        }
+        String processKey = videoId + "_" + String.join("+", profiles.stream().map(p -> p.label).toList());
+        boolean muxAudio = info.audioCodec != null && !separateAudio;
+        return runProcess(videoId, processKey, singleDecodeCommand(List.of(), "pipe:0", outputDir, profiles,
+                muxAudio, threads, "playlist.m3u8", "", thumbnails), 0, feeder);
+    }
+    
+    /**
+     * Thumbnails for the pipe's decode to render on the way - null when they are off or the
+     * head of the upload does not tell the duration (finishPipelined makes them then)
+     */
+    ThumbnailPlan pipelineThumbnails(Path outputDir, int durationSeconds) throws IOException {
+        if (!thumbnailsEnabled || durationSeconds <= 0) {
+            return null;
+        }
+        ThumbnailPlan thumbnails = thumbnailPlan(outputDir, durationSeconds);
+        deleteDirectoryRecursive(thumbnails.dir);
+        Files.createDirectories(thumbnails.dir);
+        return thumbnails;
+    }
+    
+    /**
+     * The rest of a pipelined transcode once the upload is complete: the audio group the
+     * video variants left out, thumbnails if the pipe did not render them, the master playlist
+     */
+    void finishPipelined(String videoId, Path input, Path outputDir, List<QualityProfile> profiles,
+                         ThumbnailPlan thumbnails, int durationSeconds) throws Exception {
+        boolean hasAudio = hasAudio(input);
+        List<AudioProfile> audio = hasAudio && separateAudio ? transcodeAudio(videoId, input, outputDir) : List.of();
+        
+        if (thumbnailsEnabled) {
+            if (thumbnails == null || !Files.exists(thumbnails.dir.resolve("poster.jpg"))) {
+                // Keyframes only - cheap next to the encode the pipe already did
+                thumbnails = thumbnails != null ? thumbnails : thumbnailPlan(outputDir, durationSeconds);
+                Files.createDirectories(thumbnails.dir);
+                generateThumbnails(videoId, input, thumbnails);
+            }
+            publishThumbnails(videoId, thumbnails, durationSeconds);
+        }
+        
+        writeMasterPlaylist(outputDir, profiles, hasAudio, audio);
+    }
+    
+    /**
+     * Whether uploads may be transcoded while they arrive. The pipelined ingest encodes the
+     * H.264 ladder only, so extra codecs need the normal path. It keeps the static ladder -
+     * per-title sampling needs the complete file.
+     */
+    boolean supportsPipelining() {
+        return extraCodecs.isEmpty();
+    }
+    
+
+    /**
+     * FFmpeg arguments for one rendition; input is a file path or "pipe:0". The encoder
+     * is limited to threads (0 lets ffmpeg decide), audio left out when it lives in its
+     * own rendition.
+     */
+    List<String> renditionCommand(String input, Path qualityDir, QualityProfile profile, int threads,
+                                  boolean withAudio) {
+        List<String> cmd = new ArrayList<>(List.of(
+                "ffmpeg",
+                "-i", input,
+                "-vf", "scale=" + profile.width + ":" + profile.height + 
+                       ":force_original_aspect_ratio=decrease,pad=" + 
+                       profile.width + ":" + profile.height + ":(ow-iw)/2:(oh-ih)/2"
+        ));
+        cmd.addAll(videoEncoderOptions(profile, ":v", threads));
+        cmd.addAll(List.of("-pix_fmt", "yuv420p"));
+        cmd.addAll(withAudio ? List.of("-c:a", "aac", "-b:a", "128k", "-ar", "48000") : List.of("-an"));
+        cmd.addAll(List.of(
+                "-movflags", "+faststart",
+                "-hls_time", String.valueOf(segmentDuration),
+                "-hls_playlist_type", "vod",
+                "-hls_flags", "independent_segments"
+        ));
+        if (fmp4) {
+            cmd.addAll(List.of(
+                    "-hls_segment_type", "fmp4",
+                    "-hls_fmp4_init_filename", "init_" + profile.label + ".mp4"));
+        }
+        cmd.addAll(List.of(
+                "-hls_segment_filename", qualityDir.resolve("seg_%03d." + segmentExtension()).toString(),
+                qualityDir.resolve("playlist.m3u8").toString()
+        ));
+        if (threads > 0) {
+            // Decoder and encoder both default to every core on the box
+            cmd.addAll(cmd.indexOf("-c:v"), List.of("-threads", String.valueOf(threads)));
+            cmd.addAll(1, List.of("-threads", String.valueOf(threads)));
+        }
+        return cmd;
+    }
+    
+    /**
+     * Video encoder options of a rendition; spec is the stream specifier the options
+     * apply to (":v", or ":v:2" for the third output of a single-decode run)
+     */
+    private List<String> videoEncoderOptions(QualityProfile profile, String spec, int threads) {
+        List<String> opts = new ArrayList<>(List.of("-c" + spec, profile.codec.encoder));
+        switch (profile.codec) {
+            case H264 -> opts.addAll(List.of(
+                    "-preset" + spec, "fast",           // Faster encoding
+                    "-crf" + spec, "23",                // Good quality/size balance
+                    "-profile" + spec, "high",
+                    "-level" + spec, "4.0"));
+            case HEVC -> opts.addAll(List.of(
+                    "-preset" + spec, "fast",
+                    "-crf" + spec, "28",                // About the quality of x264 at 23
+                    "-tag" + spec, "hvc1",              // Apple players only take hvc1
+                    "-x265-params" + spec, "level-idc=" + (profile.height > 1080 ? "5.1" : "4.1")
+                            + (threads > 0 ? ":pools=" + threads : "")));
+            case AV1 -> opts.addAll(List.of(
+                    "-preset" + spec, "8",              // Realtime-ish on CPU, still well ahead of x264
+                    "-crf" + spec, "35"));
+        }
+        if (profile.maxrate > 0) {
+            opts.addAll(List.of(
+                    "-maxrate" + spec, String.valueOf(profile.maxrate),
+                    "-bufsize" + spec, String.valueOf(2L * profile.maxrate)));
+        }
+        return opts;
+    }
+    
+    private String segmentExtension() {
+        return fmp4 ? "m4s" : "ts";
+    }
+    
+    /**
+     * FFmpeg arguments for an audio-only rendition (the video is not even decoded)
+     */
+    List<String> audioCommand(String input, Path audioDir, AudioProfile audio) {
+        List<String> cmd = new ArrayList<>(List.of(
+                "ffmpeg",
+                "-i", input,
+                "-map", "0:a:0",
+                "-vn",
+                "-c:a", "aac",
+                "-b:a", String.valueOf(audio.bitrate),
+                "-ar", "48000",
+                "-hls_time", String.valueOf(segmentDuration),
+                "-hls_playlist_type", "vod",
+                "-hls_flags", "independent_segments"
+        ));
+        if (fmp4) {
+            cmd.addAll(List.of(
+                    "-hls_segment_type", "fmp4",
+                    "-hls_fmp4_init_filename", "init_" + audio.label + ".mp4"));
+        }
+        cmd.addAll(List.of(
+                "-hls_segment_filename", audioDir.resolve("seg_%03d." + segmentExtension()).toString(),
+                audioDir.resolve("playlist.m3u8").toString()
+        ));
+        return cmd;
+    }
+    
+    /**
+     * FFmpeg arguments for all renditions at once: one decode, split and scaled per quality,
+     * each written to its own variant directory (named after the quality label)
+     */
+    List<String> singleDecodeCommand(String input, Path outputDir, List<QualityProfile> profiles,
+                                     boolean hasAudio, int threads) {
+        return singleDecodeCommand(List.of(), input, outputDir, profiles, hasAudio, threads,
+                "playlist.m3u8", "", null);
+    }
+    
+    /**
+     * Same, with extra input options (e.g. a time range), a custom playlist name
+     * and a prefix for the segment and init file names
+     */
+    List<String> singleDecodeCommand(List<String> inputOptions, String input, Path outputDir,
+                                     List<QualityProfile> profiles, boolean hasAudio, int threads,
+                                     String playlistName, String filePrefix) {
+        return singleDecodeCommand(inputOptions, input, outputDir, profiles, hasAudio, threads,
+                playlistName, filePrefix, null);
+    }
+    
+    /**
+     * Same, with two more branches off the decoded frames for poster and sprites (null = none)
+     */
+    List<String> singleDecodeCommand(List<String> inputOptions, String input, Path outputDir,
+                                     List<QualityProfile> profiles, boolean hasAudio, int threads,
+                                     String playlistName, String filePrefix, ThumbnailPlan thumbnails) {
+        int n = profiles.size();
+        
+        StringBuilder filter = new StringBuilder("[0:v]split=").append(n + (thumbnails != null ? 2 : 0));
+        for (int i = 0; i < n; i++) {
+            filter.append("[v").append(i).append("]");
+        }
+        if (thumbnails != null) {
+            filter.append("[thumbs][poster]");
+        }
+        for (int i = 0; i < n; i++) {
+            QualityProfile profile = profiles.get(i);
+            filter.append(";[v").append(i).append("]")
+                    .append("scale=").append(profile.width).append(":").append(profile.height)
+                    .append(":force_original_aspect_ratio=decrease,pad=")
+                    .append(profile.width).append(":").append(profile.height).append(":(ow-iw)/2:(oh-ih)/2")
+                    .append("[out").append(i).append("]");
+        }
+        if (thumbnails != null) {
+            filter.append(";").append(thumbnails.filters("[thumbs]", "[poster]"));
+        }
+        
+        List<String> cmd = new ArrayList<>(List.of(
+                "ffmpeg",
+                "-threads", String.valueOf(Math.max(1, threads))
+        ));
+        cmd.addAll(inputOptions);
+        cmd.addAll(List.of(
+                "-i", input,
+                "-filter_complex", filter.toString(),
+                "-filter_complex_threads", String.valueOf(Math.max(1, threads))
+        ));
+        
+        StringBuilder streamMap = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            cmd.add("-map");
+            cmd.add("[out" + i + "]");
+            if (hasAudio) {
+                cmd.add("-map");
+                cmd.add("0:a:0");
+            }
+            if (i > 0) {
+                streamMap.append(" ");
+            }
+            streamMap.append("v:").append(i);
+            if (hasAudio) {
+                streamMap.append(",a:").append(i);
+            }
+            streamMap.append(",name:").append(profiles.get(i).label);
+        }
+        
+        // Per-output encoder, with the thread budget split between the encoders by frame size
+        int totalWeight = profiles.stream().mapToInt(this::threadWeight).sum();
+        for (int i = 0; i < n; i++) {
+            int encoderThreads = Math.max(1, threads * threadWeight(profiles.get(i)) / totalWeight);
+            cmd.add("-threads:v:" + i);
+            cmd.add(String.valueOf(encoderThreads));
+            cmd.addAll(videoEncoderOptions(profiles.get(i), ":v:" + i, encoderThreads));
+        }
+        
+        cmd.addAll(List.of(
+                "-pix_fmt", "yuv420p",
+                "-c:a", "aac",
+                "-b:a", "128k",
+                "-ar", "48000",
+                "-f", "hls",
+                "-hls_time", String.valueOf(segmentDuration),
+                "-hls_playlist_type", "vod",
+                "-hls_flags", "independent_segments",
+                "-var_stream_map", streamMap.toString()
+        ));
+        if (fmp4) {
+            cmd.addAll(List.of(
+                    "-hls_segment_type", "fmp4",
+                    "-hls_fmp4_init_filename", filePrefix + "init_%v.mp4"));
+        }
+        cmd.addAll(List.of(
+                "-hls_segment_filename",
+                outputDir.resolve("%v").resolve(filePrefix + "seg_%03d." + segmentExtension()).toString(),
+                outputDir.resolve("%v").resolve(playlistName).toString()
+        ));
+        if (thumbnails != null) {
+            cmd.addAll(thumbnails.outputs());
+            cmd.add(1, "-y");       // Sprites of a failed attempt may still be there
+        }
+        return cmd;
+    }
+    
+    /**
+     * Encoder threads a rendition can keep busy - one per 960x540 worth of pixels,
+     * more for the codecs that spend more CPU per pixel
+     */
+    int threadWeight(QualityProfile profile) {
+        return Math.max(1, (int) Math.ceil(profile.width * (double) profile.height / (960 * 540)))
+                * profile.codec.cost;
+    }
+    
+    /**
+     * Whether the input has an audio stream to map into every variant
+     */
+    boolean hasAudio(Path input) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(
+                "ffprobe",
+                "-v", "error",
+                "-select_streams", "a:0",
+                "-show_entries", "stream=index",
+                "-of", "csv=p=0",
+                input.toAbsolutePath().toString()
+        );
+        
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        
+        Process process = pb.start();
+        String line;
+        
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            line = reader.readLine();
+        }
+        
+        process.waitFor();
+        
+        return line != null && !line.isBlank();
+    }
+    
+    /**
+     * Sprite every interval seconds - widened for long videos to stay under max-count tiles
+     */
+    ThumbnailPlan thumbnailPlan(Path outputDir, int durationSeconds) {
+        int interval = Math.max(thumbnailInterval,
+                (int) Math.ceil(durationSeconds / (double) Math.max(1, thumbnailMaxCount)));
+        int posterAt = Math.min(durationSeconds / 10, 60);
+        return new ThumbnailPlan(outputDir.resolve("thumbs"), interval, posterAt);
+    }
+    
+    private boolean thumbnailsComplete(Path outputDir) {
+        Path dir = outputDir.resolve("thumbs");
+        return Files.exists(dir.resolve("poster.jpg")) && Files.exists(dir.resolve("thumbnails.vtt"));
+    }
+    
+    /**
+     * Poster and sprites on their own - only keyframes are decoded, which is plenty
+     * at one tile per several seconds
+     */
+    private void generateThumbnails(String videoId, Path input, ThumbnailPlan thumbnails) {
+        List<String> cmd = new ArrayList<>(List.of(
+                "ffmpeg",
+                "-y",
+                "-skip_frame", "nokey",
+                "-i", input.toAbsolutePath().toString(),
+                "-filter_complex", "[0:v]split=2[thumbs][poster];" + thumbnails.filters("[thumbs]", "[poster]")
+        ));
+        cmd.addAll(thumbnails.outputs());
+        try {
+            int exitCode = runProcess(videoId, videoId + "_thumbs", cmd, 0);
+            if (exitCode != 0) {
+                System.err.println("[Transcoding] Thumbnails failed for " + videoId + " with exit code: " + exitCode);
+            }
+        } catch (Exception e) {
+            System.err.println("[Transcoding] Thumbnails error for " + videoId + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Write the WebVTT track over the sprite sheets and record both on the video;
+     * a video without them still plays, so nothing here fails the job
+     */
+    void publishThumbnails(String videoId, ThumbnailPlan thumbnails, int durationSeconds) {
+        try {
+            if (!Files.exists(thumbnails.dir.resolve("poster.jpg"))) {
+                return;
+            }
+            StringBuilder vtt = new StringBuilder("WEBVTT\n");
+            int count = Math.max(1, (int) Math.ceil(durationSeconds / (double) thumbnails.interval));
+            for (int i = 0; i < count; i++) {
+                String sheet = String.format("sprite_%03d.jpg", i / ThumbnailPlan.TILES_PER_SHEET);
+                if (!Files.exists(thumbnails.dir.resolve(sheet))) {
+                    break;
+                }
+                int tile = i % ThumbnailPlan.TILES_PER_SHEET;
+                vtt.append("\n")
+                        .append(vttTime(i * thumbnails.interval)).append(" --> ")
+                        .append(vttTime(Math.min((i + 1) * thumbnails.interval, Math.max(durationSeconds, 1))))
+                        .append("\n")
+                        .append(sheet).append("#xywh=")
+                        .append(tile % ThumbnailPlan.COLUMNS * ThumbnailPlan.TILE_WIDTH).append(",")
+                        .append(tile / ThumbnailPlan.COLUMNS * ThumbnailPlan.TILE_HEIGHT).append(",")
+                        .append(ThumbnailPlan.TILE_WIDTH).append(",").append(ThumbnailPlan.TILE_HEIGHT)
+                        .append("\n");
+            }
+            
+            Path tmp = thumbnails.dir.resolve("thumbnails.vtt.tmp");
+            Files.writeString(tmp, vtt.toString());
+            Files.move(tmp, thumbnails.dir.resolve("thumbnails.vtt"),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            videoService.updateThumbnails(videoId, "/hls/" + videoId + "/thumbs/poster.jpg",
+                    "/hls/" + videoId + "/thumbs/thumbnails.vtt");
+        } catch (IOException e) {
+            System.err.println("[Transcoding] Cannot publish thumbnails of " + videoId + ": " + e.getMessage());
+        }
+    }
+    
+    private static String vttTime(int seconds) {
+        return String.format("%02d:%02d:%02d.000", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+    
+    /**
+     * Write master playlist for the renditions that made it
+     */
+    void writeMasterPlaylist(Path outputDir, List<QualityProfile> profiles, boolean hasAudio) throws IOException {
+        writeMasterPlaylist(outputDir, profiles, hasAudio, List.of());
+    }
+    
+    /**
+     * Same, with the audio in its own renditions - one EXT-X-MEDIA group per bitrate,
+     * the variants carry video only and name the group they play with
+     */
+    void writeMasterPlaylist(Path outputDir, List<QualityProfile> profiles, boolean hasAudio,
+                             List<AudioProfile> audio) throws IOException {
+        StringBuilder masterPlaylist = new StringBuilder();
+        masterPlaylist.append("#EXTM3U\n");
+        masterPlaylist.append("#EXT-X-VERSION:").append(audio.isEmpty() ? 3 : 4).append("\n");
+        
+        for (AudioProfile group : audio) {
+            masterPlaylist.append("#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"").append(group.groupId)
+                    .append("\",NAME=\"Audio\",DEFAULT=YES,AUTOSELECT=YES,URI=\"")
+                    .append(group.label).append("/playlist.m3u8\"\n");
+        }
+        
+        for (QualityProfile profile : profiles) {
+            // Measured from the segments once they exist, the ladder's estimate until then
+            long[] measured = measureBandwidth(outputDir.resolve(profile.label));
+            long peak = measured != null ? measured[0] : profile.bandwidth;
+            long average = measured != null ? measured[1] : 0;
+            
+            // BANDWIDTH covers everything the player fetches, so the audio too
+            AudioProfile group = audio.isEmpty() ? null : audioFor(profile, audio);
+            if (group != null) {
+                long[] audioMeasured = measureBandwidth(outputDir.resolve(group.label));
+                peak += audioMeasured != null ? audioMeasured[0] : group.bitrate;
+                average += audioMeasured != null ? audioMeasured[1] : group.bitrate;
+            }
+            
+            masterPlaylist.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(peak);
+            if (measured != null) {
+                masterPlaylist.append(",AVERAGE-BANDWIDTH=").append(average);
+            }
+            masterPlaylist.append(",RESOLUTION=")
+                    .append(profile.width).append("x").append(profile.height)
+                    .append(",CODECS=\"").append(profile.codecs())
+                    .append(hasAudio ? ",mp4a.40.2" : "").append("\"");
+            if (group != null) {
+                masterPlaylist.append(",AUDIO=\"").append(group.groupId).append("\"");
+            }
+            masterPlaylist.append("\n")
+                    .append(profile.label).append("/playlist.m3u8\n");
+        }
+        
+        // Players may be reading it while renditions are still being added
+        Path tmp = outputDir.resolve("master.m3u8.tmp");
+        Files.writeString(tmp, masterPlaylist.toString());
+        Files.move(tmp, outputDir.resolve("master.m3u8"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Audio group for a variant - the smallest rungs get the lowest audio bitrate
+     */
+    private AudioProfile audioFor(QualityProfile profile, List<AudioProfile> audio) {
+        return profile.height <= 480 ? audio.get(0) : audio.get(audio.size() - 1);
+    }
+    
+    /**
+     * Peak and average bits per second of a finished rendition, from its segment
+     * sizes and durations (peak = the most demanding single segment, as HLS defines BANDWIDTH)
+     */
+    long[] measureBandwidth(Path qualityDir) {
+        Path playlist = qualityDir.resolve("playlist.m3u8");
+        if (!isPlaylistComplete(playlist)) {
+            return null;
+        }
+        try {
+            double peak = 0;
+            double totalBits = 0;
+            double totalSeconds = 0;
+            double duration = 0;
+            for (String line : Files.readAllLines(playlist)) {
+                if (line.startsWith("#EXTINF:")) {
+                    String value = line.substring("#EXTINF:".length());
+                    int comma = value.indexOf(',');
+                    duration = Double.parseDouble(comma >= 0 ? value.substring(0, comma) : value);
+                } else if (!line.isBlank() && !line.startsWith("#") && duration > 0) {
+                    double bits = Files.size(qualityDir.resolve(line.trim())) * 8.0;
+                    peak = Math.max(peak, bits / duration);
+                    totalBits += bits;
+                    totalSeconds += duration;
+                    duration = 0;
+                }
+            }
+            if (totalSeconds <= 0) {
+                return null;
+            }
+            return new long[]{ (long) Math.ceil(peak), (long) Math.ceil(totalBits / totalSeconds) };
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * A rendition is finished once ffmpeg has closed its playlist
+     */
+    boolean isRenditionComplete(Path qualityDir) {
+        return isPlaylistComplete(qualityDir.resolve("playlist.m3u8"));
+    }
+    
+    private boolean isPlaylistComplete(Path playlist) {
+        try {
+            return Files.exists(playlist) && Files.readString(playlist).contains("#EXT-X-ENDLIST");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    Path outputDirFor(String videoId) {
+        return hlsDir.resolve(videoId);
+    }
+    
+    /**
+     * Get video information using ffprobe - one call, every stream and the container,
+     * enough to decide between encoding and stream-copying
+     */
+    VideoInfo getVideoInfo(Path input) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(
+                "ffprobe",
+                "-v", "error",
+                "-show_streams",
+                "-show_format",
+                "-of", "json",
+                input.toAbsolutePath().toString()
+        );
+        
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        
+        Process process = pb.start();
+        byte[] json;
+        
+        try (InputStream in = process.getInputStream()) {
+            json = in.readAllBytes();
+        }
+        
+        process.waitFor();
+        
+        return parseProbeJson(json);
+    }
+    
+    private VideoInfo parseProbeJson(byte[] json) {
+        try {
+            JsonNode root = objectMapper.readTree(json);
+            JsonNode video = null;
+            JsonNode audio = null;
+            for (JsonNode stream : root.path("streams")) {
+                String type = stream.path("codec_type").asText();
+                // Cover art shows up as a one-frame video stream
+                if (video == null && type.equals("video") && stream.path("disposition").path("attached_pic").asInt() == 0) {
+                    video = stream;
+                } else if (audio == null && type.equals("audio")) {
+                    audio = stream;
+                }
+            }
+            if (video == null || video.path("width").asInt() <= 0) {
+                return new VideoInfo(1920, 1080, 0);
+            }
+            
+            // Matroska and WebM only know the duration at container level
+            JsonNode format = root.path("format");
+            double duration = video.path("duration").asDouble(format.path("duration").asDouble(0));
+            
+            VideoInfo info = new VideoInfo(video.path("width").asInt(), video.path("height").asInt(), (int) duration);
+            info.videoCodec = video.path("codec_name").asText(null);
+            info.videoProfile = video.path("profile").asText(null);
+            info.videoLevel = video.path("level").asInt(0);
+            info.pixFmt = video.path("pix_fmt").asText(null);
+            info.fps = parseFrameRate(video.path("avg_frame_rate").asText("0/0"));
+            info.videoBitrate = video.path("bit_rate").asLong(0);
+            if (info.videoBitrate == 0) {
+                // Per-stream bitrate is often missing - the container's is an upper bound
+                info.videoBitrate = format.path("bit_rate").asLong(0)
+                        - (audio != null ? audio.path("bit_rate").asLong(0) : 0);
+            }
+            info.audioCodec = audio != null ? audio.path("codec_name").asText("unknown") : null;
+            return info;
+        } catch (IOException e) {
+            System.err.println("[Transcoding] Unreadable ffprobe output: " + e.getMessage());
+            return new VideoInfo(1920, 1080, 0);
+        }
+    }
+    
+    private static double parseFrameRate(String rate) {
+        String[] parts = rate.split("/");
+        try {
+            double num = Double.parseDouble(parts[0]);
+            double den = parts.length > 1 ? Double.parseDouble(parts[1]) : 1;
+            return den > 0 ? num / den : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * Probe the first bytes of a file through a pipe, the way ffmpeg will read a growing upload.
+     * Duration is 0 when the container only records it at the end.
+     */
+    VideoInfo probePrefix(Path input, long length) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(
+                "ffprobe",
+                "-v", "error",
+                "-show_streams",
+                "-show_format",
+                "-of", "json",
+                "pipe:0"
+        );
+        
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        
+        Process process = pb.start();
+        
+        // Feed the prefix from a separate thread - ffprobe may stop reading early
+        Thread feeder = new Thread(() -> {
+            try (OutputStream stdin = process.getOutputStream();
+                 InputStream in = Files.newInputStream(input)) {
+                in.transferTo(new BoundedOutputStream(stdin, length));
+            } catch (IOException ignored) {
+                // ffprobe closed its input - it has seen enough
+            }
+        }, "ffprobe-feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+        
+        byte[] json;
+        try (InputStream in = process.getInputStream()) {
+            json = in.readAllBytes();
+        }
+        
+        process.waitFor();
+        feeder.join(1_000);
+        
+        return parseProbeJson(json);
+    }
+    
+    /**
+     * Build quality profiles based on input resolution
+     * Limited to: 480p, 720p, 1080p, 2160p (4K)
+     */
+    List<QualityProfile> buildQualityProfiles(VideoInfo info) {
+        List<QualityProfile> profiles = new ArrayList<>();
+        
+        // Always include 480p (minimum quality)
+        if (allowedQualities.contains("480p")) {
+            profiles.add(new QualityProfile("480p", 854, 480, 1_500_000));
+        }
+        
+        // Add higher qualities based on input resolution
+        if (info.height >= 720 && allowedQualities.contains("720p")) {
+            profiles.add(new QualityProfile("720p", 1280, 720, 3_000_000));
+        }
+        
+        if (info.height >= 1080 && allowedQualities.contains("1080p")) {
+            profiles.add(new QualityProfile("1080p", 1920, 1080, 6_000_000));
+        }
+        
+        if (info.height >= 2160 && allowedQualities.contains("2160p")) {
+            profiles.add(new QualityProfile("2160p", 3840, 2160, 25_000_000));
+        }
+        
+        // Smaller streams for players that can decode them, listed after the H.264 ladder
+        List<QualityProfile> extras = new ArrayList<>();
+        for (VideoCodec codec : extraCodecs) {
+            for (QualityProfile base : profiles) {
+                if (extraCodecQualities.contains(base.label)) {
+                    extras.add(new QualityProfile(base.label + "-" + codec.id, base.width, base.height,
+                            (int) (base.bandwidth * codec.efficiency), 0, codec));
+                }
+            }
+        }
+        profiles.addAll(extras);
+        
+        return profiles;
+    }
+    
+    /**
+     * Encode work a source will take, for the job queue's shortest-first order:
+     * seconds of video times the thread weight of its ladder
+     */
+    public double estimateCost(Path input) {
+        try {
+            VideoInfo info = getVideoInfo(input);
+            int weight = buildQualityProfiles(info).stream().mapToInt(this::threadWeight).sum();
+            return Math.max(1, info.durationSeconds) * (double) Math.max(1, weight);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("[Transcoding] Cannot estimate " + input.getFileName() + ": " + e.getMessage());
+            return 1;
+        }
+    }
+    
+    /**
+     * Delete directory recursively
+     */
+    void deleteDirectoryRecursive(Path dir) {
+        try {
+            if (Files.exists(dir)) {
+                Files.walk(dir)
+                        .sorted((a, b) -> b.compareTo(a))
+                        .forEach(p -> {
+                            try {
+                                Files.deleteIfExists(p);
+                            } catch (IOException e) {
+                                System.err.println("[Transcoding] Cannot delete: " + p);
+                            }
+                        });
+            }
+        } catch (IOException e) {
+            System.err.println("[Transcoding] Delete failed: " + dir);
+        }
+    }
+    
+    /**
+     * Whether this JVM is transcoding the video right now
+     */
+    public boolean isTranscoding(String videoId) {
+        return attempts.containsKey(videoId) || activeProcesses.containsKey(videoId);
+    }
+    
+    void trackProcess(String videoId, Process process) {
+        activeProcesses.compute(videoId, (k, processes) -> {
+            Set<Process> set = processes != null ? processes : ConcurrentHashMap.newKeySet();
+            set.add(process);
+            return set;
+        });
+    }
+    
+    void untrackProcess(String videoId, Process process) {
+        activeProcesses.computeIfPresent(videoId, (k, processes) -> {
+            processes.remove(process);
+            return processes.isEmpty() ? null : processes;
+        });
+    }
+    
+    /**
+     * Open an attempt for a video about to be transcoded, so a cancel that arrives before
+     * transcodeToHLS starts still stops it. The attempt ends when transcodeToHLS returns;
+     * a cancel after that has no attempt to flag and cannot abort the next transcode.
+     */
+    public void beginAttempt(String videoId) {
+        attempts.put(videoId, new AtomicBoolean());
+    }
+    
+    /**
+     * Cancel transcoding for a video - kills its ffmpeg processes and makes the running
+     * (or just begun) attempt give up without publishing
+     */
+    public void cancelTranscoding(String videoId) {
+        AtomicBoolean attempt = attempts.get(videoId);
+        if (attempt != null) {
+            attempt.set(true);
+        }
+        Set<Process> processes = activeProcesses.get(videoId);
+        if (processes != null) {
+            processes.forEach(Process::destroyForcibly);
+        }
+    }
+    
+    boolean isCancelled(String videoId) {
+        AtomicBoolean attempt = attempts.get(videoId);
+        return attempt != null && attempt.get();
+    }
+    
+    private void checkCancelled(String videoId) {
+        if (isCancelled(videoId)) {
+            throw new CancellationException("Transcode of " + videoId + " cancelled");
+        }
+    }
+    
+    // Inner classes
+    static class VideoInfo {
+        final int width, height, durationSeconds;
+        
+        // Filled by the full probe only
+        String videoCodec;      // ffprobe codec_name
+        String videoProfile;
+        int videoLevel;         // e.g. 40 for 4.0
+        String pixFmt;
+        double fps;
+        long videoBitrate;      // bits/s, 0 when unknown
+        String audioCodec;      // null = no audio stream
+        
+        VideoInfo(int width, int height, int durationSeconds) {
+            this.width = width;
+            this.height = height;
+            this.durationSeconds = durationSeconds;
+        }
+    }
+    
+    static class QualityProfile {
+        final String label;
+        final int width, height, bandwidth;
+        final int maxrate;      // VBV cap on top of CRF, 0 = uncapped
+        final VideoCodec codec;
+        final String codecs;    // CODECS of a stream-copied source, null = what the encoder produces
+        
+        QualityProfile(String label, int width, int height, int bandwidth) {
+            this(label, width, height, bandwidth, 0, VideoCodec.H264);
+        }
+        
+        QualityProfile(String label, int width, int height, int bandwidth, int maxrate, VideoCodec codec) {
+            this(label, width, height, bandwidth, maxrate, codec, null);
+        }
+        
+        QualityProfile(String label, int width, int height, int bandwidth, int maxrate, VideoCodec codec,
+                       String codecs) {
+            this.label = label;
+            this.width = width;
+            this.height = height;
+            this.bandwidth = bandwidth;
+            this.maxrate = maxrate;
+            this.codec = codec;
+            this.codecs = codecs;
+        }
+        
+        String codecs() {
+            return codecs != null ? codecs : codec.codecsFor(height);
+        }
+    }
+    
+    /**
+     * CPU video encoders a rendition can use
+     */
+    enum VideoCodec {
+        H264("h264", "libx264", 1.0, 1),
+        HEVC("hevc", "libx265", 0.6, 3),
+        AV1("av1", "libsvtav1", 0.5, 3);
+        
+        final String id;
+        final String encoder;
+        final double efficiency;    // Bitrate for the same quality, relative to H.264
+        final int cost;             // CPU per pixel, relative to H.264
+        
+        VideoCodec(String id, String encoder, double efficiency, int cost) {
+            this.id = id;
+            this.encoder = encoder;
+            this.efficiency = efficiency;
+            this.cost = cost;
+        }
+        
+        static VideoCodec parse(String name) {
+            for (VideoCodec codec : values()) {
+                if (codec.id.equalsIgnoreCase(name.trim())) {
+                    return codec;
+                }
+            }
+            throw new IllegalArgumentException("Unknown video codec: " + name);
+        }
+        
+        /**
+         * RFC 6381 codec string for the CODECS attribute, matching the encoder settings
+         */
+        String codecsFor(int height) {
+            return switch (this) {
+                case H264 -> "avc1.640028";                                     // High, level 4.0
+                case HEVC -> height > 1080 ? "hvc1.1.6.L153.B0" : "hvc1.1.6.L123.B0";   // Main, 5.1 / 4.1
+                case AV1 -> height > 1080 ? "av01.0.12M.08" : "av01.0.08M.08";  // Main 8-bit, 5.0 / 4.0
+            };
+        }
+    }
+    
+    static class AudioProfile {
+        final String label;     // Rendition directory
+        final String groupId;   // EXT-X-MEDIA group
+        final int bitrate;
+        
+        AudioProfile(int bitrate) {
+            this.label = "audio-" + bitrate / 1000 + "k";
+            this.groupId = "aac-" + bitrate / 1000 + "k";
+            this.bitrate = bitrate;
+        }
+    }
+    
+    /**
+     * Poster frame and scrub-preview sprite sheets - 10x10 tiles of 160x90 per sheet
+     */
+    static class ThumbnailPlan {
+        static final int TILE_WIDTH = 160;
+        static final int TILE_HEIGHT = 90;
+        static final int COLUMNS = 10;
+        static final int TILES_PER_SHEET = COLUMNS * COLUMNS;
+        
+        final Path dir;
+        final int interval;     // Seconds between tiles
+        final int posterAt;     // Seconds into the video
+        
+        ThumbnailPlan(Path dir, int interval, int posterAt) {
+            this.dir = dir;
+            this.interval = interval;
+            this.posterAt = posterAt;
+        }
+        
+        /**
+         * Filter chains from the two split branches to [sprites] and [posterframe]
+         */
+        String filters(String thumbsIn, String posterIn) {
+            return thumbsIn + "fps=1/" + interval
+                    + ",scale=" + TILE_WIDTH + ":" + TILE_HEIGHT + ":force_original_aspect_ratio=decrease"
+                    + ",pad=" + TILE_WIDTH + ":" + TILE_HEIGHT + ":(ow-iw)/2:(oh-ih)/2"
+                    + ",tile=" + COLUMNS + "x" + COLUMNS + "[sprites];"
+                    + posterIn + "trim=start=" + posterAt + ",scale='min(1280,iw)':-2[posterframe]";
+        }
+        
+        List<String> outputs() {
+            return List.of(
+                    "-map", "[sprites]",
+                    "-c:v", "mjpeg",
+                    "-q:v", "5",
+                    "-start_number", "0",
+                    dir.resolve("sprite_%03d.jpg").toString(),
+                    "-map", "[posterframe]",
+                    "-frames:v", "1",
+                    "-c:v", "mjpeg",
+                    "-q:v", "3",
+                    "-update", "1",
+                    dir.resolve("poster.jpg").toString()
+            );
+        }
+    }
+    
+    /**
+     * Adds renditions to the master playlist as they finish and marks the video PLAYABLE
+     */
+    private class ProgressivePublisher {
+        private final String videoId;
+        private final Path outputDir;
+        private final List<QualityProfile> ladder;
+        private final boolean hasAudio;
+        private final List<AudioProfile> audio;
+        private final List<String> published = new ArrayList<>();
+        
+        ProgressivePublisher(String videoId, Path outputDir, List<QualityProfile> ladder, boolean hasAudio,
+                             List<AudioProfile> audio) {
+            this.videoId = videoId;
+            this.outputDir = outputDir;
+            this.ladder = ladder;
+            this.hasAudio = hasAudio;
+            this.audio = audio;
+        }
+        
+        synchronized void publish(String label) {
+            if (!progressive || published.contains(label)) {
+                return;
+            }
+            published.add(label);
+            
+            try {
+                writeMasterPlaylist(outputDir, ladder.stream().filter(p -> published.contains(p.label)).toList(),
+                        hasAudio, audio);
+                videoService.addQualityToVideo(videoId, label);
+                if (published.size() == 1) {
+                    videoService.updateVideoStatus(videoId, VideoStatus.PLAYABLE);
+                    System.out.println("[Transcoding] " + videoId + " playable in " + label);
+                }
+            } catch (IOException e) {
+                System.err.println("[Transcoding] Cannot publish " + label + " of " + videoId + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Passes through at most limit bytes, then reports the stream as closed
+     */
+    private static class BoundedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long remaining;
+        
+        BoundedOutputStream(OutputStream out, long limit) {
+            this.out = out;
+            this.remaining = limit;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                throw new IOException("Prefix fully written");
+            }
+            int n = (int) Math.min(len, remaining);
+            out.write(b, off, n);
+            remaining -= n;
+            if (n < len) {
+                throw new IOException("Prefix fully written");
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package az.dev.localtube.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upload admission - global limit on chunks in flight plus per-client byte rate
+ * Rate shaping is a token bucket in GCRA form: one "theoretical arrival time"
+ * per client, advanced with a CAS, so admission never takes a lock.
+ */
+@Service
+public class UploadAdmissionService {
+
+    private final int maxConcurrentChunks;
+    private final double nanosPerByte;
+    private final long burstNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    public UploadAdmissionService(@Value("${localtube.upload.max-concurrent-chunks:64}") int maxConcurrentChunks,
+                                  @Value("${localtube.upload.client-rate:52428800}") long clientRate,
+                                  @Value("${localtube.upload.client-burst:20971520}") long clientBurst) {
+        this.maxConcurrentChunks = maxConcurrentChunks;
+        this.nanosPerByte = (double) TimeUnit.SECONDS.toNanos(1) / clientRate;
+        this.burstNanos = (long) (clientBurst * nanosPerByte);
+    }
+
+    /**
+     * Take a global chunk slot, false if all are busy
+     */
+    public boolean tryAcquireSlot() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxConcurrentChunks) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void releaseSlot() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Charge bytes to a client's bucket
+     * Returns 0 if admitted, otherwise milliseconds until the bytes would fit.
+     * A chunk larger than the burst is let in once the bucket is full and charged in
+     * full - the bucket goes into debt and the client waits that much longer after it.
+     */
+    public long tryConsume(String clientKey, long bytes) {
+        AtomicLong tat = buckets.computeIfAbsent(clientKey, k -> new AtomicLong(System.nanoTime()));
+        long increment = (long) (bytes * nanosPerByte);
+        long admitIncrement = Math.min(increment, burstNanos);
+
+        while (true) {
+            long now = System.nanoTime();
+            long current = tat.get();
+            long newTat = Math.max(current, now) + increment;
+            long allowAt = Math.max(current, now) + admitIncrement - burstNanos;
+
+            if (allowAt > now) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(allowAt - now));
+            }
+            if (tat.compareAndSet(current, newTat)) {
+                return 0;
+            }
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Forget clients whose bucket has refilled completely
+     */
+    @Scheduled(fixedDelay = 60_000)
+    public void evictIdleBuckets() {
+        long now = System.nanoTime();
+        buckets.entrySet().removeIf(e -> e.getValue().get() < now);
+    }
+}
@@ -0,0 +1,314 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.UploadSession;
+import az.dev.localtube.domain.Video;
+import az.dev.localtube.domain.VideoStatus;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Reaper - reclaims what abandoned uploads and dead transcodes leave behind
+ * Stale sessions and UPLOADING records lose their partial files, PROCESSING
+ * records nobody is working on are requeued once (if the source survived) or
+ * failed, and files no record points at are removed. Deletes run in small
+ * batches with pauses so the disk stays responsive for viewers - on a thread
+ * of their own, the pauses hold up no other scheduled work.
+ */
+@Service
+public class UploadReaperService {
+
+    private final VideoService videoService;
+    private final TranscodingService transcodingService;
+    private final TranscodeJobQueue transcodeJobQueue;
+    private final UploadSessionService uploadSessionService;
+    private final PipelinedIngestService pipelinedIngestService;
+    private final DiskSpaceLedger diskSpaceLedger;
+
+    private final Path uploadDir;
+    private final Path hlsDir;
+    private final Duration uploadStaleAfter;
+    private final Duration processingStaleAfter;
+    private final int batchSize;
+    private final long pauseMs;
+
+    // Requeued once per process lifetime, a second hang fails the video
+    private final Set<String> requeued = ConcurrentHashMap.newKeySet();
+
+    public UploadReaperService(VideoService videoService,
+                               TranscodingService transcodingService,
+                               TranscodeJobQueue transcodeJobQueue,
+                               UploadSessionService uploadSessionService,
+                               PipelinedIngestService pipelinedIngestService,
+                               DiskSpaceLedger diskSpaceLedger,
+                               @Qualifier("reaperScheduler") TaskScheduler reaperScheduler,
+                               @Value("${localtube.storage.upload-dir}") String uploadDirPath,
+                               @Value("${localtube.storage.hls-dir}") String hlsDirPath,
+                               @Value("${localtube.reaper.upload-stale-after:24h}") Duration uploadStaleAfter,
+                               @Value("${localtube.reaper.processing-stale-after:6h}") Duration processingStaleAfter,
+                               @Value("${localtube.reaper.batch-size:50}") int batchSize,
+                               @Value("${localtube.reaper.pause-ms:20}") long pauseMs,
+                               @Value("${localtube.reaper.interval-ms:600000}") long intervalMs,
+                               @Value("${localtube.reaper.initial-delay-ms:120000}") long initialDelayMs) {
+        this.videoService = videoService;
+        this.transcodingService = transcodingService;
+        this.transcodeJobQueue = transcodeJobQueue;
+        this.uploadSessionService = uploadSessionService;
+        this.pipelinedIngestService = pipelinedIngestService;
+        this.diskSpaceLedger = diskSpaceLedger;
+        this.uploadDir = Paths.get(uploadDirPath);
+        this.hlsDir = Paths.get(hlsDirPath);
+        this.uploadStaleAfter = uploadStaleAfter;
+        this.processingStaleAfter = processingStaleAfter;
+        this.batchSize = batchSize;
+        this.pauseMs = pauseMs;
+
+        reaperScheduler.scheduleWithFixedDelay(this::reap,
+                Instant.now().plusMillis(initialDelayMs), Duration.ofMillis(intervalMs));
+    }
+
+    public void reap() {
+        int budget = batchSize;
+        try {
+            budget -= reapStaleSessions(budget);
+            budget -= reapStaleUploads(budget);
+            budget -= reapStuckProcessing(budget);
+            budget -= reapOrphanUploads(budget);
+            reapOrphanHlsDirs(budget);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("[Reaper ERROR] " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sessions that stopped receiving chunks
+     */
+    private int reapStaleSessions(int budget) throws IOException, InterruptedException {
+        LocalDateTime cutoff = LocalDateTime.now().minus(uploadStaleAfter);
+        List<UploadSession> stale = new ArrayList<>();
+        for (UploadSession session : uploadSessionService.getSessions()) {
+            if (stale.size() >= budget) {
+                break;
+            }
+            if (session.getUpdatedAt().isBefore(cutoff)) {
+                stale.add(session);
+            }
+        }
+
+        for (UploadSession session : stale) {
+            System.out.println("[Reaper] Abandoned upload " + session.getUploadId()
+                    + " (" + session.getReceivedCount() + "/" + session.getTotalChunks() + " chunks)");
+            pipelinedIngestService.abort(session.getVideoId());
+            uploadSessionService.discard(session);
+            diskSpaceLedger.release(session.getVideoId());
+            videoService.updateVideoStatus(session.getVideoId(), VideoStatus.FAILED);
+            pause();
+        }
+        return stale.size();
+    }
+
+    /**
+     * UPLOADING records with no live session (e.g. chunks sent without /init, or state lost)
+     */
+    private int reapStaleUploads(int budget) throws IOException, InterruptedException {
+        LocalDateTime cutoff = LocalDateTime.now().minus(uploadStaleAfter);
+        int reaped = 0;
+        for (Video video : videoService.getVideosByStatus(VideoStatus.UPLOADING, budget * 4)) {
+            if (reaped >= budget) {
+                break;
+            }
+            if (video.getUploadedAt() == null || !video.getUploadedAt().isBefore(cutoff)
+                    || hasSession(video.getId()) || transcodeJobQueue.isPending(video.getId())) {
+                continue;
+            }
+
+            System.out.println("[Reaper] Failing stale upload " + video.getId());
+            if (video.getUploadPath() != null) {
+                Files.deleteIfExists(Paths.get(video.getUploadPath()));
+            }
+            diskSpaceLedger.release(video.getId());
+            videoService.updateVideoStatus(video.getId(), VideoStatus.FAILED);
+            reaped++;
+            pause();
+        }
+        return reaped;
+    }
+
+    /**
+     * PROCESSING records with no transcode job queued or running
+     */
+    private int reapStuckProcessing(int budget) throws IOException, InterruptedException {
+        LocalDateTime cutoff = LocalDateTime.now().minus(processingStaleAfter);
+        int reaped = 0;
+        for (Video video : videoService.getVideosByStatus(VideoStatus.PROCESSING, budget * 4)) {
+            if (reaped >= budget) {
+                break;
+            }
+            LocalDateTime started = video.getProcessingStartedAt() != null
+                    ? video.getProcessingStartedAt() : video.getUploadedAt();
+            if (started == null || !started.isBefore(cutoff)
+                    || transcodingService.isTranscoding(video.getId())
+                    || transcodeJobQueue.isPending(video.getId())
+                    || pipelinedIngestService.isActive(video.getId())) {
+                continue;
+            }
+
+            // Half-written renditions are useless either way
+            if (video.getHlsPath() != null) {
+                deleteThrottled(Paths.get(video.getHlsPath()));
+            }
+
+            Path source = findSource(video);
+            if (source != null && requeued.add(video.getId())) {
+                System.out.println("[Reaper] Requeueing stuck transcode " + video.getId());
+                transcodeJobQueue.submit(video.getId(), source);
+            } else {
+                System.out.println("[Reaper] Failing stuck transcode " + video.getId());
+                if (source != null) {
+                    Files.deleteIfExists(source);
+                }
+                diskSpaceLedger.release(video.getId());
+                videoService.updateVideoStatus(video.getId(), VideoStatus.FAILED);
+            }
+            reaped++;
+        }
+        return reaped;
+    }
+
+    /**
+     * Files in uploads/ that no session or pending video owns
+     */
+    private int reapOrphanUploads(int budget) throws IOException, InterruptedException {
+        long cutoffMs = System.currentTimeMillis() - uploadStaleAfter.toMillis();
+        List<Path> orphans = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(uploadDir)) {
+            for (Path file : stream) {
+                if (orphans.size() >= budget) {
+                    break;
+                }
+                String name = file.getFileName().toString();
+                if (!Files.isRegularFile(file) || name.endsWith(".session")
+                        || Files.getLastModifiedTime(file).toMillis() > cutoffMs
+                        || uploadSessionService.findByFilename(name).isPresent()) {
+                    continue;
+                }
+                Optional<Video> video = videoService.getVideo(videoService.videoIdFor(name));
+                boolean pending = video.isPresent() && (video.get().getStatus() == VideoStatus.UPLOADING
+                        || video.get().getStatus() == VideoStatus.PROCESSING);
+                if (!pending) {
+                    orphans.add(file);
+                }
+            }
+        }
+
+        for (Path file : orphans) {
+            System.out.println("[Reaper] Removing orphan upload " + file.getFileName());
+            Files.deleteIfExists(file);
+            pause();
+        }
+        return orphans.size();
+    }
+
+    /**
+     * HLS directories no video references any more
+     */
+    private int reapOrphanHlsDirs(int budget) throws IOException, InterruptedException {
+        if (budget <= 0 || !Files.isDirectory(hlsDir)) {
+            return 0;
+        }
+        long cutoffMs = System.currentTimeMillis() - processingStaleAfter.toMillis();
+        int reaped = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(hlsDir, Files::isDirectory)) {
+            for (Path dir : stream) {
+                if (reaped >= budget) {
+                    break;
+                }
+                String videoId = dir.getFileName().toString();
+                if (Files.getLastModifiedTime(dir).toMillis() > cutoffMs
+                        || transcodingService.isTranscoding(videoId)
+                        || transcodeJobQueue.isPending(videoId)
+                        || pipelinedIngestService.isActive(videoId)
+                        || videoService.getVideo(videoId).isPresent()
+                        || videoService.countHlsReferences(dir.toString()) > 0) {
+                    continue;
+                }
+                System.out.println("[Reaper] Removing orphan HLS directory " + dir);
+                deleteThrottled(dir);
+                reaped++;
+            }
+        }
+        return reaped;
+    }
+
+    // Helper methods
+
+    private boolean hasSession(String videoId) {
+        return uploadSessionService.getSessions().stream()
+                .anyMatch(s -> s.getVideoId().equals(videoId));
+    }
+
+    /**
+     * The uploaded source of a video, if it is still on disk
+     */
+    private Path findSource(Video video) {
+        if (video.getFilename() != null) {
+            Path sanitized = uploadDir.resolve(video.getFilename().replaceAll("[^a-zA-Z0-9._-]", "_")
+                    .replaceAll("_+", "_")
+                    .replaceAll("^[._-]+", ""));
+            if (Files.exists(sanitized)) {
+                return sanitized;
+            }
+        }
+        if (video.getUploadPath() != null && Files.exists(Paths.get(video.getUploadPath()))) {
+            return Paths.get(video.getUploadPath());
+        }
+        return null;
+    }
+
+    /**
+     * Delete a tree a few files at a time, pausing between batches
+     */
+    private void deleteThrottled(Path dir) throws IOException, InterruptedException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.sorted(Comparator.reverseOrder()).toList();
+        }
+        int deleted = 0;
+        for (Path p : paths) {
+            Files.deleteIfExists(p);
+            if (++deleted % 20 == 0) {
+                pause();
+            }
+        }
+    }
+
+    private void pause() throws InterruptedException {
+        if (pauseMs > 0) {
+            Thread.sleep(pauseMs);
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.UploadSession;
+import az.dev.localtube.util.HashingChannel;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Upload session service - resumable chunked uploads keyed by uploadId
+ * Each partial file gets a "<file>.session" state file holding the received-chunk bitmap.
+ * Chunks are CRC32C-checked while streaming and the whole-file SHA-256 advances
+ * over the contiguous prefix as chunks land, so /complete needs no extra pass.
+ */
+@Service
+public class UploadSessionService {
+
+    private static final String STATE_SUFFIX = ".session";
+    private static final int DIGEST_BUFFER = 256 * 1024;
+
+    private final Path uploadDir;
+    private final ObjectMapper objectMapper;
+
+    private final ConcurrentHashMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> sessionsByFile = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DigestState> digests = new ConcurrentHashMap<>();
+
+    public UploadSessionService(@Value("${localtube.storage.upload-dir}") String uploadDirPath) throws IOException {
+        this.uploadDir = Paths.get(uploadDirPath);
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.registerModule(new JavaTimeModule());
+        this.objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        Files.createDirectories(this.uploadDir);
+        loadPersistedSessions();
+    }
+
+    /**
+     * Create a session, or resume the open one for the same file and size
+     */
+    public UploadSession createOrResume(String videoId, String safeFilename, long totalSize,
+                                        int totalChunks, long chunkSize, boolean pipelined) throws IOException {
+        Optional<UploadSession> existing = findByFilename(safeFilename);
+        if (existing.isPresent()) {
+            UploadSession session = existing.get();
+            boolean sameShape = session.getTotalSize() == totalSize
+                    && session.getTotalChunks() == totalChunks
+                    && (chunkSize <= 0 || session.getChunkSize() <= 0 || session.getChunkSize() == chunkSize);
+            if (sameShape) {
+                if (session.getChunkSize() <= 0 && chunkSize > 0) {
+                    session.setChunkSize(chunkSize);
+                    persist(session);
+                }
+                System.out.println("[Upload] Resuming session " + session.getUploadId()
+                        + " (" + session.getReceivedCount() + "/" + totalChunks + " chunks)");
+                return session;
+            }
+            discard(session);
+        }
+
+        // A single-chunk upload has no stride to learn
+        if (chunkSize <= 0 && totalChunks == 1) {
+            chunkSize = totalSize;
+        }
+
+        String uploadId = videoId + "_" + System.currentTimeMillis();
+        UploadSession session = new UploadSession(uploadId, videoId, safeFilename,
+                totalSize, Math.max(0, chunkSize), totalChunks);
+        session.setPipelined(pipelined);
+
+        preallocate(partialFile(session), totalSize);
+        persist(session);
+
+        sessions.put(uploadId, session);
+        sessionsByFile.put(safeFilename, uploadId);
+        return session;
+    }
+
+    public Optional<UploadSession> getSession(String uploadId) {
+        return Optional.ofNullable(sessions.get(uploadId));
+    }
+
+    public Collection<UploadSession> getSessions() {
+        return sessions.values();
+    }
+
+    public Optional<UploadSession> findByFilename(String safeFilename) {
+        String uploadId = sessionsByFile.get(safeFilename);
+        return uploadId == null ? Optional.empty() : getSession(uploadId);
+    }
+
+    public Path partialFile(UploadSession session) {
+        return uploadDir.resolve(session.getFilename());
+    }
+
+    /**
+     * Write one chunk at its offset, make it durable, then mark it in the bitmap.
+     * Returns the CRC32C of the bytes written; a mismatch with expectedCrc32c
+     * leaves the chunk unmarked so the client resends it.
+     */
+    public long writeChunk(UploadSession session, int chunkIndex, ReadableByteChannel source,
+                           long length, Long expectedCrc32c) throws IOException {
+        if (chunkIndex < 0 || chunkIndex >= session.getTotalChunks()) {
+            throw new IllegalArgumentException("Chunk index out of range: " + chunkIndex);
+        }
+
+        // Older clients don't send chunkSize - any non-final chunk defines the stride
+        if (session.getChunkSize() <= 0 && chunkIndex < session.getTotalChunks() - 1) {
+            session.setChunkSize(length);
+        }
+
+        long offset;
+        long expected = session.expectedChunkLength(chunkIndex);
+        if (expected >= 0) {
+            if (length != expected) {
+                throw new IllegalArgumentException("Chunk " + chunkIndex + " must be "
+                        + expected + " bytes, got " + length);
+            }
+            offset = chunkIndex * session.getChunkSize();
+        } else {
+            // Final chunk of a single-chunk or not-yet-learned upload ends at totalSize
+            offset = session.getTotalSize() - length;
+        }
+
+        // The next chunk of the whole-file digest is hashed inline, on a copy of the
+        // digest that only replaces the real one once the chunk checks out
+        DigestState digest = digestState(session);
+        boolean inline = expected >= 0 && chunkIndex == digest.next && digest.lock.tryLock();
+        long crc;
+        try {
+            MessageDigest inlineDigest = null;
+            if (inline && chunkIndex == digest.next) {
+                inlineDigest = cloneDigest(digest.digest);
+            }
+
+            HashingChannel hashing = new HashingChannel(source, inlineDigest);
+            writeAt(partialFile(session), offset, hashing, length, true);
+
+            crc = hashing.getCrc32c();
+            if (expectedCrc32c != null && crc != expectedCrc32c) {
+                rejectChunk(session, chunkIndex);
+                throw new ChecksumMismatchException("Chunk " + chunkIndex + " CRC32C mismatch: expected "
+                        + HashingChannel.toHex(expectedCrc32c) + ", got " + HashingChannel.toHex(crc));
+            }
+
+            if (inlineDigest != null) {
+                digest.digest = inlineDigest;
+                digest.next++;
+            }
+
+            if (session.markReceived(chunkIndex)) {
+                persist(session);
+            }
+        } finally {
+            if (inline) {
+                digest.lock.unlock();
+            }
+        }
+
+        advanceDigest(session, digest, false);
+        return crc;
+    }
+
+    /**
+     * Whole-file SHA-256 (hex) of a complete upload
+     * Normally only the last few chunks are left to fold in; after a restart the
+     * partial file is read back once to rebuild the digest.
+     */
+    public String finishDigest(UploadSession session) throws IOException {
+        DigestState digest = digestState(session);
+        advanceDigest(session, digest, true);
+
+        digest.lock.lock();
+        try {
+            if (digest.next < session.getTotalChunks()) {
+                throw new IOException("Upload incomplete, digest stops at chunk " + digest.next);
+            }
+            return HexFormat.of().formatHex(cloneDigest(digest.digest).digest());
+        } finally {
+            digest.lock.unlock();
+        }
+    }
+
+    /**
+     * Finish session - drop the state file, the partial file stays for transcoding
+     */
+    public void finish(UploadSession session) throws IOException {
+        digests.remove(session.getUploadId());
+        sessions.remove(session.getUploadId());
+        sessionsByFile.remove(session.getFilename(), session.getUploadId());
+        Files.deleteIfExists(stateFile(session));
+    }
+
+    /**
+     * Discard session together with its partial file
+     */
+    public void discard(UploadSession session) throws IOException {
+        finish(session);
+        Files.deleteIfExists(partialFile(session));
+    }
+
+    /**
+     * Positional write; the kernel copies straight into the page cache at the offset
+     */
+    public void writeAt(Path file, long offset, ReadableByteChannel source, long length,
+                        boolean durable) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // transferFrom ignores positions past EOF - extend over our own range first
+            if (length > 0 && channel.size() < offset + length) {
+                channel.write(ByteBuffer.allocate(1), offset + length - 1);
+            }
+            long written = 0;
+            while (written < length) {
+                long n = channel.transferFrom(source, offset + written, length - written);
+                if (n <= 0) {
+                    break;
+                }
+                written += n;
+            }
+            if (written != length) {
+                throw new IOException("Short chunk write: " + written + " of " + length + " bytes");
+            }
+            if (durable) {
+                // Data must hit the disk before the bitmap claims it did
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Size the target file up front so positional writes never race on file length
+     */
+    public void preallocate(Path file, long totalSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (channel.size() > totalSize) {
+                channel.truncate(totalSize);
+            } else if (channel.size() < totalSize && totalSize > 0) {
+                // Extends the file (sparse where the filesystem supports it)
+                channel.write(ByteBuffer.allocate(1), totalSize - 1);
+            }
+        }
+    }
+
+    /**
+     * A bad resend may have overwritten good bytes - forget the chunk and any digest built on it
+     */
+    private void rejectChunk(UploadSession session, int chunkIndex) throws IOException {
+        if (session.markMissing(chunkIndex)) {
+            persist(session);
+        }
+        DigestState digest = digests.get(session.getUploadId());
+        if (digest != null && digest.next > chunkIndex) {
+            digests.remove(session.getUploadId(), digest);
+        }
+    }
+
+    // Whole-file digest
+
+    private DigestState digestState(UploadSession session) {
+        return digests.computeIfAbsent(session.getUploadId(), id -> new DigestState());
+    }
+
+    /**
+     * Fold chunks that are received but not yet hashed into the digest, in order.
+     * Without wait, a busy lock means its holder will pick the work up on release.
+     */
+    private void advanceDigest(UploadSession session, DigestState digest, boolean wait) throws IOException {
+        while (hasDigestWork(session, digest)) {
+            if (wait) {
+                digest.lock.lock();
+            } else if (!digest.lock.tryLock()) {
+                return;
+            }
+            try {
+                try (FileChannel channel = FileChannel.open(partialFile(session), StandardOpenOption.READ)) {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER);
+                    while (hasDigestWork(session, digest)) {
+                        long position = digest.next * session.getChunkSize();
+                        long remaining = session.expectedChunkLength(digest.next);
+                        while (remaining > 0) {
+                            buffer.clear();
+                            if (remaining < buffer.capacity()) {
+                                buffer.limit((int) remaining);
+                            }
+                            int n = channel.read(buffer, position);
+                            if (n < 0) {
+                                throw new IOException("Partial file shorter than expected: " + session.getFilename());
+                            }
+                            buffer.flip();
+                            digest.digest.update(buffer);
+                            position += n;
+                            remaining -= n;
+                        }
+                        digest.next++;
+                    }
+                }
+            } finally {
+                digest.lock.unlock();
+            }
+        }
+    }
+
+    private boolean hasDigestWork(UploadSession session, DigestState digest) {
+        int next = digest.next;
+        return next < session.getTotalChunks()
+                && session.getChunkSize() > 0
+                && session.isReceived(next);
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 digest is not cloneable", e);
+        }
+    }
+
+    // Persistence
+
+    private Path stateFile(UploadSession session) {
+        return uploadDir.resolve(session.getFilename() + STATE_SUFFIX);
+    }
+
+    /**
+     * Write-then-rename so a crash leaves either the old or the new bitmap, never half of one
+     */
+    private void persist(UploadSession session) throws IOException {
+        Path target = stateFile(session);
+        Path tmp = uploadDir.resolve(session.getFilename() + STATE_SUFFIX + ".tmp");
+
+        synchronized (session) {
+            byte[] json = objectMapper.writeValueAsBytes(session);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(json);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void loadPersistedSessions() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(uploadDir, "*" + STATE_SUFFIX)) {
+            for (Path file : stream) {
+                try {
+                    UploadSession session = objectMapper.readValue(file.toFile(), UploadSession.class);
+                    if (!Files.exists(partialFile(session))) {
+                        Files.deleteIfExists(file);
+                        continue;
+                    }
+                    sessions.put(session.getUploadId(), session);
+                    sessionsByFile.put(session.getFilename(), session.getUploadId());
+                } catch (IOException e) {
+                    System.err.println("[Upload] Cannot read session state " + file + ": " + e.getMessage());
+                }
+            }
+            if (!sessions.isEmpty()) {
+                System.out.println("[Upload] Restored " + sessions.size() + " upload session(s)");
+            }
+        } catch (IOException e) {
+            System.err.println("[Upload] Session restore failed: " + e.getMessage());
+        }
+    }
+
+    // Inner classes
+
+    /**
+     * Running SHA-256 over chunks [0, next) - runtime only, rebuilt from the file after restart
+     */
+    private static class DigestState {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile MessageDigest digest;
+        volatile int next;
+
+        DigestState() {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+
+    /**
+     * Chunk bytes did not match the client-supplied CRC32C
+     */
+    public static class ChecksumMismatchException extends IOException {
+        public ChecksumMismatchException(String message) {
+            super(message);
+        }
+    }
+}
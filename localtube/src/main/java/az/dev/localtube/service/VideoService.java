@@ -12,6 +12,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -22,13 +23,19 @@ import java.util.Optional;
 public class VideoService {
     
     private final VideoRepository videoRepository;
+    private final TranscodeProgressService progressService;
+    private final HlsSegmentCache segmentCache;
     private final Path uploadDir;
     private final Path hlsDir;
     
     public VideoService(VideoRepository videoRepository,
+                        TranscodeProgressService progressService,
+                        HlsSegmentCache segmentCache,
                         @Value("${localtube.storage.upload-dir}") String uploadDirPath,
                         @Value("${localtube.storage.hls-dir}") String hlsDirPath) {
         this.videoRepository = videoRepository;
+        this.progressService = progressService;
+        this.segmentCache = segmentCache;
         this.uploadDir = Paths.get(uploadDirPath);
         this.hlsDir = Paths.get(hlsDirPath);
     }
@@ -37,6 +44,13 @@ public class VideoService {
      * Create new video entry
      */
     public Video createVideo(String title, String filename, String description) throws IOException {
+        return createVideo(title, filename, description, null);
+    }
+    
+    /**
+     * Create new video entry for an uploader
+     */
+    public Video createVideo(String title, String filename, String description, String uploaderId) throws IOException {
         String videoId = sanitizeFilename(filename);
         
         Video video = new Video();
@@ -44,6 +58,7 @@ public class VideoService {
         video.setTitle(title);
         video.setFilename(filename);
         video.setDescription(description);
+        video.setUploaderId(uploaderId);
         video.setStatus(VideoStatus.UPLOADING);
         video.setUploadPath(uploadDir.resolve(filename).toString());
         video.setHlsPath(hlsDir.resolve(videoId).toString());
@@ -52,6 +67,13 @@ public class VideoService {
         return videoRepository.save(video);
     }
     
+    /**
+     * Video ID a filename maps to
+     */
+    public String videoIdFor(String filename) {
+        return sanitizeFilename(filename);
+    }
+    
     /**
      * Get video by ID
      */
@@ -73,6 +95,13 @@ public class VideoService {
         return videoRepository.findByStatus(status);
     }
     
+    /**
+     * Get up to limit videos by status
+     */
+    public List<Video> getVideosByStatus(VideoStatus status, int limit) throws IOException {
+        return videoRepository.findByStatus(status, limit);
+    }
+    
     /**
      * Search videos
      */
@@ -86,14 +115,20 @@ public class VideoService {
     public void updateVideoStatus(String id, VideoStatus status) throws IOException {
         videoRepository.updateStatus(id, status);
         
-        if (status == VideoStatus.READY) {
+        if (status == VideoStatus.READY || status == VideoStatus.PROCESSING) {
             Optional<Video> videoOpt = videoRepository.findById(id);
             if (videoOpt.isPresent()) {
                 Video video = videoOpt.get();
-                video.setProcessedAt(LocalDateTime.now());
+                if (status == VideoStatus.READY) {
+                    video.setProcessedAt(LocalDateTime.now());
+                } else {
+                    video.setProcessingStartedAt(LocalDateTime.now());
+                }
                 videoRepository.save(video);
             }
         }
+        
+        progressService.statusChanged(id, status);
     }
     
     /**
@@ -118,6 +153,79 @@ public class VideoService {
         }
     }
     
+    /**
+     * Record poster and scrub-preview track
+     */
+    public void updateThumbnails(String id, String posterUrl, String thumbnailsUrl) throws IOException {
+        Optional<Video> videoOpt = videoRepository.findById(id);
+        if (videoOpt.isPresent()) {
+            Video video = videoOpt.get();
+            video.setPosterUrl(posterUrl);
+            video.setThumbnailsUrl(thumbnailsUrl);
+            videoRepository.save(video);
+        }
+    }
+    
+    /**
+     * Record SHA-256 of the uploaded source
+     */
+    public void updateContentHash(String id, String sha256) throws IOException {
+        Optional<Video> videoOpt = videoRepository.findById(id);
+        if (videoOpt.isPresent()) {
+            Video video = videoOpt.get();
+            video.setContentSha256(sha256);
+            videoRepository.save(video);
+        }
+    }
+    
+    /**
+     * Find a finished video with the same source content whose renditions can be reused
+     */
+    public Optional<Video> findReusableRenditions(String sha256, String excludeId) throws IOException {
+        for (Video candidate : videoRepository.findByContentHash(sha256)) {
+            if (candidate.getId().equals(excludeId) || candidate.getStatus() != VideoStatus.READY) {
+                continue;
+            }
+            if (candidate.getHlsPath() != null
+                    && Files.exists(Paths.get(candidate.getHlsPath()).resolve("master.m3u8"))) {
+                return Optional.of(candidate);
+            }
+        }
+        return Optional.empty();
+    }
+    
+    /**
+     * Point a video at another video's renditions instead of transcoding it again
+     */
+    public void linkToRenditions(String id, Video source) throws IOException {
+        Optional<Video> videoOpt = videoRepository.findById(id);
+        if (videoOpt.isPresent()) {
+            Video video = videoOpt.get();
+            video.setHlsPath(source.getHlsPath());
+            video.setMasterPlaylistUrl(source.getMasterPlaylistUrl());
+            video.setPosterUrl(source.getPosterUrl());
+            video.setThumbnailsUrl(source.getThumbnailsUrl());
+            video.setAvailableQualities(new ArrayList<>(source.getAvailableQualities()));
+            video.setWidth(source.getWidth());
+            video.setHeight(source.getHeight());
+            video.setDurationSeconds(source.getDurationSeconds());
+            video.setFileSize(source.getFileSize());
+            video.setDuplicateOf(source.getDuplicateOf() != null ? source.getDuplicateOf() : source.getId());
+            video.setStatus(VideoStatus.READY);
+            video.setProcessedAt(LocalDateTime.now());
+            // Searchable right away, or deleting the source before a refresh would see one reference
+            videoRepository.saveSearchable(video);
+            progressService.statusChanged(id, VideoStatus.READY);
+        }
+    }
+    
+    /**
+     * Number of videos whose renditions live in this HLS directory
+     */
+    public long countHlsReferences(String hlsPath) throws IOException {
+        return videoRepository.countByHlsPath(hlsPath);
+    }
+    
     /**
      * Increment views
      */
@@ -154,10 +262,17 @@ public class VideoService {
                 Files.deleteIfExists(uploadPath);
             }
             
-            // Delete HLS directory
+            // Delete HLS directory - unless other (deduplicated) videos still share it
             if (video.getHlsPath() != null) {
-                Path hlsPath = Paths.get(video.getHlsPath());
-                deleteDirectoryRecursive(hlsPath);
+                long references = videoRepository.countByHlsPath(video.getHlsPath());
+                if (references <= 1) {
+                    Path hlsPath = Paths.get(video.getHlsPath());
+                    deleteDirectoryRecursive(hlsPath);
+                    segmentCache.invalidate(hlsPath);
+                } else {
+                    System.out.println("[VideoService] Keeping " + video.getHlsPath()
+                            + ", still referenced by " + (references - 1) + " video(s)");
+                }
             }
             
             // Delete from Elasticsearch
@@ -0,0 +1,79 @@
+package az.dev.localtube.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+/**
+ * Pass-through channel that checksums bytes as they are read
+ * CRC32C always, plus an optional MessageDigest fed from the same buffers
+ */
+public class HashingChannel implements ReadableByteChannel {
+
+    private final ReadableByteChannel source;
+    private final MessageDigest digest;
+    private final CRC32C crc = new CRC32C();
+    private long bytesRead;
+
+    public HashingChannel(ReadableByteChannel source, MessageDigest digest) {
+        this.source = source;
+        this.digest = digest;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int n = source.read(dst);
+        if (n > 0) {
+            ByteBuffer view = dst.duplicate();
+            view.position(start).limit(start + n);
+            if (digest != null) {
+                digest.update(view.duplicate());
+            }
+            crc.update(view);
+            bytesRead += n;
+        }
+        return n;
+    }
+
+    public long getCrc32c() {
+        return crc.getValue();
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * CRC32C as 8 lowercase hex digits
+     */
+    public static String toHex(long crc32c) {
+        return String.format("%08x", crc32c);
+    }
+
+    /**
+     * Parse a client-supplied CRC32C given as 8 hex digits
+     */
+    public static long parseHex(String value) {
+        String v = value.trim();
+        if (v.startsWith("0x") || v.startsWith("0X")) {
+            v = v.substring(2);
+        }
+        if (v.isEmpty() || v.length() > 8) {
+            throw new IllegalArgumentException("CRC32C must be 8 hex digits: " + value);
+        }
+        return Long.parseLong(v, 16);
+    }
+}
@@ -0,0 +1,197 @@
+package az.dev.localtube.controller;
+
+import az.dev.localtube.service.HlsSegmentCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HlsControllerTest {
+
+    @TempDir
+    Path hlsDir;
+
+    private final byte[] segment = new byte[100];
+    private HlsController controller;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        for (int i = 0; i < segment.length; i++) {
+            segment[i] = (byte) i;
+        }
+        Files.createDirectories(hlsDir.resolve("v1/720p"));
+        Files.write(hlsDir.resolve("v1/720p/segment_000.ts"), segment);
+        Files.writeString(hlsDir.resolve("v1/720p/playlist.m3u8"), "#EXTM3U\n");
+        controller = controller(false);
+    }
+
+    @Test
+    void segmentIsServedWholeWithImmutableCaching() throws IOException {
+        MockHttpServletResponse response = get("v1/720p/segment_000.ts", null);
+
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsByteArray()).isEqualTo(segment);
+        assertThat(response.getContentType()).isEqualTo("video/mp2t");
+        assertThat(response.getHeader("Cache-Control")).isEqualTo("public, max-age=31536000, immutable");
+        assertThat(response.getHeader("Accept-Ranges")).isEqualTo("bytes");
+        assertThat(response.getHeader("ETag")).isNotNull();
+    }
+
+    @Test
+    void playlistGetsAShortTtl() throws IOException {
+        MockHttpServletResponse response = get("v1/720p/playlist.m3u8", null);
+
+        assertThat(response.getContentType()).isEqualTo("application/vnd.apple.mpegurl");
+        assertThat(response.getHeader("Cache-Control")).isEqualTo("public, max-age=10");
+    }
+
+    @Test
+    void matchingEtagIsNotModified() throws IOException {
+        String etag = get("v1/720p/segment_000.ts", null).getHeader("ETag");
+
+        MockHttpServletRequest request = request("v1/720p/segment_000.ts");
+        request.addHeader("If-None-Match", etag);
+        MockHttpServletResponse response = serve(request);
+
+        assertThat(response.getStatus()).isEqualTo(304);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void rewrittenFileGetsANewEtag() throws IOException {
+        String etag = get("v1/720p/playlist.m3u8", null).getHeader("ETag");
+        Files.writeString(hlsDir.resolve("v1/720p/playlist.m3u8"), "#EXTM3U\n#EXT-X-ENDLIST\n");
+
+        MockHttpServletRequest request = request("v1/720p/playlist.m3u8");
+        request.addHeader("If-None-Match", etag);
+
+        assertThat(serve(request).getStatus()).isEqualTo(200);
+    }
+
+    @Test
+    void byteRangeIsPartialContent() throws IOException {
+        MockHttpServletResponse response = get("v1/720p/segment_000.ts", "bytes=10-19");
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader("Content-Range")).isEqualTo("bytes 10-19/100");
+        assertThat(response.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(segment, 10, 20));
+        assertThat(response.getContentLengthLong()).isEqualTo(10);
+    }
+
+    @Test
+    void openAndSuffixRanges() throws IOException {
+        assertThat(get("v1/720p/segment_000.ts", "bytes=90-").getHeader("Content-Range")).isEqualTo("bytes 90-99/100");
+        assertThat(get("v1/720p/segment_000.ts", "bytes=-10").getHeader("Content-Range")).isEqualTo("bytes 90-99/100");
+        assertThat(get("v1/720p/segment_000.ts", "bytes=-500").getHeader("Content-Range")).isEqualTo("bytes 0-99/100");
+        assertThat(get("v1/720p/segment_000.ts", "bytes=50-500").getHeader("Content-Range")).isEqualTo("bytes 50-99/100");
+    }
+
+    @Test
+    void unsatisfiableRangeIs416() throws IOException {
+        for (String range : new String[]{"bytes=100-", "bytes=200-300", "bytes=20-10", "bytes=-0", "bytes=abc"}) {
+            MockHttpServletResponse response = get("v1/720p/segment_000.ts", range);
+
+            assertThat(response.getStatus()).isEqualTo(416);
+            assertThat(response.getHeader("Content-Range")).isEqualTo("bytes */100");
+        }
+    }
+
+    @Test
+    void severalRangesGetTheWholeFile() throws IOException {
+        MockHttpServletResponse response = get("v1/720p/segment_000.ts", "bytes=0-9,20-29");
+
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsByteArray()).isEqualTo(segment);
+    }
+
+    @Test
+    void staleIfRangeGetsTheWholeFile() throws IOException {
+        MockHttpServletRequest request = request("v1/720p/segment_000.ts");
+        request.addHeader("Range", "bytes=10-19");
+        request.addHeader("If-Range", "\"stale\"");
+
+        MockHttpServletResponse response = serve(request);
+
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsByteArray()).isEqualTo(segment);
+    }
+
+    @Test
+    void headSendsHeadersOnly() throws IOException {
+        MockHttpServletRequest request = request("v1/720p/segment_000.ts");
+        request.setMethod("HEAD");
+
+        MockHttpServletResponse response = serve(request);
+
+        assertThat(response.getContentLengthLong()).isEqualTo(100);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void sendfileIsHandedTheRange() throws IOException {
+        MockHttpServletRequest request = request("v1/720p/segment_000.ts");
+        request.addHeader("Range", "bytes=10-19");
+        request.setAttribute("org.apache.tomcat.sendfile.support", true);
+
+        MockHttpServletResponse response = serve(request);
+
+        assertThat(response.getContentAsByteArray()).isEmpty();
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.start")).isEqualTo(10L);
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.end")).isEqualTo(20L);
+    }
+
+    @Test
+    void rangeOfACachedSegment() throws IOException {
+        controller = controller(true);
+        get("v1/720p/segment_000.ts", null);   // Loads it into the cache
+
+        MockHttpServletResponse response = get("v1/720p/segment_000.ts", "bytes=10-19");
+
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(segment, 10, 20));
+    }
+
+    @Test
+    void pathOutsideTheHlsDirectoryIsRejected() throws IOException {
+        assertThat(get("../secret.txt", null).getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    void missingFileIsNotFound() throws IOException {
+        assertThat(get("v1/720p/segment_999.ts", null).getStatus()).isEqualTo(404);
+        assertThat(get("v1/720p", null).getStatus()).isEqualTo(404);
+    }
+
+    private HlsController controller(boolean cache) {
+        return new HlsController(new HlsSegmentCache(cache, DataSize.ofMegabytes(1), DataSize.ofMegabytes(1)),
+                hlsDir.toString(), Duration.ofSeconds(10));
+    }
+
+    private MockHttpServletResponse get(String path, String range) throws IOException {
+        MockHttpServletRequest request = request(path);
+        if (range != null) {
+            request.addHeader("Range", range);
+        }
+        return serve(request);
+    }
+
+    private static MockHttpServletRequest request(String path) {
+        return new MockHttpServletRequest("GET", "/hls/" + path);
+    }
+
+    private MockHttpServletResponse serve(MockHttpServletRequest request) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.serveHlsFile(request, response);
+        return response;
+    }
+}
@@ -0,0 +1,193 @@
+package az.dev.localtube.controller;
+
+import az.dev.localtube.domain.UploadSession;
+import az.dev.localtube.service.DiskSpaceLedger;
+import az.dev.localtube.service.HlsSegmentCache;
+import az.dev.localtube.service.PipelinedIngestService;
+import az.dev.localtube.service.TranscodeJobQueue;
+import az.dev.localtube.service.TranscodeProgressService;
+import az.dev.localtube.service.UploadSessionService;
+import az.dev.localtube.service.VideoService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UploadControllerTest {
+
+    @TempDir
+    Path uploadDir;
+
+    private final DiskSpaceLedger ledger = mock(DiskSpaceLedger.class);
+
+    private UploadSessionService sessions;
+    private UploadController controller;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        sessions = new UploadSessionService(uploadDir.toString());
+        controller = new UploadController(mock(VideoService.class), mock(TranscodeJobQueue.class), sessions,
+                ledger, mock(PipelinedIngestService.class), mock(TranscodeProgressService.class),
+                mock(HlsSegmentCache.class), uploadDir.toString(), 1L << 30);
+    }
+
+    @Test
+    void rangeIsWrittenAsTheChunkAtItsOffset() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        ResponseEntity<Map<String, Object>> response = put(session, "bytes 100-199/250", chunk(100, 7));
+
+        assertThat(response.getStatusCode().value()).isEqualTo(200);
+        assertThat(response.getBody()).containsEntry("chunkIndex", 1);
+        assertThat(session.getMissingRanges()).containsExactly(new int[]{0, 0}, new int[]{2, 2});
+        assertThat(Files.readAllBytes(sessions.partialFile(session))[150]).isEqualTo((byte) 7);
+        verify(ledger).recordWritten("v1", 100);
+    }
+
+    @Test
+    void shortLastRangeIsAccepted() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        ResponseEntity<Map<String, Object>> response = put(session, "bytes 200-249/250", chunk(50, 1));
+
+        assertThat(response.getBody()).containsEntry("chunkIndex", 2);
+    }
+
+    @Test
+    void unknownTotalIsAccepted() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        ResponseEntity<Map<String, Object>> response = put(session, "bytes 0-99/*", chunk(100, 1));
+
+        assertThat(response.getStatusCode().value()).isEqualTo(200);
+    }
+
+    @Test
+    void firstRangeTeachesAnUnknownChunkSize() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 0, false);
+
+        put(session, "bytes 0-99/250", chunk(100, 1));
+        ResponseEntity<Map<String, Object>> response = put(session, "bytes 100-199/250", chunk(100, 2));
+
+        assertThat(session.getChunkSize()).isEqualTo(100);
+        assertThat(response.getBody()).containsEntry("chunkIndex", 1);
+    }
+
+    @Test
+    void laterRangeBeforeTheChunkSizeIsKnownIsRejected() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 0, false);
+
+        ResponseEntity<Map<String, Object>> response = put(session, "bytes 100-199/250", chunk(100, 2));
+
+        assertThat(response.getStatusCode().value()).isEqualTo(400);
+        assertThat(session.getReceivedCount()).isZero();
+    }
+
+    @Test
+    void malformedRangeIsRejected() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        for (String header : new String[]{"bytes=0-99", "bytes 0-/250", "items 0-99/250", "bytes -99/250"}) {
+            assertThat(put(session, header, chunk(100, 1)).getStatusCode().value()).isEqualTo(400);
+        }
+        assertThat(session.getReceivedCount()).isZero();
+    }
+
+    @Test
+    void totalOtherThanTheUploadSizeIsRejected() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        assertThat(put(session, "bytes 0-99/300", chunk(100, 1)).getStatusCode().value()).isEqualTo(400);
+    }
+
+    @Test
+    void bodyLengthMustMatchTheRange() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        assertThat(put(session, "bytes 0-99/250", chunk(80, 1)).getStatusCode().value()).isEqualTo(400);
+    }
+
+    @Test
+    void misalignedRangeIsRejected() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        assertThat(put(session, "bytes 50-149/250", chunk(100, 1)).getStatusCode().value()).isEqualTo(400);
+    }
+
+    @Test
+    void rangePastTheEndIsRejected() throws IOException {
+        UploadSession session = sessions.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        assertThat(put(session, "bytes 200-299/250", chunk(100, 1)).getStatusCode().value()).isEqualTo(400);
+    }
+
+    @Test
+    void unknownSessionIsNotFound() {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/api/upload/chunk/nope");
+        request.setContent(chunk(100, 1));
+
+        assertThat(controller.uploadRawChunk("nope", "bytes 0-99/250", null, request).getStatusCode().value())
+                .isEqualTo(404);
+    }
+
+    @Test
+    void sessionlessFinalChunkLandsAfterTheFullOnes() throws IOException {
+        when(ledger.canWrite(anyLong())).thenReturn(true);
+
+        post(0, 3, chunk(100, 1));
+        post(1, 3, chunk(100, 2));
+        assertThat(post(2, 3, chunk(50, 3)).getStatusCode().value()).isEqualTo(200);
+        post(2, 3, chunk(50, 3));   // A retried final chunk goes to the same place
+
+        byte[] written = Files.readAllBytes(uploadDir.resolve("legacy.mp4"));
+        assertThat(written).hasSize(250);
+        assertThat(written[99]).isEqualTo((byte) 1);
+        assertThat(written[199]).isEqualTo((byte) 2);
+        assertThat(written[200]).isEqualTo((byte) 3);
+    }
+
+    @Test
+    void sessionlessFinalChunkWithoutAKnownStrideIsRejected() throws IOException {
+        when(ledger.canWrite(anyLong())).thenReturn(true);
+
+        ResponseEntity<Map<String, Object>> response = post(2, 3, chunk(50, 3));
+
+        assertThat(response.getStatusCode().value()).isEqualTo(400);
+        assertThat(uploadDir.resolve("legacy.mp4")).doesNotExist();
+    }
+
+    /**
+     * A chunk from a client that never called /init and sends no chunkSize
+     */
+    private ResponseEntity<Map<String, Object>> post(int chunkIndex, int totalChunks, byte[] body) {
+        MockMultipartFile file = new MockMultipartFile("file", "legacy.mp4", "application/octet-stream", body);
+        return controller.uploadChunk(file, chunkIndex, totalChunks, "legacy.mp4", null, null, null);
+    }
+
+    private ResponseEntity<Map<String, Object>> put(UploadSession session, String contentRange, byte[] body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/api/upload/chunk/" + session.getUploadId());
+        request.setContentType("application/octet-stream");
+        request.setContent(body);
+        return controller.uploadRawChunk(session.getUploadId(), contentRange, null, request);
+    }
+
+    private static byte[] chunk(int length, int fill) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+}
@@ -0,0 +1,106 @@
+package az.dev.localtube.domain;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UploadSessionTest {
+
+    // 10 chunks of 100 bytes, the last one 50
+    private final UploadSession session = new UploadSession("v1_1", "v1", "movie.mp4", 950, 100, 10);
+
+    @Test
+    void markReceivedReportsOnlyTheFirstArrival() {
+        assertThat(session.markReceived(3)).isTrue();
+        assertThat(session.markReceived(3)).isFalse();
+
+        assertThat(session.isReceived(3)).isTrue();
+        assertThat(session.getReceivedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void markMissingReportsWhetherTheChunkWasThere() {
+        session.markReceived(3);
+
+        assertThat(session.markMissing(3)).isTrue();
+        assertThat(session.markMissing(3)).isFalse();
+        assertThat(session.isReceived(3)).isFalse();
+    }
+
+    @Test
+    void missingRangesAreInclusivePairs() {
+        for (int i : new int[]{0, 1, 4, 5, 9}) {
+            session.markReceived(i);
+        }
+
+        assertThat(session.getMissingRanges()).containsExactly(new int[]{2, 3}, new int[]{6, 8});
+    }
+
+    @Test
+    void missingRangesOfAnEmptySessionCoverEveryChunk() {
+        assertThat(session.getMissingRanges()).containsExactly(new int[]{0, 9});
+    }
+
+    @Test
+    void completeOnlyOnceEveryChunkArrived() {
+        for (int i = 9; i > 0; i--) {
+            session.markReceived(i);
+        }
+        assertThat(session.isComplete()).isFalse();
+        assertThat(session.getContiguousChunks()).isZero();
+
+        session.markReceived(0);
+
+        assertThat(session.isComplete()).isTrue();
+        assertThat(session.getMissingRanges()).isEmpty();
+        assertThat(session.getContiguousBytes()).isEqualTo(950);
+    }
+
+    @Test
+    void contiguousPrefixStopsAtTheFirstGap() {
+        session.markReceived(0);
+        session.markReceived(1);
+        session.markReceived(3);
+
+        assertThat(session.getContiguousChunks()).isEqualTo(2);
+        assertThat(session.getContiguousBytes()).isEqualTo(200);
+    }
+
+    @Test
+    void contiguousBytesUnknownWithoutChunkSize() {
+        UploadSession legacy = new UploadSession("v2_1", "v2", "clip.mp4", 950, 0, 10);
+        legacy.markReceived(0);
+
+        assertThat(legacy.getContiguousBytes()).isEqualTo(-1);
+        assertThat(legacy.expectedChunkLength(0)).isEqualTo(-1);
+    }
+
+    @Test
+    void lastChunkIsShort() {
+        assertThat(session.expectedChunkLength(0)).isEqualTo(100);
+        assertThat(session.expectedChunkLength(9)).isEqualTo(50);
+    }
+
+    @Test
+    void bitmapSurvivesJsonRoundTrip() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(new JavaTimeModule());
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        session.setPipelined(true);
+        for (int i : new int[]{0, 2, 7, 9}) {
+            session.markReceived(i);
+        }
+
+        UploadSession restored = mapper.readValue(mapper.writeValueAsBytes(session), UploadSession.class);
+
+        assertThat(restored.getUploadId()).isEqualTo("v1_1");
+        assertThat(restored.getFilename()).isEqualTo("movie.mp4");
+        assertThat(restored.getChunkSize()).isEqualTo(100);
+        assertThat(restored.isPipelined()).isTrue();
+        assertThat(restored.getReceivedCount()).isEqualTo(4);
+        assertThat(restored.getMissingRanges()).containsExactly(new int[]{1, 1}, new int[]{3, 6}, new int[]{8, 8});
+    }
+}
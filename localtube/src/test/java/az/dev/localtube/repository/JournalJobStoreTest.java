@@ -0,0 +1,116 @@
+package az.dev.localtube.repository;
+
+import az.dev.localtube.domain.TranscodeJob;
+import az.dev.localtube.domain.TranscodeJobStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JournalJobStoreTest {
+
+    @TempDir
+    Path journalDir;
+
+    @Test
+    void lastSnapshotOfAJobWinsOnReplay() throws IOException {
+        JournalJobStore store = store(1000);
+        TranscodeJob job = job("v1");
+        store.save(job);
+        job.getCompletedQualities().add("480p");
+        store.save(job);
+
+        TranscodeJob replayed = store(1000).get("v1").orElseThrow();
+
+        assertThat(replayed.getStatus()).isEqualTo(TranscodeJobStatus.QUEUED);
+        assertThat(replayed.getCompletedQualities()).containsExactly("480p");
+        assertThat(replayed.getUploaderId()).isEqualTo("user:alice");
+    }
+
+    @Test
+    void finishedJobsAreNotReplayed() throws IOException {
+        JournalJobStore store = store(1000);
+        for (TranscodeJobStatus status : new TranscodeJobStatus[]{
+                TranscodeJobStatus.DONE, TranscodeJobStatus.FAILED, TranscodeJobStatus.CANCELLED}) {
+            TranscodeJob job = job(status.name());
+            store.save(job);
+            job.setStatus(status);
+            store.save(job);
+        }
+        store.save(job("queued"));
+
+        assertThat(store(1000).load()).extracting(TranscodeJob::getVideoId).containsExactly("queued");
+    }
+
+    @Test
+    void jobRunningWhenTheProcessDiedIsQueuedAgain() throws IOException {
+        TranscodeJob job = job("v1");
+        job.setStatus(TranscodeJobStatus.RUNNING);
+        job.setAttempts(1);
+        job.setWorkerId("node-1");
+        job.setLeaseExpiresAt(LocalDateTime.now().plusMinutes(2));
+        store(1000).save(job);
+
+        TranscodeJob replayed = store(1000).get("v1").orElseThrow();
+
+        assertThat(replayed.getStatus()).isEqualTo(TranscodeJobStatus.QUEUED);
+        assertThat(replayed.getAttempts()).isEqualTo(1);
+        assertThat(replayed.getWorkerId()).isNull();
+        assertThat(replayed.getLeaseExpiresAt()).isNull();
+    }
+
+    @Test
+    void tornLastLineIsSkipped() throws IOException {
+        store(1000).save(job("v1"));
+        Files.writeString(journal(), "{\"videoId\":\"v2\",\"stat", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        JournalJobStore replayed = store(1000);
+
+        assertThat(replayed.load()).extracting(TranscodeJob::getVideoId).containsExactly("v1");
+        replayed.save(job("v3"));
+        assertThat(store(1000).load()).extracting(TranscodeJob::getVideoId).containsExactly("v1", "v3");
+    }
+
+    @Test
+    void jobWithoutUploaderGetsOne() throws IOException {
+        TranscodeJob job = new TranscodeJob("old", "/uploads/old.mp4");
+        store(1000).save(job);
+
+        assertThat(store(1000).get("old").orElseThrow().getUploaderId()).isEqualTo("unknown");
+    }
+
+    @Test
+    void journalIsCompactedToTheLiveJobs() throws IOException {
+        JournalJobStore store = store(5);
+        TranscodeJob job = job("v1");
+        for (int i = 0; i < 10; i++) {
+            job.setAttempts(i);
+            store.save(job);
+        }
+        store.save(job("v2"));
+
+        assertThat(Files.readAllLines(journal()).size()).isLessThanOrEqualTo(6);
+        assertThat(store(5).get("v1").orElseThrow().getAttempts()).isEqualTo(9);
+    }
+
+    private JournalJobStore store(int compactAfter) throws IOException {
+        return new JournalJobStore(journalDir.toString(), compactAfter);
+    }
+
+    private Path journal() {
+        return journalDir.resolve("transcode-jobs.journal");
+    }
+
+    private static TranscodeJob job(String videoId) {
+        TranscodeJob job = new TranscodeJob(videoId, "/uploads/" + videoId + ".mp4");
+        job.setUploaderId("user:alice");
+        return job;
+    }
+}
@@ -0,0 +1,37 @@
+package az.dev.localtube.repository;
+
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VideoRepositoryTest {
+
+    @Test
+    void keywordMappedFieldIsQueriedDirectly() {
+        Property keyword = Property.of(p -> p.keyword(k -> k));
+
+        assertThat(VideoRepository.keywordField("hlsPath", keyword)).isEqualTo("hlsPath");
+    }
+
+    @Test
+    void dynamicallyMappedTextFieldIsQueriedThroughItsKeywordSubField() {
+        // What Elasticsearch creates for a string when the index was not made by ensureIndex
+        Property dynamic = Property.of(p -> p.text(t -> t
+                .fields("keyword", f -> f.keyword(k -> k.ignoreAbove(256)))));
+
+        assertThat(VideoRepository.keywordField("hlsPath", dynamic)).isEqualTo("hlsPath.keyword");
+    }
+
+    @Test
+    void textFieldWithoutKeywordSubFieldNeedsOne() {
+        Property text = Property.of(p -> p.text(t -> t));
+
+        assertThat(VideoRepository.keywordField("hlsPath", text)).isNull();
+    }
+
+    @Test
+    void unmappedFieldWillBeMappedAsKeyword() {
+        assertThat(VideoRepository.keywordField("contentSha256", null)).isEqualTo("contentSha256");
+    }
+}
@@ -0,0 +1,101 @@
+package az.dev.localtube.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DiskSpaceLedgerTest {
+
+    // Other processes write to the same disk meanwhile
+    private static final long SLACK = 16L * 1024 * 1024;
+
+    @TempDir
+    Path root;
+
+    private Path uploadDir;
+    private DiskSpaceLedger ledger;
+    private long upload;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        UploadSessionService sessions = mock(UploadSessionService.class);
+        when(sessions.getSessions()).thenReturn(List.of());
+        uploadDir = root.resolve("uploads");
+        ledger = new DiskSpaceLedger(sessions, uploadDir.toString(), root.resolve("hls").toString(),
+                0, 1.5, Duration.ZERO);
+        upload = Math.max(1, Math.min(ledger.available(uploadDir) / 10, 256L * 1024 * 1024));
+    }
+
+    @Test
+    void reservationBooksUploadAndHlsOutput() throws Exception {
+        long before = ledger.available(uploadDir);
+
+        assertThat(ledger.reserve("v1", upload)).isTrue();
+
+        assertThat(ledger.available(uploadDir)).isCloseTo(before - upload - (long) (upload * 1.5), within(SLACK));
+    }
+
+    @Test
+    void reservationThatDoesNotFitIsRefused() throws Exception {
+        long before = ledger.available(uploadDir);
+
+        assertThat(ledger.reserve("v1", before)).isFalse();
+        assertThat(ledger.available(uploadDir)).isCloseTo(before, within(SLACK));
+    }
+
+    @Test
+    void writtenBytesLeaveTheBooking() throws Exception {
+        ledger.reserve("v1", upload);
+        long booked = ledger.available(uploadDir);
+
+        // The bytes show up in the filesystem's usable space instead
+        ledger.recordWritten("v1", upload / 2);
+
+        assertThat(ledger.available(uploadDir)).isCloseTo(booked + upload / 2, within(SLACK));
+    }
+
+    @Test
+    void releaseGivesEverythingBack() throws Exception {
+        long before = ledger.available(uploadDir);
+        ledger.reserve("v1", upload);
+
+        ledger.release("v1");
+        ledger.release("v1");
+
+        assertThat(ledger.available(uploadDir)).isCloseTo(before, within(SLACK));
+    }
+
+    @Test
+    void idleUploadsExpireButTranscodesDoNot() throws Exception {
+        long before = ledger.available(uploadDir);
+        ledger.reserve("idle", upload);
+        ledger.reserve("transcoding", upload);
+        ledger.uploadFinished("transcoding");
+        Thread.sleep(5);   // Past the zero idle TTL
+
+        ledger.expireIdle();
+
+        assertThat(ledger.available(uploadDir)).isCloseTo(before - (long) (upload * 1.5), within(SLACK));
+    }
+
+    @Test
+    void resumedTranscodeBooksOnlyItsOutput() throws Exception {
+        long before = ledger.available(uploadDir);
+
+        ledger.reserveTranscode("v1", upload);
+        ledger.reserveTranscode("v1", upload);
+        Thread.sleep(5);
+        ledger.expireIdle();
+
+        assertThat(ledger.available(uploadDir)).isCloseTo(before - (long) (upload * 1.5), within(SLACK));
+    }
+}
@@ -0,0 +1,131 @@
+package az.dev.localtube.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HlsSegmentCacheTest {
+
+    @TempDir
+    Path dir;
+
+    // Room for two 100 byte segments
+    private final HlsSegmentCache cache = new HlsSegmentCache(true, DataSize.ofBytes(200), DataSize.ofBytes(150));
+
+    @Test
+    void secondRequestIsAHit() throws Exception {
+        Path segment = segment("a.ts", 100);
+
+        ByteBuffer first = get(segment);
+        ByteBuffer second = get(segment);
+
+        assertThat(first).isNotNull();
+        assertThat(second).isNotNull();
+        assertThat(second.remaining()).isEqualTo(100);
+        assertThat(cache.stats()).containsEntry("hits", 1L).containsEntry("misses", 1L);
+    }
+
+    @Test
+    void rewrittenFileIsNotServedStale() throws Exception {
+        Path playlist = segment("playlist.m3u8", 100);
+        get(playlist);
+
+        Files.setLastModifiedTime(playlist, FileTime.fromMillis(Files.getLastModifiedTime(playlist).toMillis() + 5_000));
+        get(playlist);
+
+        assertThat(cache.stats()).containsEntry("hits", 0L).containsEntry("misses", 2L);
+    }
+
+    @Test
+    void fileLargerThanMaxEntrySizeIsServedFromDisk() throws Exception {
+        Path large = segment("large.ts", 160);
+
+        assertThat(get(large)).isNull();
+        assertThat(cache.stats()).containsEntry("rejections", 1L).containsEntry("usedBytes", 0L);
+    }
+
+    @Test
+    void oneOffCrawlDoesNotFlushHotSegments() throws Exception {
+        Path hotA = segment("hot_a.ts", 100);
+        Path hotB = segment("hot_b.ts", 100);
+        for (int i = 0; i < 3; i++) {
+            get(hotA);
+            get(hotB);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(get(segment("cold_" + i + ".ts", 100))).isNull();
+        }
+
+        long hitsBefore = (long) cache.stats().get("hits");
+        get(hotA);
+        get(hotB);
+        assertThat((long) cache.stats().get("hits")).isEqualTo(hitsBefore + 2);
+        assertThat((long) cache.stats().get("usedBytes")).isEqualTo(200);
+    }
+
+    @Test
+    void segmentAskedForMoreOftenDisplacesTheLeastRecentlyUsed() throws Exception {
+        Path a = segment("a.ts", 100);
+        Path b = segment("b.ts", 100);
+        Path c = segment("c.ts", 100);
+        get(a);
+        get(b);
+
+        // c keeps being asked for until it beats a, the least recently used
+        ByteBuffer admitted = null;
+        for (int i = 0; i < 3 && admitted == null; i++) {
+            admitted = get(c);
+        }
+
+        assertThat(admitted).isNotNull();
+        assertThat(cache.stats()).containsEntry("evictions", 1L).containsEntry("usedBytes", 200L);
+    }
+
+    @Test
+    void tornReadIsNotCached() throws Exception {
+        Path segment = segment("a.ts", 50);
+
+        // Attributes said 100 bytes, the file holds 50 by the time it is read
+        assertThat(cache.get(segment, 100, Files.getLastModifiedTime(segment).toMillis())).isNull();
+        assertThat(cache.stats()).containsEntry("entries", 0).containsEntry("usedBytes", 0L).containsEntry("loading", 0);
+    }
+
+    @Test
+    void invalidateDropsEverythingBelowTheDirectory() throws Exception {
+        Files.createDirectories(dir.resolve("video1"));
+        Path inside = segment("video1/seg_000.ts", 100);
+        Path outside = segment("other.ts", 100);
+        get(inside);
+        get(outside);
+
+        cache.invalidate(dir.resolve("video1"));
+
+        assertThat(cache.stats()).containsEntry("entries", 1).containsEntry("usedBytes", 100L);
+    }
+
+    @Test
+    void disabledCacheServesEverythingFromDisk() throws Exception {
+        HlsSegmentCache disabled = new HlsSegmentCache(false, DataSize.ofBytes(200), DataSize.ofBytes(150));
+        Path segment = segment("a.ts", 100);
+
+        assertThat(disabled.get(segment, 100, Files.getLastModifiedTime(segment).toMillis())).isNull();
+    }
+
+    private Path segment(String name, int size) throws Exception {
+        Path file = dir.resolve(name).toAbsolutePath().normalize();
+        Files.write(file, new byte[size]);
+        return file;
+    }
+
+    private ByteBuffer get(Path file) throws Exception {
+        return cache.get(file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+    }
+}
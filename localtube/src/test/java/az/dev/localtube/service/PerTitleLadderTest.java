@@ -0,0 +1,96 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.service.TranscodingService.QualityProfile;
+import az.dev.localtube.service.TranscodingService.VideoInfo;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PerTitleLadderTest {
+
+    // Five 4 second samples of a 10 minute 1080p source
+    private static final VideoInfo INFO = new VideoInfo(1920, 1080, 600);
+    private static final List<QualityProfile> LADDER = List.of(
+            new QualityProfile("480p", 854, 480, 1_400_000),
+            new QualityProfile("720p", 1280, 720, 2_800_000),
+            new QualityProfile("1080p", 1920, 1080, 5_000_000));
+
+    private final PerTitleLadder ladder = new PerTitleLadder(true, 5, 4, 1.5, 1.25, 800_000);
+    private final List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    void easyContentDropsRungsBelowTheLowBandwidth() {
+        List<QualityProfile> fitted = ladder.adapt(Path.of("in.mp4"), INFO, LADDER, 2, samplesAt(400_000));
+
+        // 720p needs ~616 kb/s, so 480p is not worth switching down to
+        assertThat(fitted).extracting(p -> p.label).containsExactly("720p", "1080p");
+        assertThat(fitted.get(1).bandwidth).isLessThan(LADDER.get(2).bandwidth);
+    }
+
+    @Test
+    void hardContentKeepsEveryRungCappedByTheStaticLadder() {
+        List<QualityProfile> fitted = ladder.adapt(Path.of("in.mp4"), INFO, LADDER, 2, samplesAt(4_000_000));
+
+        assertThat(fitted).extracting(p -> p.label).containsExactly("480p", "720p", "1080p");
+        assertThat(fitted).extracting(p -> p.maxrate).containsExactly(1_400_000, 2_800_000, 5_000_000);
+    }
+
+    @Test
+    void rungBarelyCheaperThanTheOneAboveIsDropped() {
+        List<QualityProfile> close = List.of(
+                new QualityProfile("900p", 1600, 900, 4_500_000),
+                new QualityProfile("1080p", 1920, 1080, 5_000_000));
+
+        List<QualityProfile> fitted = ladder.adapt(Path.of("in.mp4"), INFO, close, 2, samplesAt(4_000_000));
+
+        assertThat(fitted).extracting(p -> p.label).containsExactly("1080p");
+    }
+
+    @Test
+    void samplesRunThroughTheRunnerWithTheGrantedThreads() {
+        ladder.adapt(Path.of("in.mp4"), INFO, LADDER, 3, samplesAt(1_000_000));
+
+        assertThat(commands).hasSize(5);
+        for (List<String> cmd : commands) {
+            // Decoder and encoder both held to the grant
+            assertThat(Collections.frequency(cmd, "-threads")).isEqualTo(2);
+            assertThat(cmd.get(cmd.indexOf("-threads") + 1)).isEqualTo("3");
+            assertThat(cmd.get(cmd.lastIndexOf("-threads") + 1)).isEqualTo("3");
+        }
+    }
+
+    @Test
+    void failedSampleFallsBackToTheStaticLadder() {
+        List<QualityProfile> fitted = ladder.adapt(Path.of("in.mp4"), INFO, LADDER, 2, (cmd, span) -> 1);
+
+        assertThat(fitted).isSameAs(LADDER);
+    }
+
+    @Test
+    void disabledLadderRunsNoSamples() {
+        PerTitleLadder disabled = new PerTitleLadder(false, 5, 4, 1.5, 1.25, 800_000);
+
+        List<QualityProfile> fitted = disabled.adapt(Path.of("in.mp4"), INFO, LADDER, 2, samplesAt(400_000));
+
+        assertThat(fitted).isSameAs(LADDER);
+        assertThat(commands).isEmpty();
+    }
+
+    /**
+     * Runner that writes each sample as if it encoded at bitsPerSecond
+     */
+    private PerTitleLadder.SampleRunner samplesAt(long bitsPerSecond) {
+        return (cmd, span) -> {
+            commands.add(cmd);
+            assertThat(span).isEqualTo(4.0);
+            Files.write(Path.of(cmd.get(cmd.size() - 1)), new byte[(int) (bitsPerSecond * span / 8)]);
+            return 0;
+        };
+    }
+}
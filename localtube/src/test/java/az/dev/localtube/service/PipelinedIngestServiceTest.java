@@ -0,0 +1,228 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.UploadSession;
+import az.dev.localtube.domain.VideoStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class PipelinedIngestServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private final TranscodingService transcoding = mock(TranscodingService.class);
+    private final TranscodeJobQueue jobQueue = mock(TranscodeJobQueue.class);
+    private final VideoService videos = mock(VideoService.class);
+    private final DiskSpaceLedger ledger = mock(DiskSpaceLedger.class);
+    private final TranscodingScheduler scheduler = new TranscodingScheduler(4, 2, 4);
+    private final List<Thread> threads = new ArrayList<>();
+
+    private UploadSessionService sessions;
+    private Path outputDir;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sessions = new UploadSessionService(dir.resolve("uploads").toString());
+        outputDir = dir.resolve("hls/v1");
+        when(transcoding.supportsPipelining()).thenReturn(true);
+        when(transcoding.outputDirFor("v1")).thenReturn(outputDir);
+        when(transcoding.probePrefix(any(), anyLong())).thenReturn(new TranscodingService.VideoInfo(1280, 720, 60));
+        when(transcoding.getVideoInfo(any())).thenReturn(new TranscodingService.VideoInfo(1280, 720, 60));
+        when(transcoding.buildQualityProfiles(any())).thenReturn(List.of(
+                new TranscodingService.QualityProfile("480p", 854, 480, 1_500_000),
+                new TranscodingService.QualityProfile("720p", 1280, 720, 3_000_000)));
+        when(transcoding.threadWeight(any())).thenReturn(2);
+        when(jobQueue.adopt(eq("v1"), any())).thenReturn(true);
+    }
+
+    @Test
+    void fastStartMp4IsStreamable() throws IOException {
+        Path file = write("movie.mp4", box("ftyp", 24), box("moov", 100), box("mdat", 200));
+
+        assertThat(PipelinedIngestService.isStreamable(file, Files.size(file))).isTrue();
+    }
+
+    @Test
+    void mp4WithItsIndexAtTheEndIsNot() throws IOException {
+        Path file = write("movie.mp4", box("ftyp", 24), box("mdat", 200), box("moov", 100));
+
+        assertThat(PipelinedIngestService.isStreamable(file, Files.size(file))).isFalse();
+    }
+
+    @Test
+    void boxesNotReceivedYetAreNotRead() throws IOException {
+        Path file = write("movie.mov", box("ftyp", 24), box("moov", 100));
+
+        assertThat(PipelinedIngestService.isStreamable(file, 24)).isFalse();
+    }
+
+    @Test
+    void largeSizeBoxIsSkipped() throws IOException {
+        ByteBuffer wide = ByteBuffer.allocate(32);
+        wide.putInt(1).put("free".getBytes()).putLong(32);
+        Path file = write("movie.m4v", box("ftyp", 24), wide.array(), box("moov", 100));
+
+        assertThat(PipelinedIngestService.isStreamable(file, Files.size(file))).isTrue();
+    }
+
+    @Test
+    void streamingContainersGoByTheirExtension() throws IOException {
+        assertThat(PipelinedIngestService.isStreamable(write("movie.mkv", new byte[16]), 16)).isTrue();
+        assertThat(PipelinedIngestService.isStreamable(write("movie.TS", new byte[16]), 16)).isTrue();
+        assertThat(PipelinedIngestService.isStreamable(write("movie.avi", new byte[16]), 16)).isFalse();
+    }
+
+    @Test
+    void unstreamableUploadIsDeclined() throws Exception {
+        PipelinedIngestService service = service(Runnable::run);
+        UploadSession session = upload("movie.avi");
+
+        service.onChunkWritten(session);
+
+        assertThat(service.isActive("v1")).isFalse();
+        assertThat(service.accept("v1")).isFalse();
+        verify(jobQueue, never()).adopt(any(), any());
+        verify(transcoding, never()).transcodeFromPipe(any(), any(), any(), any(), any(), anyInt(), any());
+    }
+
+    @Test
+    void acceptedPipelinePublishes() throws Exception {
+        PipelinedIngestService service = service(this::startThread);
+        UploadSession session = upload("movie.mkv");
+
+        service.onChunkWritten(session);
+        assertThat(service.accept("v1")).isTrue();
+        awaitThreads();
+
+        verify(transcoding).transcodeFromPipe(eq("v1"), eq(outputDir), any(), any(), any(), eq(4), any());
+        verify(transcoding).finishPipelined(eq("v1"), any(), eq(outputDir), any(), any(), eq(60));
+        verify(videos).addQualityToVideo("v1", "720p");
+        verify(videos).updateVideoStatus("v1", VideoStatus.READY);
+        verify(jobQueue).release("v1", true);
+        verify(ledger).release("v1");
+        assertThat(Files.exists(sessions.partialFile(session))).isFalse();
+        assertThat(scheduler.getFreeCores()).isEqualTo(4);
+    }
+
+    @Test
+    void abortedPipelineDropsItsOutput() throws Exception {
+        CountDownLatch encoding = new CountDownLatch(1);
+        CountDownLatch killed = new CountDownLatch(1);
+        when(transcoding.transcodeFromPipe(any(), any(), any(), any(), any(), anyInt(), any())).thenAnswer(inv -> {
+            encoding.countDown();
+            killed.await();
+            return 137;
+        });
+        PipelinedIngestService service = service(this::startThread);
+
+        service.onChunkWritten(upload("movie.mkv"));
+        encoding.await();
+        assertThat(scheduler.getFreeCores()).isEqualTo(3);   // One core while the encode waits on the upload
+        service.abort("v1");
+        killed.countDown();
+        awaitThreads();
+
+        assertThat(service.accept("v1")).isFalse();
+        verify(transcoding).deleteDirectoryRecursive(outputDir);
+        verify(videos, never()).updateVideoStatus("v1", VideoStatus.READY);
+        verify(jobQueue, never()).release(any(), anyBoolean());
+        assertThat(scheduler.getFreeCores()).isEqualTo(4);
+    }
+
+    @Test
+    void failedEncodeLeavesTheAcceptedUploadToTheQueue() throws Exception {
+        when(transcoding.transcodeFromPipe(any(), any(), any(), any(), any(), anyInt(), any())).thenReturn(1);
+        PipelinedIngestService service = service(this::startThread);
+
+        service.onChunkWritten(upload("movie.mkv"));
+        assertThat(service.accept("v1")).isTrue();
+        awaitThreads();
+
+        verify(jobQueue).release("v1", false);
+        verify(transcoding, never()).finishPipelined(any(), any(), any(), any(), any(), anyInt());
+        verify(videos, never()).updateVideoStatus("v1", VideoStatus.READY);
+    }
+
+    @Test
+    void heldCoresFollowTheMeasuredCpu() {
+        long second = 1_000_000_000L;
+
+        assertThat(PipelinedIngestService.coresToHold(second / 10, second, 8)).isEqualTo(1);   // Waiting on input
+        assertThat(PipelinedIngestService.coresToHold(3 * second / 2, second, 8)).isEqualTo(2);
+        assertThat(PipelinedIngestService.coresToHold(20 * second, second, 8)).isEqualTo(8);
+    }
+
+    private PipelinedIngestService service(Executor executor) {
+        return new PipelinedIngestService(transcoding, scheduler, new TranscodeProgressService(), jobQueue, videos,
+                sessions, ledger, executor, 2, Duration.ofSeconds(5));
+    }
+
+    /**
+     * Pipelined upload of one 100 byte chunk, fully received
+     */
+    private UploadSession upload(String filename) throws IOException {
+        UploadSession session = sessions.createOrResume("v1", filename, 100, 1, 100, true);
+        sessions.writeChunk(session, 0, Channels.newChannel(new ByteArrayInputStream(new byte[100])), 100, null);
+        return session;
+    }
+
+    private void startThread(Runnable task) {
+        Thread thread = new Thread(task);
+        synchronized (threads) {
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    private void awaitThreads() throws InterruptedException {
+        for (int i = 0; ; i++) {
+            Thread thread;
+            synchronized (threads) {
+                if (i >= threads.size()) {
+                    return;
+                }
+                thread = threads.get(i);
+            }
+            thread.join(10_000);
+        }
+    }
+
+    private Path write(String name, byte[]... boxes) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate(1024);
+        for (byte[] box : boxes) {
+            content.put(box);
+        }
+        return Files.write(dir.resolve(name), Arrays.copyOf(content.array(), content.position()));
+    }
+
+    /**
+     * Top-level MP4 box of the given size, zero-filled past its header
+     */
+    private static byte[] box(String type, int size) {
+        ByteBuffer box = ByteBuffer.allocate(size);
+        box.putInt(size).put(type.getBytes());
+        return box.array();
+    }
+}
@@ -0,0 +1,204 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.TranscodeJob;
+import az.dev.localtube.domain.TranscodeJobStatus;
+import az.dev.localtube.domain.Video;
+import az.dev.localtube.repository.TranscodeJobStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class TranscodeJobQueueTest {
+
+    @TempDir
+    Path uploadDir;
+
+    private final TranscodingService transcoding = mock(TranscodingService.class);
+    private final VideoService videos = mock(VideoService.class);
+    private final TaskScheduler leaseRenewal = mock(TaskScheduler.class);
+    private final List<Runnable> started = new ArrayList<>();   // Workers handed to the executor, not run yet
+
+    @Test
+    void jobsResumedFromTheStoreBookTheirOutputAgain() throws Exception {
+        Path input = Files.write(uploadDir.resolve("resumed.mp4"), new byte[4096]);
+        TranscodeJob resumed = new TranscodeJob("resumed", input.toString());
+        TranscodeJob gone = new TranscodeJob("gone", uploadDir.resolve("gone.mp4").toString());
+
+        TranscodeJobStore store = mock(TranscodeJobStore.class);
+        when(store.load()).thenReturn(List.of(resumed, gone));
+        DiskSpaceLedger ledger = mock(DiskSpaceLedger.class);
+
+        TranscodeJobQueue queue = queue(store, ledger);
+
+        verify(ledger).reserveTranscode("resumed", 4096);
+        verify(ledger, never()).reserveTranscode(eq("gone"), anyLong());
+        assertThat(queue.isPending("resumed")).isTrue();
+    }
+
+    @Test
+    void freeWorkerGoesToTheUploaderWithFewestRunningJobs() throws Exception {
+        TranscodeJobStore store = store(
+                job("alice-long", "alice", 5), job("alice-short", "alice", 1), job("bob", "bob", 50));
+        TranscodeJobQueue queue = queue(store, mock(DiskSpaceLedger.class));
+
+        queue.dispatch();
+
+        // Shortest first, then bob before alice's second job however long his is
+        assertThat(status(queue, "alice-short")).isEqualTo(TranscodeJobStatus.RUNNING);
+        assertThat(status(queue, "bob")).isEqualTo(TranscodeJobStatus.RUNNING);
+        assertThat(status(queue, "alice-long")).isEqualTo(TranscodeJobStatus.QUEUED);
+        assertThat(started).hasSize(2);
+    }
+
+    @Test
+    void longJobOfABusyUploaderIsPreemptedAndRequeued() throws Exception {
+        TranscodeJobQueue queue = queue(store(), mock(DiskSpaceLedger.class));
+        submit(queue, "alice-1", "alice", 1000);
+        submit(queue, "alice-2", "alice", 900);
+
+        submit(queue, "bob", "bob", 10);
+
+        verify(transcoding).cancelTranscoding("alice-1");
+        verify(transcoding, never()).cancelTranscoding("alice-2");
+
+        // The preempted worker stops before encoding, gives its slot to bob and keeps its attempt
+        started.get(0).run();
+
+        assertThat(status(queue, "alice-1")).isEqualTo(TranscodeJobStatus.QUEUED);
+        assertThat(queue.getJob("alice-1").orElseThrow().getAttempts()).isZero();
+        assertThat(status(queue, "bob")).isEqualTo(TranscodeJobStatus.RUNNING);
+        verify(transcoding, never()).transcodeToHLS(eq("alice-1"), any(), any(), any());
+    }
+
+    @Test
+    void jobNotMuchLongerThanTheWaitingOneIsNotPreempted() throws Exception {
+        TranscodeJobQueue queue = queue(store(), mock(DiskSpaceLedger.class));
+        submit(queue, "alice-1", "alice", 30);
+        submit(queue, "alice-2", "alice", 30);
+
+        submit(queue, "bob", "bob", 10);
+
+        verify(transcoding, never()).cancelTranscoding(any());
+        assertThat(status(queue, "bob")).isEqualTo(TranscodeJobStatus.QUEUED);
+    }
+
+    @Test
+    void uploaderWithASingleJobIsNotPreempted() throws Exception {
+        TranscodeJobQueue queue = queue(store(), mock(DiskSpaceLedger.class));
+        submit(queue, "alice", "alice", 1000);
+        submit(queue, "carol", "carol", 1000);
+
+        submit(queue, "bob", "bob", 10);
+
+        verify(transcoding, never()).cancelTranscoding(any());
+    }
+
+    @Test
+    void cancelOfARunningJobStopsOnlyThatVideo() throws Exception {
+        TranscodeJobQueue queue = queue(store(), mock(DiskSpaceLedger.class));
+        submit(queue, "v1", "alice", 10);
+        submit(queue, "v10", "bob", 10);
+
+        assertThat(queue.cancel("v1")).isTrue();
+
+        verify(transcoding).cancelTranscoding("v1");
+        verify(transcoding, never()).cancelTranscoding("v10");
+        started.get(0).run();
+        assertThat(queue.isPending("v1")).isFalse();
+        assertThat(queue.isPending("v10")).isTrue();
+        verify(transcoding, never()).transcodeToHLS(eq("v1"), any(), any(), any());
+    }
+
+    @Test
+    void sharedStoreIsReadOutsideTheLockAndARacedSnapshotIsDropped() throws Exception {
+        List<TranscodeJob> stored = new ArrayList<>(List.of(job("a", "alice", 10), job("b", "bob", 10)));
+        TranscodeJobStore store = store();
+        when(store.isShared()).thenReturn(true);
+        when(store.save(any())).thenAnswer(invocation -> {
+            TranscodeJob saved = invocation.getArgument(0);
+            stored.removeIf(job -> job.getVideoId().equals(saved.getVideoId()));
+            stored.add(saved);
+            return true;
+        });
+        TranscodeJobQueue queue = queue(store, mock(DiskSpaceLedger.class));
+
+        List<Boolean> locked = new ArrayList<>();
+        AtomicBoolean race = new AtomicBoolean();
+        when(store.load()).thenAnswer(invocation -> {
+            locked.add(Thread.holdsLock(queue));
+            List<TranscodeJob> snapshot = List.copyOf(stored);
+            if (race.getAndSet(false)) {
+                // An upload is queued while the store is being read
+                queue.submit("c", uploadDir.resolve("c.mp4"));
+            }
+            return snapshot;
+        });
+        queue.dispatch();   // Both workers busy
+        race.set(true);
+        queue.dispatch();
+
+        assertThat(locked).hasSize(3).containsOnly(false);
+        assertThat(status(queue, "c")).isEqualTo(TranscodeJobStatus.QUEUED);
+    }
+
+    @Test
+    void leasesAreRenewedOnTheirOwnScheduler() throws Exception {
+        TranscodeJobStore store = store();
+        when(store.isShared()).thenReturn(true);
+
+        queue(store, mock(DiskSpaceLedger.class));
+
+        verify(leaseRenewal).scheduleWithFixedDelay(any(Runnable.class), any(Instant.class), eq(Duration.ofSeconds(20)));
+    }
+
+    private TranscodeJobQueue queue(TranscodeJobStore store, DiskSpaceLedger ledger) {
+        Executor executor = started::add;
+        return new TranscodeJobQueue(transcoding, videos, ledger,
+                mock(HlsSegmentCache.class), store, executor, leaseRenewal, "node-1", true, Duration.ofMinutes(2),
+                20_000, 2, 3, Duration.ofMinutes(1), Duration.ofHours(1), true, 4);
+    }
+
+    private static TranscodeJobStore store(TranscodeJob... jobs) throws IOException {
+        TranscodeJobStore store = mock(TranscodeJobStore.class);
+        when(store.load()).thenReturn(List.of(jobs));
+        when(store.save(any())).thenReturn(true);
+        return store;
+    }
+
+    private TranscodeJob job(String videoId, String uploaderId, double cost) {
+        TranscodeJob job = new TranscodeJob(videoId, uploadDir.resolve(videoId + ".mp4").toString());
+        job.setUploaderId(uploaderId);
+        job.setCost(cost);
+        return job;
+    }
+
+    private void submit(TranscodeJobQueue queue, String videoId, String uploaderId, double cost) throws IOException {
+        Path input = uploadDir.resolve(videoId + ".mp4");
+        Video video = new Video(videoId, videoId, videoId + ".mp4");
+        video.setUploaderId(uploaderId);
+        when(videos.getVideo(videoId)).thenReturn(Optional.of(video));
+        when(transcoding.estimateCost(input)).thenReturn(cost);
+        queue.submit(videoId, input);
+    }
+
+    private static TranscodeJobStatus status(TranscodeJobQueue queue, String videoId) {
+        return queue.getJob(videoId).orElseThrow().getStatus();
+    }
+}
@@ -0,0 +1,127 @@
+package az.dev.localtube.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class TranscodeProgressServiceTest {
+
+    private final TranscodeProgressService progress = new TranscodeProgressService();
+
+    @Test
+    void percentIsWeightedBySpanAndEtaIsTheSlowestProcess() {
+        progress.jobStarted("v1", 100);
+        progress.processStarted("v1", "480p", 0);
+        progress.processStarted("v1", "720p", 0);
+
+        progress.update("v1", "480p", block("50000000", "2.0x", "continue"));
+        progress.update("v1", "720p", block("25000000", "1.0x", "continue"));
+
+        Map<String, Object> snapshot = snapshot("v1");
+        assertThat(snapshot.get("percent")).isEqualTo(37.5);
+        assertThat(snapshot.get("eta")).isEqualTo(75.0);
+    }
+
+    @Test
+    void partsCountByTheStretchOfVideoTheyCover() {
+        progress.jobStarted("v1", 100);
+        progress.processStarted("v1", "part_0", 30);
+        progress.processStarted("v1", "part_1", 70);
+
+        progress.processFinished("v1", "part_0");
+        progress.update("v1", "part_1", block("35000000", "1.0x", "continue"));
+
+        Map<String, Object> snapshot = snapshot("v1");
+        assertThat(snapshot.get("percent")).isEqualTo(65.0);
+        assertThat(snapshot.get("eta")).isEqualTo(35.0);
+    }
+
+    @Test
+    void etaIsUnknownUntilEveryRunningProcessReportsASpeed() {
+        progress.jobStarted("v1", 100);
+        progress.processStarted("v1", "480p", 0);
+        progress.processStarted("v1", "720p", 0);
+
+        progress.update("v1", "480p", block("50000000", "2.0x", "continue"));
+        progress.update("v1", "720p", block("N/A", "N/A", "continue"));
+
+        assertThat(snapshot("v1").get("eta")).isNull();
+    }
+
+    @Test
+    void progressPastTheSpanIsCapped() {
+        progress.jobStarted("v1", 100);
+        progress.processStarted("v1", "part_0", 30);
+
+        progress.update("v1", "part_0", block("31500000", "1.0x", "continue"));
+
+        assertThat(snapshot("v1").get("percent")).isEqualTo(100.0);
+        assertThat(snapshot("v1").get("eta")).isEqualTo(0.0);
+    }
+
+    @Test
+    void unreadableValuesKeepTheLastGoodOnes() {
+        progress.jobStarted("v1", 100);
+        progress.processStarted("v1", "480p", 0);
+        progress.update("v1", "480p", block("40000000", "2.0x", "continue"));
+
+        progress.update("v1", "480p", block("N/A", "N/A", "continue"));
+
+        assertThat(snapshot("v1").get("percent")).isEqualTo(40.0);
+        assertThat(snapshot("v1").get("eta")).isEqualTo(30.0);
+    }
+
+    @Test
+    void endOfOutputFinishesTheProcess() {
+        progress.jobStarted("v1", 100);
+        progress.processStarted("v1", "480p", 0);
+
+        progress.update("v1", "480p", block("99500000", "2.0x", "end"));
+
+        assertThat(snapshot("v1").get("percent")).isEqualTo(100.0);
+    }
+
+    @Test
+    void finishedJobIsDropped() {
+        progress.jobStarted("v1", 100);
+
+        progress.jobFinished("v1");
+
+        assertThat(progress.snapshots()).isEmpty();
+    }
+
+    @Test
+    void subscriberOfOneVideoHearsOnlyAboutIt() throws Exception {
+        progress.jobStarted("v1", 100);
+        progress.jobStarted("v2", 100);
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("s1");
+
+        progress.subscribe(session, "v1");
+        verify(session, times(1)).sendMessage(any(WebSocketMessage.class));   // Current state of v1
+
+        progress.update("v2", "480p", block("1000000", "1.0x", "continue"));
+        progress.update("v1", "480p", block("1000000", "1.0x", "continue"));
+
+        verify(session, times(2)).sendMessage(any(WebSocketMessage.class));
+    }
+
+    private Map<String, Object> snapshot(String videoId) {
+        List<Map<String, Object>> snapshots = progress.snapshots();
+        return snapshots.stream().filter(s -> videoId.equals(s.get("videoId"))).findFirst().orElseThrow();
+    }
+
+    /**
+     * One block of ffmpeg -progress output
+     */
+    private static Map<String, String> block(String outTimeUs, String speed, String state) {
+        return Map.of("frame", "100", "fps", "25.0", "out_time_us", outTimeUs, "speed", speed, "progress", state);
+    }
+}
@@ -0,0 +1,76 @@
+package az.dev.localtube.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TranscodingSchedulerTest {
+
+    // 8 cores, 2 jobs at a time, so a fair share is 4
+    private final TranscodingScheduler scheduler = new TranscodingScheduler(8, 2, 4);
+
+    @Test
+    void idleCoresAreGrantedBeyondTheFairShare() throws InterruptedException {
+        assertThat(scheduler.acquire(6)).isEqualTo(6);
+        assertThat(scheduler.getFreeCores()).isEqualTo(2);
+    }
+
+    @Test
+    void grantIsCappedAtTheBudget() throws InterruptedException {
+        assertThat(scheduler.acquire(100)).isEqualTo(8);
+    }
+
+    @Test
+    void smallRequestTakesTheLeftover() throws InterruptedException {
+        scheduler.acquire(6);
+
+        assertThat(scheduler.acquire(2)).isEqualTo(2);
+    }
+
+    @Test
+    void jobWaitsForItsFairShareRatherThanALeftoverCore() throws Exception {
+        scheduler.acquire(7);
+
+        CompletableFuture<Integer> second = CompletableFuture.supplyAsync(this::acquireSix);
+        Thread.sleep(100);
+        assertThat(second.isDone()).isFalse();   // One core free, fair share is 4
+
+        scheduler.release(3);
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(4);
+    }
+
+    @Test
+    void tryAcquireTakesWhatIsFreeWithoutWaiting() throws InterruptedException {
+        scheduler.acquire(7);
+
+        assertThat(scheduler.tryAcquire(3)).isEqualTo(1);
+        assertThat(scheduler.tryAcquire(3)).isZero();
+        assertThat(scheduler.getFreeCores()).isZero();
+    }
+
+    @Test
+    void releaseNeverOverfillsTheBudget() {
+        scheduler.release(5);
+
+        assertThat(scheduler.getFreeCores()).isEqualTo(8);
+    }
+
+    @Test
+    void groupsFollowThreadsPerProcess() {
+        assertThat(scheduler.groupsFor(8, 5)).isEqualTo(2);
+        assertThat(scheduler.groupsFor(9, 5)).isEqualTo(3);
+        assertThat(scheduler.groupsFor(16, 2)).isEqualTo(2);   // Never more groups than renditions
+        assertThat(scheduler.groupsFor(1, 5)).isEqualTo(1);
+    }
+
+    private int acquireSix() {
+        try {
+            return scheduler.acquire(6);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package az.dev.localtube.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class TranscodingServiceTest {
+
+    @TempDir
+    Path hlsDir;
+
+    private static final TranscodingService.QualityProfile P480 =
+            new TranscodingService.QualityProfile("480p", 854, 480, 1_500_000);
+    private static final TranscodingService.QualityProfile P720 =
+            new TranscodingService.QualityProfile("720p", 1280, 720, 3_000_000);
+
+    private final VideoService videos = mock(VideoService.class);
+    private TranscodingService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new TranscodingService(videos, new TranscodingScheduler(4, 2, 2),
+                mock(TranscodeProgressService.class), mock(PerTitleLadder.class), Runnable::run,
+                hlsDir.toString(), 6, List.of("480p", "720p"), 1800, 600, 16, true, "mpegts",
+                List.of(), List.of(), true, List.of("128k"), true, 1.5, true, 5, 1000);
+    }
+
+    @Test
+    void cancelKillsOnlyTheProcessesOfThatExactVideo() {
+        StubProcess clip = new StubProcess();
+        StubProcess clipFinal = new StubProcess();
+        service.trackProcess("clip", clip);
+        service.trackProcess("clip_final", clipFinal);
+
+        service.cancelTranscoding("clip");
+
+        assertThat(clip.destroyed).isTrue();
+        assertThat(clipFinal.destroyed).isFalse();
+    }
+
+    @Test
+    void isTranscodingDoesNotMatchVideosSharingAPrefix() {
+        StubProcess clipFinal = new StubProcess();
+        service.trackProcess("clip_final", clipFinal);
+
+        assertThat(service.isTranscoding("clip")).isFalse();
+        assertThat(service.isTranscoding("clip_final")).isTrue();
+
+        service.untrackProcess("clip_final", clipFinal);
+        assertThat(service.isTranscoding("clip_final")).isFalse();
+    }
+
+    @Test
+    void cancelWithoutAnAttemptDoesNotAbortTheNextOne() {
+        // e.g. a preemption or lost lease noticed after the job already returned
+        service.cancelTranscoding("clip");
+
+        service.beginAttempt("clip");
+
+        assertThat(service.isCancelled("clip")).isFalse();
+    }
+
+    @Test
+    void cancelBetweenBeginAndStartStopsTheAttempt() {
+        service.beginAttempt("clip");
+
+        service.cancelTranscoding("clip");
+
+        assertThat(service.isCancelled("clip")).isTrue();
+        assertThat(service.isCancelled("clip_final")).isFalse();
+    }
+
+    @Test
+    void newAttemptStartsUncancelled() {
+        service.beginAttempt("clip");
+        service.cancelTranscoding("clip");
+
+        service.beginAttempt("clip");
+
+        assertThat(service.isCancelled("clip")).isFalse();
+    }
+
+    @Test
+    void pipeliningRunsWithTheDefaultFeaturesButNotWithExtraCodecs() {
+        // Separate audio, thumbnails and the per-title ladder are on in setUp
+        assertThat(service.supportsPipelining()).isTrue();
+
+        TranscodingService hevc = new TranscodingService(mock(VideoService.class), new TranscodingScheduler(4, 2, 2),
+                mock(TranscodeProgressService.class), mock(PerTitleLadder.class), Runnable::run,
+                hlsDir.toString(), 6, List.of("480p", "720p"), 1800, 600, 16, true, "fmp4",
+                List.of("hevc"), List.of("720p"), true, List.of("128k"), true, 1.5, true, 5, 1000);
+        assertThat(hevc.supportsPipelining()).isFalse();
+    }
+
+    @Test
+    void stitchedPartsAreSeparatedByDiscontinuities() throws IOException {
+        Path qualityDir = Files.createDirectories(hlsDir.resolve("v1/720p"));
+        writePart(qualityDir, 0, "#EXTINF:6.000000,", "segment_000.ts", "#EXTINF:6.400000,", "segment_001.ts");
+        writePart(qualityDir, 1, "#EXTINF:5.000000,", "p1_segment_000.ts");
+        writePart(qualityDir, 2, "#EXTINF:2.500000,", "p2_segment_000.ts");
+
+        service.stitchPlaylists(qualityDir, 3);
+
+        List<String> lines = Files.readAllLines(qualityDir.resolve("playlist.m3u8"));
+        assertThat(lines).contains("#EXT-X-VERSION:3", "#EXT-X-PLAYLIST-TYPE:VOD");
+        assertThat(lines).containsSubsequence("segment_000.ts", "segment_001.ts", "#EXT-X-DISCONTINUITY",
+                "p1_segment_000.ts", "#EXT-X-DISCONTINUITY", "p2_segment_000.ts", "#EXT-X-ENDLIST");
+        assertThat(lines.stream().filter("#EXT-X-DISCONTINUITY"::equals).count()).isEqualTo(2);
+        assertThat(lines.get(0)).isEqualTo("#EXTM3U");
+        assertThat(lines.get(lines.size() - 1)).isEqualTo("#EXT-X-ENDLIST");
+        assertThat(Files.exists(qualityDir.resolve("part_000.m3u8"))).isFalse();
+    }
+
+    @Test
+    void targetDurationCoversTheLongestSegmentOfAnyPart() throws IOException {
+        Path qualityDir = Files.createDirectories(hlsDir.resolve("v1/720p"));
+        writePart(qualityDir, 0, "#EXTINF:6.000000,", "segment_000.ts");
+        writePart(qualityDir, 1, "#EXTINF:7.200000,", "p1_segment_000.ts");
+
+        service.stitchPlaylists(qualityDir, 2);
+
+        assertThat(Files.readAllLines(qualityDir.resolve("playlist.m3u8"))).contains("#EXT-X-TARGETDURATION:8");
+    }
+
+    @Test
+    void targetDurationIsNeverBelowTheSegmentDuration() throws IOException {
+        Path qualityDir = Files.createDirectories(hlsDir.resolve("v1/720p"));
+        writePart(qualityDir, 0, "#EXTINF:4.000000,", "segment_000.ts");
+        writePart(qualityDir, 1, "#EXTINF:3.000000,", "p1_segment_000.ts");
+
+        service.stitchPlaylists(qualityDir, 2);
+
+        assertThat(Files.readAllLines(qualityDir.resolve("playlist.m3u8"))).contains("#EXT-X-TARGETDURATION:6");
+    }
+
+    @Test
+    void fmp4PartsKeepTheirOwnInitSegments() throws IOException {
+        Path qualityDir = Files.createDirectories(hlsDir.resolve("v1/720p"));
+        writePart(qualityDir, 0, "#EXT-X-MAP:URI=\"init_000.mp4\"", "#EXTINF:6.000000,", "segment_000.m4s");
+        writePart(qualityDir, 1, "#EXT-X-MAP:URI=\"init_001.mp4\"", "#EXTINF:6.000000,", "p1_segment_000.m4s");
+
+        service.stitchPlaylists(qualityDir, 2);
+
+        List<String> lines = Files.readAllLines(qualityDir.resolve("playlist.m3u8"));
+        assertThat(lines).contains("#EXT-X-VERSION:7");
+        assertThat(lines).containsSubsequence("#EXT-X-MAP:URI=\"init_000.mp4\"", "segment_000.m4s",
+                "#EXT-X-DISCONTINUITY", "#EXT-X-MAP:URI=\"init_001.mp4\"", "p1_segment_000.m4s");
+    }
+
+    @Test
+    void onePieceFallbackLeavesNoPartFilesBehind() throws IOException {
+        Path qualityDir = Files.createDirectories(hlsDir.resolve("v1/720p"));
+        writePart(qualityDir, 0, "#EXTINF:6.000000,", "p000_seg_000.ts");
+        touch(qualityDir, "p000_seg_000.ts", "p001_seg_000.ts", "seg_000.ts", "seg_001.ts");
+        Files.writeString(qualityDir.resolve("playlist.m3u8"),
+                "#EXTM3U\n#EXTINF:6.000000,\nseg_000.ts\n#EXTINF:6.000000,\nseg_001.ts\n#EXT-X-ENDLIST\n");
+
+        service.deletePartArtifacts(qualityDir);
+
+        try (Stream<Path> files = Files.list(qualityDir)) {
+            assertThat(files.map(f -> f.getFileName().toString()))
+                    .containsExactlyInAnyOrder("playlist.m3u8", "seg_000.ts", "seg_001.ts");
+        }
+    }
+
+    @Test
+    void stitchedQualityKeepsThePartSegmentsItPlays() throws IOException {
+        Path qualityDir = Files.createDirectories(hlsDir.resolve("v1/720p"));
+        writePart(qualityDir, 0, "#EXT-X-MAP:URI=\"p000_init_720p.mp4\"", "#EXTINF:6.000000,", "p000_seg_000.m4s");
+        writePart(qualityDir, 1, "#EXT-X-MAP:URI=\"p001_init_720p.mp4\"", "#EXTINF:6.000000,", "p001_seg_000.m4s");
+        touch(qualityDir, "p000_init_720p.mp4", "p000_seg_000.m4s", "p001_init_720p.mp4", "p001_seg_000.m4s",
+                "p002_seg_000.m4s");   // From an earlier attempt cut into more parts
+        service.stitchPlaylists(qualityDir, 2);
+
+        service.deletePartArtifacts(qualityDir);
+
+        try (Stream<Path> files = Files.list(qualityDir)) {
+            assertThat(files.map(f -> f.getFileName().toString())).containsExactlyInAnyOrder("playlist.m3u8",
+                    "p000_init_720p.mp4", "p000_seg_000.m4s", "p001_init_720p.mp4", "p001_seg_000.m4s");
+        }
+    }
+
+    @Test
+    void partsStayUntilThereIsAPlaylist() throws IOException {
+        Path qualityDir = Files.createDirectories(hlsDir.resolve("v1/720p"));
+        writePart(qualityDir, 0, "#EXTINF:6.000000,", "p000_seg_000.ts");
+        touch(qualityDir, "p000_seg_000.ts");
+
+        service.deletePartArtifacts(qualityDir);
+
+        assertThat(qualityDir.resolve("part_000.m3u8")).exists();
+        assertThat(qualityDir.resolve("p000_seg_000.ts")).exists();
+    }
+
+    @Test
+    void singleDecodeSplitsTheFramesIntoOneScaledBranchPerRendition() {
+        List<String> cmd = service.singleDecodeCommand("in.mp4", hlsDir, List.of(P480, P720), true, 6);
+
+        assertThat(after(cmd, "-filter_complex")).isEqualTo("[0:v]split=2[v0][v1]"
+                + ";[v0]scale=854:480:force_original_aspect_ratio=decrease,pad=854:480:(ow-iw)/2:(oh-ih)/2[out0]"
+                + ";[v1]scale=1280:720:force_original_aspect_ratio=decrease,pad=1280:720:(ow-iw)/2:(oh-ih)/2[out1]");
+        assertThat(cmd).containsSubsequence("-i", "in.mp4", "-map", "[out0]", "-map", "0:a:0", "-map", "[out1]", "-map", "0:a:0");
+        assertThat(cmd.stream().filter("-i"::equals).count()).isEqualTo(1);
+    }
+
+    @Test
+    void variantStreamMapNamesEachRendition() {
+        assertThat(after(service.singleDecodeCommand("in.mp4", hlsDir, List.of(P480, P720), true, 6), "-var_stream_map"))
+                .isEqualTo("v:0,a:0,name:480p v:1,a:1,name:720p");
+        assertThat(after(service.singleDecodeCommand("in.mp4", hlsDir, List.of(P480, P720), false, 6), "-var_stream_map"))
+                .isEqualTo("v:0,name:480p v:1,name:720p");
+    }
+
+    @Test
+    void encoderThreadsAreSplitByFrameSize() {
+        List<String> cmd = service.singleDecodeCommand("in.mp4", hlsDir, List.of(P480, P720), true, 6);
+
+        assertThat(after(cmd, "-threads")).isEqualTo("6");
+        assertThat(after(cmd, "-threads:v:0")).isEqualTo("2");
+        assertThat(after(cmd, "-threads:v:1")).isEqualTo("4");
+
+        // Never below one thread per encoder
+        List<String> starved = service.singleDecodeCommand("in.mp4", hlsDir, List.of(P480, P720), true, 1);
+        assertThat(after(starved, "-threads:v:0")).isEqualTo("1");
+        assertThat(after(starved, "-threads:v:1")).isEqualTo("1");
+    }
+
+    @Test
+    void cheapestRenditionGetsAPassOfItsOwnOnlyWhenTheRestIsMuchSlower() {
+        TranscodingService.QualityProfile p1080 = new TranscodingService.QualityProfile("1080p", 1920, 1080, 6_000_000);
+
+        // 720p is only twice the work of 480p - a second decode would cost about what it saves
+        assertThat(service.progressivePassPays(List.of(P480, P720), 2)).isFalse();
+        assertThat(service.progressivePassPays(List.of(P480, P720, p1080), 2)).isTrue();
+        // Cores for more than one process already finish the cheap group early
+        assertThat(service.progressivePassPays(List.of(P480, P720, p1080), 4)).isFalse();
+        assertThat(service.progressivePassPays(List.of(p1080), 2)).isFalse();
+    }
+
+    @Test
+    void h264SourceOfARungsSizeIsRemuxedIntoIt() {
+        assertThat(service.remuxCandidate(source(1280, 720, 3_000_000), List.of(P480, P720))).isSameAs(P720);
+    }
+
+    @Test
+    void sourceOverTheRungsBitrateIsEncoded() {
+        // 1.5 x 3 Mb/s
+        assertThat(service.remuxCandidate(source(1280, 720, 4_500_000), List.of(P720))).isSameAs(P720);
+        assertThat(service.remuxCandidate(source(1280, 720, 4_600_000), List.of(P720))).isNull();
+
+        // A per-title cap above the nominal bandwidth raises the ceiling
+        TranscodingService.QualityProfile capped = new TranscodingService.QualityProfile("720p", 1280, 720,
+                3_000_000, 5_000_000, TranscodingService.VideoCodec.H264);
+        assertThat(service.remuxCandidate(source(1280, 720, 7_000_000), List.of(capped))).isSameAs(capped);
+    }
+
+    @Test
+    void sourcePlayersCannotTakeAsIsIsEncoded() {
+        TranscodingService.VideoInfo tenBit = source(1280, 720, 3_000_000);
+        tenBit.pixFmt = "yuv420p10le";
+        TranscodingService.VideoInfo hevc = source(1280, 720, 3_000_000);
+        hevc.videoCodec = "hevc";
+        TranscodingService.VideoInfo high10 = source(1280, 720, 3_000_000);
+        high10.videoProfile = "High 10";
+        TranscodingService.VideoInfo unknownBitrate = source(1280, 720, 0);
+
+        for (TranscodingService.VideoInfo info : List.of(tenBit, hevc, high10, unknownBitrate)) {
+            assertThat(service.remuxCandidate(info, List.of(P480, P720))).isNull();
+        }
+    }
+
+    @Test
+    void sourceMatchingNoRungIsEncoded() {
+        TranscodingService.QualityProfile hevc720 = new TranscodingService.QualityProfile("720p", 1280, 720,
+                3_000_000, 0, TranscodingService.VideoCodec.HEVC);
+
+        assertThat(service.remuxCandidate(source(1280, 800, 3_000_000), List.of(P480, P720))).isNull();
+        assertThat(service.remuxCandidate(source(1280, 720, 3_000_000), List.of(hevc720))).isNull();
+        assertThat(service.remuxCandidate(source(1280, 720, 3_000_000), List.of(P480))).isNull();
+    }
+
+    @Test
+    void remuxCanBeTurnedOff() {
+        TranscodingService encodeAll = new TranscodingService(mock(VideoService.class), new TranscodingScheduler(4, 2, 2),
+                mock(TranscodeProgressService.class), mock(PerTitleLadder.class), Runnable::run,
+                hlsDir.toString(), 6, List.of("480p", "720p"), 1800, 600, 16, true, "mpegts",
+                List.of(), List.of(), true, List.of("128k"), false, 1.5, true, 5, 1000);
+
+        assertThat(encodeAll.remuxCandidate(source(1280, 720, 3_000_000), List.of(P720))).isNull();
+    }
+
+    @Test
+    void keyframesMustComeAtLeastEverySegment() {
+        assertThat(service.keyframesFitSegments(List.of(0.0, 2.0, 4.0, 6.0, 8.0))).isTrue();
+        assertThat(service.keyframesFitSegments(List.of(0.0, 6.0, 12.0))).isTrue();
+        assertThat(service.keyframesFitSegments(List.of(0.0, 4.0, 10.5))).isFalse();
+        // Too few to tell
+        assertThat(service.keyframesFitSegments(List.of(0.0))).isFalse();
+        assertThat(service.keyframesFitSegments(List.of())).isFalse();
+    }
+
+    /**
+     * Fully probed H.264 High 4:2:0 source
+     */
+    private static TranscodingService.VideoInfo source(int width, int height, long bitrate) {
+        TranscodingService.VideoInfo info = new TranscodingService.VideoInfo(width, height, 600);
+        info.videoCodec = "h264";
+        info.videoProfile = "High";
+        info.videoLevel = 40;
+        info.pixFmt = "yuv420p";
+        info.videoBitrate = bitrate;
+        return info;
+    }
+
+    @Test
+    void thumbnailPlanWidensTheIntervalToStayUnderTheTileLimit() {
+        TranscodingService.ThumbnailPlan shortVideo = service.thumbnailPlan(hlsDir.resolve("v1"), 100);
+        TranscodingService.ThumbnailPlan longVideo = service.thumbnailPlan(hlsDir.resolve("v1"), 10_000);
+
+        assertThat(shortVideo.dir).isEqualTo(hlsDir.resolve("v1/thumbs"));
+        assertThat(shortVideo.interval).isEqualTo(5);
+        assertThat(longVideo.interval).isEqualTo(10);   // 1000 tiles at most
+    }
+
+    @Test
+    void posterIsTakenATenthIntoTheVideoButNoLaterThanAMinute() {
+        assertThat(service.thumbnailPlan(hlsDir, 100).posterAt).isEqualTo(10);
+        assertThat(service.thumbnailPlan(hlsDir, 3600).posterAt).isEqualTo(60);
+        assertThat(service.thumbnailPlan(hlsDir, 5).posterAt).isZero();
+    }
+
+    @Test
+    void thumbnailFiltersTileTheSpritesAndScaleThePoster() {
+        TranscodingService.ThumbnailPlan plan = new TranscodingService.ThumbnailPlan(hlsDir, 5, 60);
+
+        assertThat(plan.filters("[thumbs]", "[poster]")).isEqualTo("[thumbs]fps=1/5"
+                + ",scale=160:90:force_original_aspect_ratio=decrease,pad=160:90:(ow-iw)/2:(oh-ih)/2"
+                + ",tile=10x10[sprites];[poster]trim=start=60,scale='min(1280,iw)':-2[posterframe]");
+        assertThat(plan.outputs()).containsSubsequence("-map", "[sprites]",
+                hlsDir.resolve("sprite_%03d.jpg").toString(), "-map", "[posterframe]", "-frames:v", "1",
+                hlsDir.resolve("poster.jpg").toString());
+    }
+
+    @Test
+    void vttCuesPointAtTheirTileAndEndWithTheVideo() throws IOException {
+        TranscodingService.ThumbnailPlan plan = thumbnails(5, "poster.jpg", "sprite_000.jpg");
+
+        service.publishThumbnails("v1", plan, 12);
+
+        assertThat(Files.readString(plan.dir.resolve("thumbnails.vtt"))).isEqualTo("WEBVTT\n"
+                + "\n00:00:00.000 --> 00:00:05.000\nsprite_000.jpg#xywh=0,0,160,90\n"
+                + "\n00:00:05.000 --> 00:00:10.000\nsprite_000.jpg#xywh=160,0,160,90\n"
+                + "\n00:00:10.000 --> 00:00:12.000\nsprite_000.jpg#xywh=320,0,160,90\n");
+        verify(videos).updateThumbnails("v1", "/hls/v1/thumbs/poster.jpg", "/hls/v1/thumbs/thumbnails.vtt");
+    }
+
+    @Test
+    void vttTilesWrapIntoRowsAndOntoTheNextSheet() throws IOException {
+        TranscodingService.ThumbnailPlan plan = thumbnails(5, "poster.jpg", "sprite_000.jpg", "sprite_001.jpg");
+
+        service.publishThumbnails("v1", plan, 505);
+
+        String vtt = Files.readString(plan.dir.resolve("thumbnails.vtt"));
+        assertThat(vtt).contains("\n00:00:50.000 --> 00:00:55.000\nsprite_000.jpg#xywh=0,90,160,90\n");
+        assertThat(vtt).contains("\n00:08:15.000 --> 00:08:20.000\nsprite_000.jpg#xywh=1440,810,160,90\n");
+        assertThat(vtt).endsWith("\n00:08:20.000 --> 00:08:25.000\nsprite_001.jpg#xywh=0,0,160,90\n");
+    }
+
+    @Test
+    void vttTimestampsCountHours() throws IOException {
+        TranscodingService.ThumbnailPlan plan = thumbnails(3600, "poster.jpg", "sprite_000.jpg");
+
+        service.publishThumbnails("v1", plan, 3725);
+
+        assertThat(Files.readString(plan.dir.resolve("thumbnails.vtt")))
+                .contains("00:00:00.000 --> 01:00:00.000", "01:00:00.000 --> 01:02:05.000");
+    }
+
+    @Test
+    void vttStopsAtTheFirstMissingSheet() throws IOException {
+        TranscodingService.ThumbnailPlan plan = thumbnails(5, "poster.jpg", "sprite_000.jpg");
+
+        service.publishThumbnails("v1", plan, 505);
+
+        String vtt = Files.readString(plan.dir.resolve("thumbnails.vtt"));
+        assertThat(vtt).doesNotContain("sprite_001.jpg");
+        assertThat(vtt.lines().filter(line -> line.contains(" --> ")).count()).isEqualTo(100);
+    }
+
+    @Test
+    void noPosterMeansNoThumbnailTrack() throws IOException {
+        TranscodingService.ThumbnailPlan plan = thumbnails(5, "sprite_000.jpg");
+
+        service.publishThumbnails("v1", plan, 12);
+
+        assertThat(plan.dir.resolve("thumbnails.vtt")).doesNotExist();
+        verify(videos, never()).updateThumbnails(any(), any(), any());
+    }
+
+    /**
+     * Plan for v1 with the given files already rendered into its thumbs directory
+     */
+    private TranscodingService.ThumbnailPlan thumbnails(int interval, String... rendered) throws IOException {
+        Path dir = Files.createDirectories(hlsDir.resolve("v1/thumbs"));
+        touch(dir, rendered);
+        return new TranscodingService.ThumbnailPlan(dir, interval, 0);
+    }
+
+    private static String after(List<String> cmd, String option) {
+        return cmd.get(cmd.indexOf(option) + 1);
+    }
+
+    private static void touch(Path dir, String... names) throws IOException {
+        for (String name : names) {
+            Files.write(dir.resolve(name), new byte[1]);
+        }
+    }
+
+    /**
+     * Part playlist as ffmpeg writes it, with the given media lines
+     */
+    private static void writePart(Path qualityDir, int part, String... media) throws IOException {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:7\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n");
+        for (String line : media) {
+            playlist.append(line).append("\n");
+        }
+        playlist.append("#EXT-X-ENDLIST\n");
+        Files.writeString(qualityDir.resolve(String.format("part_%03d.m3u8", part)), playlist);
+    }
+
+    private static class StubProcess extends Process {
+        volatile boolean destroyed;
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+        }
+
+        @Override
+        public Process destroyForcibly() {
+            destroyed = true;
+            return this;
+        }
+    }
+}
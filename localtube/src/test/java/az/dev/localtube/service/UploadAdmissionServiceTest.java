@@ -0,0 +1,57 @@
+package az.dev.localtube.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UploadAdmissionServiceTest {
+
+    // 1000 bytes/s with a 100 byte burst
+    private final UploadAdmissionService admission = new UploadAdmissionService(4, 1000, 100);
+
+    @Test
+    void burstIsAdmittedThenClientHasToWait() {
+        assertThat(admission.tryConsume("ip:a", 100)).isZero();
+
+        long retryMs = admission.tryConsume("ip:a", 50);
+        assertThat(retryMs).isBetween(1L, 60L);
+    }
+
+    @Test
+    void chunkLargerThanBurstIsChargedInFull() {
+        // Admitted on a full bucket, but 1000 bytes are one second of this client's rate
+        assertThat(admission.tryConsume("ip:a", 1000)).isZero();
+
+        long retryMs = admission.tryConsume("ip:a", 1);
+        assertThat(retryMs).isGreaterThan(800);
+    }
+
+    @Test
+    void largeChunksCannotOutrunTheRate() {
+        int admitted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (admission.tryConsume("ip:a", 5000) == 0) {
+                admitted++;
+            }
+        }
+        assertThat(admitted).isEqualTo(1);
+    }
+
+    @Test
+    void clientsHaveSeparateBuckets() {
+        assertThat(admission.tryConsume("ip:a", 1000)).isZero();
+
+        assertThat(admission.tryConsume("ip:b", 100)).isZero();
+    }
+
+    @Test
+    void slotsAreBounded() {
+        for (int i = 0; i < 4; i++) {
+            assertThat(admission.tryAcquireSlot()).isTrue();
+        }
+        assertThat(admission.tryAcquireSlot()).isFalse();
+
+        admission.releaseSlot();
+        assertThat(admission.tryAcquireSlot()).isTrue();
+    }
+}
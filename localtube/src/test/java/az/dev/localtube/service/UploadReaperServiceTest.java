@@ -0,0 +1,188 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.UploadSession;
+import az.dev.localtube.domain.Video;
+import az.dev.localtube.domain.VideoStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class UploadReaperServiceTest {
+
+    @TempDir
+    Path root;
+
+    private Path uploadDir;
+    private Path hlsDir;
+
+    private final VideoService videos = mock(VideoService.class);
+    private final TranscodingService transcoding = mock(TranscodingService.class);
+    private final TranscodeJobQueue queue = mock(TranscodeJobQueue.class);
+    private final UploadSessionService sessions = mock(UploadSessionService.class);
+    private final PipelinedIngestService pipelined = mock(PipelinedIngestService.class);
+    private final DiskSpaceLedger ledger = mock(DiskSpaceLedger.class);
+    private UploadReaperService reaper;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        uploadDir = Files.createDirectories(root.resolve("uploads"));
+        hlsDir = Files.createDirectories(root.resolve("hls"));
+        when(videos.videoIdFor(anyString())).thenAnswer(invocation -> invocation.getArgument(0));
+        reaper = new UploadReaperService(videos, transcoding, queue, sessions, pipelined, ledger,
+                mock(TaskScheduler.class), uploadDir.toString(), hlsDir.toString(),
+                Duration.ofHours(24), Duration.ofHours(6), 50, 0, 600_000, 120_000);
+    }
+
+    @Test
+    void sweepIsScheduledOnTheReaperScheduler() {
+        TaskScheduler scheduler = mock(TaskScheduler.class);
+
+        new UploadReaperService(videos, transcoding, queue, sessions, pipelined, ledger, scheduler,
+                uploadDir.toString(), hlsDir.toString(), Duration.ofHours(24), Duration.ofHours(6), 50, 0,
+                600_000, 120_000);
+
+        verify(scheduler).scheduleWithFixedDelay(any(Runnable.class), any(Instant.class), eq(Duration.ofMinutes(10)));
+    }
+
+    @Test
+    void staleSessionIsDiscardedAndItsVideoFailed() throws IOException {
+        UploadSession stale = new UploadSession("u1", "stale", "stale.mp4", 100, 10, 10);
+        stale.setUpdatedAt(LocalDateTime.now().minusHours(25));
+        UploadSession live = new UploadSession("u2", "live", "live.mp4", 100, 10, 10);
+        when(sessions.getSessions()).thenReturn(List.of(stale, live));
+
+        reaper.reap();
+
+        verify(pipelined).abort("stale");
+        verify(sessions).discard(stale);
+        verify(ledger).release("stale");
+        verify(videos).updateVideoStatus("stale", VideoStatus.FAILED);
+        verify(sessions, never()).discard(live);
+        verify(videos, never()).updateVideoStatus(eq("live"), any());
+    }
+
+    @Test
+    void stuckTranscodeIsRequeuedOnceThenFailed() throws IOException {
+        Path source = Files.write(uploadDir.resolve("stuck.mp4"), new byte[16]);
+        Path output = Files.createDirectories(hlsDir.resolve("stuck/720p"));
+        Files.writeString(output.resolve("playlist.m3u8"), "#EXTM3U\n");
+        Video stuck = video("stuck", VideoStatus.PROCESSING);
+        stuck.setProcessingStartedAt(LocalDateTime.now().minusHours(7));
+        stuck.setHlsPath(hlsDir.resolve("stuck").toString());
+        Video running = video("running", VideoStatus.PROCESSING);
+        running.setProcessingStartedAt(LocalDateTime.now().minusHours(7));
+        when(transcoding.isTranscoding("running")).thenReturn(true);
+        when(videos.getVideosByStatus(eq(VideoStatus.PROCESSING), anyInt())).thenReturn(List.of(stuck, running));
+
+        reaper.reap();
+
+        verify(queue).submit("stuck", source);
+        assertThat(hlsDir.resolve("stuck")).doesNotExist();   // Half-written renditions go either way
+        assertThat(source).exists();
+
+        reaper.reap();
+
+        verify(queue, times(1)).submit(any(), any());
+        verify(videos).updateVideoStatus("stuck", VideoStatus.FAILED);
+        verify(ledger).release("stuck");
+        assertThat(source).doesNotExist();
+        verify(videos, never()).updateVideoStatus(eq("running"), any());
+    }
+
+    @Test
+    void recentlyStartedTranscodeIsNotStuck() throws IOException {
+        Files.write(uploadDir.resolve("fresh.mp4"), new byte[16]);
+        Video fresh = video("fresh", VideoStatus.PROCESSING);
+        fresh.setProcessingStartedAt(LocalDateTime.now().minusHours(1));
+        when(videos.getVideosByStatus(eq(VideoStatus.PROCESSING), anyInt())).thenReturn(List.of(fresh));
+
+        reaper.reap();
+
+        verify(queue, never()).submit(any(), any());
+        verify(videos, never()).updateVideoStatus(any(), any());
+    }
+
+    @Test
+    void orphanUploadIsRemovedButOwnedAndRecentFilesStay() throws IOException {
+        Path orphan = old(Files.write(uploadDir.resolve("orphan.mp4"), new byte[16]));
+        Path pending = old(Files.write(uploadDir.resolve("pending.mp4"), new byte[16]));
+        Path sessionFile = old(Files.write(uploadDir.resolve("partial.mp4"), new byte[16]));
+        Path sessionState = old(Files.write(uploadDir.resolve("partial.mp4.session"), new byte[16]));
+        Path recent = Files.write(uploadDir.resolve("recent.mp4"), new byte[16]);
+        when(videos.getVideo("pending.mp4")).thenReturn(Optional.of(video("pending", VideoStatus.UPLOADING)));
+        when(sessions.findByFilename("partial.mp4")).thenReturn(Optional.of(new UploadSession()));
+
+        reaper.reap();
+
+        assertThat(orphan).doesNotExist();
+        assertThat(pending).exists();
+        assertThat(sessionFile).exists();
+        assertThat(sessionState).exists();
+        assertThat(recent).exists();
+    }
+
+    @Test
+    void orphanHlsDirectoryIsRemovedButAReferencedOneStays() throws IOException {
+        Path orphan = hlsDirectory("orphan");
+        Path referenced = hlsDirectory("referenced");
+        Path owned = hlsDirectory("owned");
+        Path queued = hlsDirectory("queued");
+        when(videos.countHlsReferences(referenced.toString())).thenReturn(1L);
+        when(videos.getVideo("owned")).thenReturn(Optional.of(video("owned", VideoStatus.READY)));
+        when(queue.isPending("queued")).thenReturn(true);
+
+        reaper.reap();
+
+        assertThat(orphan).doesNotExist();
+        assertThat(referenced.resolve("720p/playlist.m3u8")).exists();
+        assertThat(owned.resolve("720p/playlist.m3u8")).exists();
+        assertThat(queued.resolve("720p/playlist.m3u8")).exists();
+    }
+
+    @Test
+    void recentHlsDirectoryIsLeftAlone() throws IOException {
+        Path output = Files.createDirectories(hlsDir.resolve("new/720p"));
+
+        reaper.reap();
+
+        assertThat(output).exists();
+    }
+
+    private Video video(String id, VideoStatus status) {
+        Video video = new Video(id, id, id + ".mp4");
+        video.setStatus(status);
+        return video;
+    }
+
+    /**
+     * An output directory last touched well before the processing cutoff
+     */
+    private Path hlsDirectory(String videoId) throws IOException {
+        Path dir = hlsDir.resolve(videoId);
+        Files.createDirectories(dir.resolve("720p"));
+        Files.writeString(dir.resolve("720p/playlist.m3u8"), "#EXTM3U\n");
+        return old(dir);
+    }
+
+    private static Path old(Path path) throws IOException {
+        return Files.setLastModifiedTime(path, FileTime.from(Instant.now().minus(Duration.ofDays(2))));
+    }
+}
@@ -0,0 +1,184 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.UploadSession;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UploadSessionServiceTest {
+
+    @TempDir
+    Path uploadDir;
+
+    private UploadSessionService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        service = new UploadSessionService(uploadDir.toString());
+    }
+
+    @Test
+    void newSessionPreallocatesThePartialFile() throws IOException {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 950, 10, 100, false);
+
+        assertThat(Files.size(service.partialFile(session))).isEqualTo(950);
+        assertThat(session.getMissingRanges()).containsExactly(new int[]{0, 9});
+    }
+
+    @Test
+    void sameFileAndShapeResumesTheSession() throws IOException {
+        UploadSession first = service.createOrResume("v1", "movie.mp4", 950, 10, 100, false);
+        write(first, 0, 100);
+
+        UploadSession resumed = service.createOrResume("v1", "movie.mp4", 950, 10, 100, false);
+
+        assertThat(resumed.getUploadId()).isEqualTo(first.getUploadId());
+        assertThat(resumed.isReceived(0)).isTrue();
+    }
+
+    @Test
+    void differentShapeStartsOver() throws IOException, InterruptedException {
+        UploadSession first = service.createOrResume("v1", "movie.mp4", 950, 10, 100, false);
+        write(first, 0, 100);
+        Thread.sleep(2);   // Upload ids carry the creation time
+
+        UploadSession replaced = service.createOrResume("v1", "movie.mp4", 2000, 20, 100, false);
+
+        assertThat(replaced.getUploadId()).isNotEqualTo(first.getUploadId());
+        assertThat(replaced.getReceivedCount()).isZero();
+        assertThat(service.getSession(first.getUploadId())).isEmpty();
+    }
+
+    @Test
+    void chunksLandAtTheirOffsets() throws IOException {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+
+        write(session, 2, 50);
+        write(session, 0, 100);
+
+        byte[] content = Files.readAllBytes(service.partialFile(session));
+        assertThat(content[0]).isEqualTo((byte) 0);
+        assertThat(content[200]).isEqualTo((byte) 2);
+        assertThat(content[150]).isEqualTo((byte) 0);   // Chunk 1 not written yet
+        assertThat(session.getMissingRanges()).containsExactly(new int[]{1, 1});
+    }
+
+    @Test
+    void receivedChunksSurviveARestart() throws IOException {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 950, 10, 100, true);
+        write(session, 0, 100);
+        write(session, 4, 100);
+        write(session, 9, 50);
+
+        UploadSessionService restarted = new UploadSessionService(uploadDir.toString());
+
+        UploadSession restored = restarted.findByFilename("movie.mp4").orElseThrow();
+        assertThat(restored.getUploadId()).isEqualTo(session.getUploadId());
+        assertThat(restored.isPipelined()).isTrue();
+        assertThat(restored.getMissingRanges()).containsExactly(new int[]{1, 3}, new int[]{5, 8});
+    }
+
+    @Test
+    void finishedSessionIsNotRestored() throws IOException {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 100, 1, 100, false);
+        write(session, 0, 100);
+
+        service.finish(session);
+
+        assertThat(Files.exists(service.partialFile(session))).isTrue();
+        assertThat(new UploadSessionService(uploadDir.toString()).getSessions()).isEmpty();
+    }
+
+    @Test
+    void stateWithoutItsPartialFileIsDropped() throws IOException {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 950, 10, 100, false);
+        Files.delete(service.partialFile(session));
+
+        assertThat(new UploadSessionService(uploadDir.toString()).getSessions()).isEmpty();
+        assertThat(Files.exists(uploadDir.resolve("movie.mp4.session"))).isFalse();
+    }
+
+    @Test
+    void digestCoversOutOfOrderChunks() throws Exception {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+        write(session, 2, 50);
+        write(session, 1, 100);
+        write(session, 0, 100);
+
+        assertThat(service.finishDigest(session)).isEqualTo(sha256(Files.readAllBytes(service.partialFile(session))));
+    }
+
+    @Test
+    void digestIsRebuiltFromTheFileAfterARestart() throws Exception {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+        write(session, 0, 100);
+        write(session, 1, 100);
+        service = new UploadSessionService(uploadDir.toString());
+        UploadSession restored = service.findByFilename("movie.mp4").orElseThrow();
+
+        write(restored, 2, 50);
+
+        assertThat(service.finishDigest(restored)).isEqualTo(sha256(Files.readAllBytes(service.partialFile(restored))));
+    }
+
+    @Test
+    void digestOfAnIncompleteUploadFails() throws IOException {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+        write(session, 0, 100);
+        write(session, 2, 50);
+
+        assertThatThrownBy(() -> service.finishDigest(session)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void writeReturnsTheChunkCrc32c() throws IOException {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 100, 1, 100, false);
+        CRC32C expected = new CRC32C();
+        expected.update(new byte[100]);
+
+        assertThat(write(session, 0, 100)).isEqualTo(expected.getValue());
+    }
+
+    @Test
+    void crcMismatchLeavesTheChunkMissing() throws Exception {
+        UploadSession session = service.createOrResume("v1", "movie.mp4", 250, 3, 100, false);
+        byte[] data = new byte[100];
+
+        assertThatThrownBy(() -> service.writeChunk(session, 0,
+                Channels.newChannel(new ByteArrayInputStream(data)), 100, 0x12345678L))
+                .isInstanceOf(UploadSessionService.ChecksumMismatchException.class);
+        assertThat(session.isReceived(0)).isFalse();
+
+        // The resend with the right bytes still yields the right whole-file digest
+        write(session, 0, 100);
+        write(session, 1, 100);
+        write(session, 2, 50);
+        assertThat(service.finishDigest(session)).isEqualTo(sha256(Files.readAllBytes(service.partialFile(session))));
+    }
+
+    /**
+     * Chunk filled with its own index
+     */
+    private long write(UploadSession session, int chunkIndex, int length) throws IOException {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) chunkIndex);
+        return service.writeChunk(session, chunkIndex, Channels.newChannel(new ByteArrayInputStream(data)), length, null);
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+}
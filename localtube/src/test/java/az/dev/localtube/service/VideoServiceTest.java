@@ -0,0 +1,80 @@
+package az.dev.localtube.service;
+
+import az.dev.localtube.domain.Video;
+import az.dev.localtube.domain.VideoStatus;
+import az.dev.localtube.repository.VideoRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+class VideoServiceTest {
+
+    @TempDir
+    Path root;
+
+    private VideoRepository repository;
+    private VideoService service;
+    private Path shared;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        repository = mock(VideoRepository.class);
+        service = new VideoService(repository, mock(TranscodeProgressService.class),
+                new HlsSegmentCache(false, DataSize.ofBytes(0), DataSize.ofBytes(0)),
+                root.resolve("uploads").toString(), root.resolve("hls").toString());
+
+        shared = Files.createDirectories(root.resolve("hls").resolve("original"));
+        Files.writeString(shared.resolve("master.m3u8"), "#EXTM3U\n");
+    }
+
+    @Test
+    void deletingOneOfTwoVideosSharingRenditionsKeepsThem() throws Exception {
+        Video duplicate = video("duplicate");
+        when(repository.findById("duplicate")).thenReturn(Optional.of(duplicate));
+        when(repository.countByHlsPath(shared.toString())).thenReturn(2L);
+
+        service.deleteVideo("duplicate");
+
+        assertThat(shared.resolve("master.m3u8")).exists();
+        verify(repository).delete("duplicate");
+    }
+
+    @Test
+    void deletingTheLastReferenceRemovesRenditions() throws Exception {
+        Video original = video("original");
+        when(repository.findById("original")).thenReturn(Optional.of(original));
+        when(repository.countByHlsPath(shared.toString())).thenReturn(1L);
+
+        service.deleteVideo("original");
+
+        assertThat(shared).doesNotExist();
+        verify(repository).delete("original");
+    }
+
+    @Test
+    void linkedDuplicateIsSearchableBeforeItCounts() throws Exception {
+        Video source = video("original");
+        source.setStatus(VideoStatus.READY);
+        when(repository.findById("duplicate")).thenReturn(Optional.of(new Video()));
+
+        service.linkToRenditions("duplicate", source);
+
+        verify(repository).saveSearchable(any(Video.class));
+        verify(repository, never()).save(any(Video.class));
+    }
+
+    private Video video(String id) {
+        Video video = new Video();
+        video.setId(id);
+        video.setHlsPath(shared.toString());
+        return video;
+    }
+}
@@ -0,0 +1,88 @@
+package az.dev.localtube.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class HashingChannelTest {
+
+    @Test
+    void crc32cMatchesTheCheckValue() throws IOException {
+        HashingChannel channel = drain("123456789".getBytes(StandardCharsets.US_ASCII), null, 4);
+
+        assertThat(channel.getCrc32c()).isEqualTo(0xE3069283L);
+        assertThat(channel.getBytesRead()).isEqualTo(9);
+    }
+
+    @Test
+    void digestSeesTheSameBytes() throws Exception {
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+
+        drain("abc".getBytes(StandardCharsets.US_ASCII), sha, 2);
+
+        assertThat(HexFormat.of().formatHex(sha.digest()))
+                .isEqualTo("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+    }
+
+    @Test
+    void smallReadsHashLikeOneRead() throws Exception {
+        byte[] data = new byte[100_000];
+        new Random(42).nextBytes(data);
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+
+        HashingChannel channel = drain(data, sha, 333);
+
+        CRC32C expected = new CRC32C();
+        expected.update(data);
+        assertThat(channel.getCrc32c()).isEqualTo(expected.getValue());
+        assertThat(sha.digest()).isEqualTo(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    @Test
+    void bytesAlreadyInTheBufferAreNotHashed() throws IOException {
+        HashingChannel channel = new HashingChannel(
+                Channels.newChannel(new ByteArrayInputStream("123456789".getBytes(StandardCharsets.US_ASCII))), null);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put("junk".getBytes(StandardCharsets.US_ASCII));
+
+        while (channel.read(buffer) >= 0) {
+            // Keep reading
+        }
+
+        assertThat(channel.getCrc32c()).isEqualTo(0xE3069283L);
+    }
+
+    @Test
+    void hexRoundTrip() {
+        assertThat(HashingChannel.toHex(0x0000ABCDL)).isEqualTo("0000abcd");
+        assertThat(HashingChannel.parseHex("0000abcd")).isEqualTo(0xABCDL);
+        assertThat(HashingChannel.parseHex("0xE3069283")).isEqualTo(0xE3069283L);
+    }
+
+    @Test
+    void malformedHexIsRejected() {
+        assertThatThrownBy(() -> HashingChannel.parseHex("123456789")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> HashingChannel.parseHex("")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> HashingChannel.parseHex("xyz")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static HashingChannel drain(byte[] data, MessageDigest digest, int bufferSize) throws IOException {
+        HashingChannel channel = new HashingChannel(Channels.newChannel(new ByteArrayInputStream(data)), digest);
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        while (channel.read(buffer) >= 0) {
+            buffer.clear();
+        }
+        return channel;
+    }
+}
@@ -11,6 +11,7 @@ function App() {
   const [videos, setVideos] = useState([]);
   const [searchQuery, setSearchQuery] = useState('');
   const [filteredVideos, setFilteredVideos] = useState([]);
+  const [jobProgress, setJobProgress] = useState({});
 
   const fetchVideos = async () => {
     try {
@@ -30,7 +31,7 @@ function App() {
       
       setFilteredVideos(data);
 
-      const processing = data.filter(v => v.status === 'processing').length;
+      const processing = data.filter(v => v.status === 'processing' || v.status === 'playable').length;
       if (processing > 0) {
         setStatus(`Processing ${processing} video(s)...`);
       } else if (status.includes('Processing')) {
@@ -44,8 +45,41 @@ function App() {
 
   useEffect(() => {
     fetchVideos();
-    const timer = setInterval(fetchVideos, 8000);
-    return () => clearInterval(timer);
+
+    // Progress and status changes are pushed; the slow poll only catches what a dropped socket missed
+    let socket;
+    let reconnect;
+    const connect = () => {
+      socket = new WebSocket('ws://localhost:8080/ws/progress');
+      socket.onmessage = (e) => {
+        const event = JSON.parse(e.data);
+        if (event.type === 'progress') {
+          setJobProgress(prev => ({ ...prev, [event.videoId]: event }));
+        } else if (event.type === 'status') {
+          if (event.status === 'ready' || event.status === 'failed') {
+            setJobProgress(prev => {
+              const { [event.videoId]: _, ...rest } = prev;
+              return rest;
+            });
+          }
+          fetchVideos();
+        }
+      };
+      socket.onclose = () => {
+        reconnect = setTimeout(connect, 5000);
+      };
+    };
+    connect();
+
+    const timer = setInterval(fetchVideos, 60000);
+    return () => {
+      clearInterval(timer);
+      clearTimeout(reconnect);
+      if (socket) {
+        socket.onclose = null;
+        socket.close();
+      }
+    };
   }, []);
 
   useEffect(() => {
@@ -244,7 +278,7 @@ function App() {
         ) : (
           <div className="video-grid">
             {filteredVideos.map((v) => (
-              <VideoCard key={v.id} video={v} />
+              <VideoCard key={v.id} video={v} progress={jobProgress[v.id]} />
             ))}
           </div>
         )}
@@ -256,7 +290,7 @@ function App() {
 // ────────────────────────────────────────────────
 //  Video Card Component
 // ────────────────────────────────────────────────
-function VideoCard({ video }) {
+function VideoCard({ video, progress }) {
   const videoRef = useRef(null);
   const hlsRef = useRef(null);
   const [selectedQuality, setSelectedQuality] = useState('auto');
@@ -271,7 +305,7 @@ function VideoCard({ video }) {
   const settingsRef = useRef(null);
 
   useEffect(() => {
-    if (video.status !== 'ready' || !video.hlsUrl || !videoRef.current) {
+    if ((video.status !== 'ready' && video.status !== 'playable') || !video.hlsUrl || !videoRef.current) {
       return;
     }
 
@@ -397,13 +431,17 @@ function VideoCard({ video }) {
         </div>
         <div className="video-info">
           <h3 className="video-title">{video.title || video.name}</h3>
-          <p className="video-meta">Generating quality levels...</p>
+          <p className="video-meta">
+            {progress && progress.percent != null
+              ? `${Math.floor(progress.percent)}%${progress.eta != null ? ` • ${formatTime(progress.eta)} left` : ''}`
+              : 'Generating quality levels...'}
+          </p>
         </div>
       </div>
     );
   }
 
-  if (video.status !== 'ready' || !video.hlsUrl) {
+  if ((video.status !== 'ready' && video.status !== 'playable') || !video.hlsUrl) {
     return (
       <div className="video-card">
         <div className="video-thumbnail error-thumbnail">
@@ -423,6 +461,7 @@ function VideoCard({ video }) {
         <video
           ref={videoRef}
           className="video-element"
+          poster={video.posterUrl ? `http://localhost:8080${video.posterUrl}` : undefined}
           onClick={togglePlay}
           onPlay={() => setIsPlaying(true)}
           onPause={() => setIsPlaying(false)}
@@ -507,7 +546,7 @@ function VideoCard({ video }) {
                       <span>Auto</span>
                       {selectedQuality === 'auto' && <span className="checkmark">✓</span>}
                     </button>
-                    {video.qualities?.map(q => (
+                    {video.qualities?.filter(q => !q.includes('-')).map(q => (
                       <button
                         key={q}
                         className={`quality-option ${selectedQuality === q.replace('p', '') ? 'active' : ''}`}